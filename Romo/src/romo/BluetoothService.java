@@ -1,189 +1,948 @@
 package romo;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
-public class BluetoothService implements ConnectListener, ConnectedListener {
+public class BluetoothService implements ConnectListener, ConnectedListener, FrameListener, LinkQualityListener {
 	
 	// Debugging
 	private static final String TAG = "BluetoothService";
 	
-	// Message types send from the BluetoothService Handler
-	public static final int MESSAGE_STATE_CHANGED = 0;			// Post connection state changed (synchronize UI-Activity)
-	public static final int MESSAGE_DATA  = 1;					// Post data received
-	
-	// Key names received from the BluetoothChatService Handler
-	public static final String KEY_DEVICE_NAME = "device_name";
-	public static final String KEY_CURRENT_STATE = "current_state";
-	public static final String KEY_NEXT_STATE = "next_state";
-	
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0;						// we're doing nothing
 	public static final int STATE_CONNECTING = 1;					// now initiating an outgoing connection
 	public static final int STATE_CONNECTED = 2;					// now connected to remote device
+	public static final int STATE_RECONNECTING = 3;				// link lost, retrying the last device with backoff
+	
+	// OutputQueue keys of the continuous set points
+	private static final int SETPOINT_DRIVE = 0;
+	private static final int SETPOINT_TILT = 1;
+	private static final int SETPOINT_TELEMETRY_RATE = 2;
+	private static final int SETPOINT_TELEMETRY_ENCODING = 3;
+	
+	// Set points a stop discards, the others are no motion
+	private static final int HALT_KEYS = (1 << SETPOINT_DRIVE) | (1 << SETPOINT_TILT);
+	
+	// Heartbeats on which the telemetry encoding is requested before the robot is taken not to know it
+	private static final int MAX_ENCODING_REQUESTS = 10;
 	
 	// Member fields
 	private final BluetoothAdapter oAdapter;						
 	private final Handler oHandler;
-	private ConnectThread oConnectThread;
-	private ConnectedThread oConnectedThread;
-	private String deviceName;
-	private int iState;
+	private final LinkEventRing oEvents;
+	private final FrameBatcher oBatcher;
+	private final LatencyStats oLatency;
+	private final LinkQuality oQuality;
+	private final RateController oRateController;
+	private final ReliableChannel oReliable;
+	private volatile SessionRecorder oRecorder;
+	private final BufferPool oPool;
+	private final OutputQueue oQueue;
+	private final FrameDecoder oDecoder;
+	private volatile FrameListener oFrameListener;
+	
+	// System.nanoTime() of the read being decoded, only used on the ConnectedThread
+	private long rxTimestamp;
+	
+	// Delta telemetry turned back into raw samples, only used on the ConnectedThread
+	private final TelemetryDecoder oTelemetryDecoder;
+	private final int[] rxChannels = new int[TelemetryEncoder.MAX_SAMPLES];
+	private final int[] rxValues = new int[TelemetryEncoder.MAX_SAMPLES];
+	private final byte[] rxTelemetry = new byte[FrameCodec.MAX_FRAME];
+	
+	// Telemetry encoding requested on every connection and the one the robot applies, -1 until it answers
+	private volatile int telemetryEncoding = FrameCodec.ENCODING_DELTA;
+	private volatile int appliedEncoding;
+	private volatile int encodingRequests;
+	
+	private final AtomicReference<ConnectThread> oConnectThread;
+	private final AtomicReference<ConnectedThread> oConnectedThread;
+	private volatile String deviceName;
+	
+	// State and connection generation, callbacks of an older generation are dropped
+	private final ConnectionState oState;
+	
+	// Duration in milliseconds of the last attempt of each connect phase, -1 if not tried
+	private final long[] phaseTimes;
+	
+	// Automatic reconnect, only changed by the callbacks of the current generation
+	private volatile ConnectStrategy oLastStrategy;
+	private volatile ReconnectPolicy oReconnectPolicy;
+	private volatile boolean autoReconnect;
+	private volatile boolean reliableCommands;
+	private volatile int reconnectAttempt;
+	private volatile int reconnectGeneration;
+	private volatile long disconnectTime;
+	
+	// Reconnect statistics in milliseconds
+	private volatile int reconnects;
+	private volatile long lastReconnectTime;
+	private volatile long maxReconnectTime;
+	private volatile long totalReconnectTime;
+	
+	private final Runnable oReconnectTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			reconnect();
+		}
+	};
+	
+	// Reusable frame for outgoing commands, guarded by oTxLock
+	private final Object oTxLock = new Object();
+	private final byte[] txFrame = new byte[FrameCodec.MAX_FRAME];
+	
+	// Prebuilt stop frame, never modified
+	private final byte[] haltFrame = new byte[FrameCodec.OVERHEAD];
+	private final int haltLength = FrameCodec.encodeStop(haltFrame, 0);
 	
 	/**
 	 * Initialize BluetoothService
 	 * @param context
-	 * @param handler
+	 * @param handler  Drains the events of this BluetoothService on the UI thread
 	 */
-	public BluetoothService(Context context, Handler handler){
+	public BluetoothService(Context context, BluetoothServiceHandler handler){
 		
 		oAdapter = BluetoothAdapter.getDefaultAdapter();
 		oHandler = handler;
+		oEvents = handler.getEventRing();
+		oBatcher = handler.getFrameBatcher();
+		oLatency = new LatencyStats();
+		oQuality = new LinkQuality();
+		oRateController = new RateController();
+		oPool = new BufferPool();
+		oQueue = new OutputQueue(OutputQueue.DEFAULT_CAPACITY, OutputQueue.POLICY_REJECT);
+		oQueue.setLatencyStats(oLatency);
+		oReliable = new ReliableChannel(oQueue);
+		handler.setLatencyStats(oLatency);
+		oDecoder = new FrameDecoder(this);
+		oTelemetryDecoder = new TelemetryDecoder();
+		oFrameListener = null;
 		
-		oConnectThread = null;
-		oConnectedThread = null;
+		oConnectThread = new AtomicReference<ConnectThread>();
+		oConnectedThread = new AtomicReference<ConnectedThread>();
 		
 		deviceName = "n.a.v.";
-		iState = STATE_NONE;
+		oState = new ConnectionState(STATE_NONE);
+		
+		phaseTimes = new long[ConnectListener.PHASE_COUNT];
+		Arrays.fill(phaseTimes, -1);
+		
+		oLastStrategy = null;
+		oReconnectPolicy = new ReconnectPolicy();
+		autoReconnect = false;
+	}
+	
+	/**
+	 * Enable or disable the automatic reconnect to the last device when the
+	 * link drops. While reconnecting the state is STATE_RECONNECTING and
+	 * commands are still accepted, pending set points are written as soon as
+	 * the link is back.
+	 */
+	public void setAutoReconnect(boolean enabled){
+		autoReconnect = enabled;
+	}
+	
+	/**
+	 * Set the telemetry encoding requested from the robot on every
+	 * connection, a robot that does not know it keeps sending raw telemetry
+	 * @param encoding  FrameCodec.ENCODING_RAW or FrameCodec.ENCODING_DELTA
+	 */
+	public void setTelemetryEncoding(int encoding){
+		telemetryEncoding = encoding;
+	}
+	
+	/**
+	 * Return the telemetry encoding the robot applies or -1 if it did not answer
+	 */
+	public int getTelemetryEncoding(){
+		return appliedEncoding;
+	}
+	
+	/**
+	 * Return the decoder of delta telemetry, to read its counters
+	 */
+	public TelemetryDecoder getTelemetryDecoder(){
+		return oTelemetryDecoder;
+	}
+	
+	/**
+	 * Send discrete commands such as expressions over the ReliableChannel,
+	 * set points stay best-effort
+	 */
+	public void setReliableCommands(boolean enabled){
+		reliableCommands = enabled;
+	}
+	
+	/**
+	 * Return the reliable channel, to read its counters
+	 */
+	public ReliableChannel getReliableChannel(){
+		return oReliable;
+	}
+	
+	/**
+	 * Set the delays between reconnect attempts
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy){
+		oReconnectPolicy = policy;
+	}
+	
+	/**
+	 * Return the amount of successful automatic reconnects
+	 */
+	public int getReconnectCount(){
+		return reconnects;
+	}
+	
+	/**
+	 * Return the time from link loss to restored link of the last reconnect in milliseconds
+	 */
+	public long getLastReconnectTime(){
+		return lastReconnectTime;
+	}
+	
+	/**
+	 * Return the worst time from link loss to restored link in milliseconds
+	 */
+	public long getMaxReconnectTime(){
+		return maxReconnectTime;
+	}
+	
+	/**
+	 * Return the average time from link loss to restored link in milliseconds
+	 */
+	public long getAverageReconnectTime(){
+		return (reconnects == 0) ? 0 : (totalReconnectTime / reconnects);
+	}
+	
+	/**
+	 * Register a FrameListener, it is called on the ConnectedThread for
+	 * every decoded frame received from the robot
+	 * @param listener The FrameListener to register or null
+	 */
+	public void setFrameListener(FrameListener listener){
+		oFrameListener = listener;
+	}
+	
+	/**
+	 * Choose how received data reaches the UI-Activity
+	 * @param mode  One of the FrameBatcher.MODE_ constants, MODE_RAW publishes
+	 * every read as a LinkEvent, the other modes gather decoded frames and
+	 * deliver them to the FrameBatchListener of the BluetoothServiceHandler
+	 * at most once per display frame
+	 */
+	public void setDeliveryMode(int mode){
+		oBatcher.setMode(mode);
+	}
+	
+	/**
+	 * Set the minimum time between two deliveries of received frames
+	 * @param millis  The interval in milliseconds, 0 for every display frame
+	 */
+	public void setDeliveryInterval(long millis){
+		oBatcher.setInterval(millis);
+	}
+	
+	/**
+	 * Return the latency histograms of the link pipeline, to dump or reset them
+	 */
+	public LatencyStats getLatencyStats(){
+		return oLatency;
+	}
+	
+	/**
+	 * Return the link quality estimator, to configure the heartbeat and the
+	 * dead link timeout or to read the RTT, loss and throughput
+	 */
+	public LinkQuality getLinkQuality(){
+		return oQuality;
+	}
+	
+	/**
+	 * Return the controller of the telemetry and set point rates, to set the
+	 * latency target or to switch it off
+	 */
+	public RateController getRateController(){
+		return oRateController;
+	}
+	
+	/**
+	 * Record every chunk received and written from now on, also over reconnects
+	 * @param recorder  The SessionRecorder or null to stop recording
+	 */
+	public void setSessionRecorder(SessionRecorder recorder){
+		
+		oRecorder = recorder;
+		
+		ConnectedThread thread = oConnectedThread.get();
+		
+		if(thread != null){
+			thread.setSessionRecorder(recorder);
+		}
+	}
+	
+	/**
+	 * Play a recording back as if it was received, through the decoder to the
+	 * UI-Activity. Meant for use without a connection, a connect() or stop()
+	 * makes the replayed chunks stale.
+	 * @param file  A file written by a SessionRecorder
+	 * @param speed  The speed factor, SessionReplay.SPEED_MAX for no waiting
+	 * @return The started SessionReplay, to cancel it or read its counters
+	 */
+	public SessionReplay replay(File file, double speed){
+		
+		oDecoder.reset();
+		oTelemetryDecoder.reset();
+		
+		SessionReplay replay = new SessionReplay(file, this, oState.getGeneration());
+		replay.setSpeed(speed);
+		replay.start();
+		
+		return replay;
+	}
+	
+	/**
+	 * Return the queue of outgoing frames, to configure its policy and read its counters
+	 */
+	public OutputQueue getOutputQueue(){
+		return oQueue;
+	}
+	
+	/**
+	 * Return how long the last attempt of a connect phase took
+	 * @param phase One of the ConnectListener.PHASE_ constants
+	 * @return The duration in milliseconds or -1 if the phase was not tried
+	 */
+	public long getConnectPhaseTime(int phase){
+		return phaseTimes[phase];
 	}
 	
 	/**
 	 * Return the current state of the BluetoothService
 	 */
-	public synchronized int getState(){
-		return iState;
+	public int getState(){
+		return oState.getState();
 	}
 	
 	/**
-	 * Set the current state of the BluetoothService and report
+	 * Return the current connection generation, every connect() and stop() starts a new one
+	 */
+	public int getGeneration(){
+		return oState.getGeneration();
+	}
+	
+	/**
+	 * Change the state if the generation is still current and report
 	 * this state change to the UI-Activity
-	 * @param state An integer defining the the current connection state
+	 * @return False if the state or generation changed in the meantime
 	 */
-	private synchronized void setState(int nextState){
+	private boolean transition(int generation, int from, int to){
 		
-		Log.d(TAG, "next state: " + nextState);
+		if(!oState.transition(generation, from, to)){
+			return false;
+		}
 		
-		// Obtain new message from the global message pool
-		Message msg = oHandler.obtainMessage(MESSAGE_STATE_CHANGED);
+		postTransition(generation, from, to);
+		return true;
+	}
+	
+	/**
+	 * Publish a state change to the UI-Activity
+	 */
+	private void postTransition(int generation, int from, int to){
+		
+		if(from == to){
+			return;
+		}
+		
+		Log.d(TAG, "state " + from + " -> " + to + ", generation " + generation);
 		
-		// Set bundle of data
-		Bundle bundle = new Bundle();
-		bundle.putString(KEY_DEVICE_NAME, deviceName);
-		bundle.putInt(KEY_CURRENT_STATE, iState);
-		bundle.putInt(KEY_NEXT_STATE, nextState);
-		msg.setData(bundle);
+		LinkEvent event = oEvents.claim(true);
 		
-		// It's know save to change the state
-		iState = nextState;
+		if(event == null){
+			Log.w(TAG, "event ring full, transition " + from + "-" + to + " lost");
+			return;
+		}
 		
-		// Send message the specified target
-		msg.sendToTarget();
+		event.setState(from, to, generation, deviceName);
+		oEvents.publish(event);
 	}
 	
 	/**
 	 * Start the ConnectThread to initiate a connection to a remote device
 	 * @param device The Bluetooth device to connect
 	 */
-	public synchronized void connect(BluetoothDevice device){
+	public void connect(BluetoothDevice device){
+		
+		// Always cancel discovery because it will slow down a connection
+		oAdapter.cancelDiscovery();
+		
+		connect(new RfcommConnectStrategy(device));
+	}
+	
+	/**
+	 * Start the ConnectThread to initiate a connection over any Transport,
+	 * it is not reconnected once the link drops
+	 * @param transport The Transport to connect
+	 */
+	public void connect(Transport transport){
+		connect(ConnectStrategy.of(transport));
+	}
+	
+	/**
+	 * Start the ConnectThread to initiate a connection
+	 * @param strategy The ConnectStrategy describing how to connect
+	 */
+	public void connect(ConnectStrategy strategy){
 		
 		Log.d(TAG, "connect() called");
 		
-		// Clean start stop all threads currently running
+		// Clean start stop all threads currently running, this starts a new generation
 		stop();
 		
-		// Always cancel discovery because it will slow down a connection
-		oAdapter.cancelDiscovery();
-		
 		// Save device name to connect
-		deviceName = device.getName();
+		deviceName = strategy.getName();
+		
+		// A new session, nothing queued for a previous device may leak into it
+		oLastStrategy = strategy;
+		oQueue.clear();
+		
+		int generation = oState.getGeneration();
+		
+		// Transit from STATE_NONE to STATE_CONNECTING, fails if another stop() came first
+		if(transition(generation, STATE_NONE, STATE_CONNECTING)){
+			startConnectThread(strategy, generation);
+		}
+	}
+	
+	private void startConnectThread(ConnectStrategy strategy, int generation){
+		
+		Arrays.fill(phaseTimes, -1);
 		
 		// Start the thread to connect with the given device
-		oConnectThread = new ConnectThread(device);
-		oConnectThread.register(this);
-		oConnectThread.start();
+		ConnectThread thread = new ConnectThread(strategy, generation);
+		thread.register(this);
+		oConnectThread.set(thread);
+		thread.start();
+		
+		// stop() may have run before oConnectThread was set
+		if((oState.getGeneration() != generation) && oConnectThread.compareAndSet(thread, null)){
+			thread.cancel();
+		}
+	}
+	
+	/**
+	 * Schedule the next reconnect attempt or give up
+	 */
+	private void scheduleReconnect(int generation){
 		
-		// Transit from STATE_NONE to STATE_CONNECTING
-		setState(STATE_CONNECTING);
+		if(!oReconnectPolicy.shouldRetry(reconnectAttempt)){
+			
+			Log.w(TAG, "giving up after " + reconnectAttempt + " reconnect attempts");
+			
+			// Reconnect failed : transit from STATE_RECONNECTING to STATE_NONE
+			transition(generation, STATE_RECONNECTING, STATE_NONE);
+			return;
+		}
+		
+		long delay = oReconnectPolicy.nextDelay(reconnectAttempt);
+		reconnectAttempt++;
+		
+		Log.d(TAG, "reconnect attempt " + reconnectAttempt + " in " + delay + " ms");
+		
+		oHandler.postDelayed(oReconnectTask, delay);
 	}
 	
-	private synchronized void connected(BluetoothSocket socket){
+	private void reconnect(){
+		
+		int generation = reconnectGeneration;
+		
+		// stop() or connect() came first
+		if(!oState.is(generation, STATE_RECONNECTING)){
+			return;
+		}
+		
+		startConnectThread(oLastStrategy, generation);
+	}
+	
+	private void connected(int generation, Transport transport){
 		
 		Log.d(TAG, "connected() called");
 		
-			
+		int from = oState.is(generation, STATE_RECONNECTING) ? STATE_RECONNECTING : STATE_CONNECTING;
+		
 		// Start the thread to manage the connection and peform transmissions
-		oConnectedThread = new ConnectedThread(socket);
-		oConnectedThread.register(this);
-		oConnectedThread.start();
+		ConnectedThread thread = new ConnectedThread(transport, oPool, oQueue, generation);
+		thread.register(this);
+		thread.setLatencyStats(oLatency);
+		thread.setSessionRecorder(oRecorder);
+		thread.setLinkQuality(oQuality, this);
+		
+		// Transit from STATE_CONNECTING or STATE_RECONNECTING to STATE_CONNECTED
+		if(!oState.transition(generation, from, STATE_CONNECTED)){
+			
+			// stop() came first, nobody owns this Transport
+			Log.d(TAG, "stale connection, generation " + generation);
+			close(transport);
+			return;
+		}
+		
+		// Report before the ConnectedThread can report a disconnect
+		postTransition(generation, from, STATE_CONNECTED);
 		
+		if(from == STATE_RECONNECTING){
+			
+			// Session restored, the OutputQueue kept the pending set points
+			long elapsed = (System.nanoTime() - disconnectTime) / 1000000L;
+			
+			reconnects++;
+			lastReconnectTime = elapsed;
+			totalReconnectTime += elapsed;
+			maxReconnectTime = Math.max(maxReconnectTime, elapsed);
+			
+			Log.d(TAG, "reconnected after " + elapsed + " ms and " + reconnectAttempt + " attempts");
+		}
+		
+		// A robot without flow control is written to without a limit, the first credit frame switches it on
+		oQueue.resetCredits();
+		oRateController.reset(System.nanoTime());
+		pace(oRateController.getCommandInterval());
+		
+		// The previous connection may have lost the unacknowledged commands
+		oReliable.resend();
+		// The telemetry encoding is negotiated on the first heartbeats
+		appliedEncoding = -1;
+		encodingRequests = 0;
+		
+		oDecoder.reset();
+		oTelemetryDecoder.reset();
+		oConnectedThread.set(thread);
+		thread.start();
+		
+		// stop() may have run before oConnectedThread was set
+		if((oState.getGeneration() != generation) && oConnectedThread.compareAndSet(thread, null)){
+			thread.cancel();
+		}
+	}
+	
+	private static void close(Transport transport){
+		
+		try{
+			transport.close();
+		}catch(IOException e){
+			Log.e(TAG, "unable to close transport", e);
+		}
+	}
+	
+	/**
+	 * Return true while frames can be queued, a reconnecting link keeps them
+	 */
+	private boolean isSessionOpen(){
+		
+		int state = oState.getState();
+		
+		return (state == STATE_CONNECTED) || (state == STATE_RECONNECTING);
+	}
+	
+	/**
+	 * Queue raw bytes for the connected device
+	 * @return False if there is no connection or the OutputQueue rejected the bytes
+	 */
+	public boolean write(byte[] buffer, int offset, int length){
+		return write(buffer, offset, length, System.nanoTime());
+	}
+	
+	/**
+	 * Queue bytes and record the enqueue stage
+	 * @param start  The System.nanoTime() the command was issued
+	 */
+	private boolean write(byte[] buffer, int offset, int length, long start){
+		
+		if(!isSessionOpen()){
+			return false;
+		}
+		
+		boolean queued = oQueue.offer(buffer, offset, length);
+		oLatency.recordSince(LatencyStats.STAGE_ENQUEUE, start);
+		
+		return queued;
+	}
+	
+	/**
+	 * Send a complete frame over the ReliableChannel, it is sent again until
+	 * the robot acknowledges it, over reconnects as well
+	 * @return False if there is no connection or the window of unacknowledged frames is full
+	 */
+	public boolean writeReliable(byte[] frame, int offset, int length){
+		return writeReliable(frame, offset, length, System.nanoTime());
+	}
+	
+	private boolean writeReliable(byte[] frame, int offset, int length, long start){
+		
+		if(!isSessionOpen()){
+			return false;
+		}
+		
+		boolean queued = oReliable.send(frame, offset, length);
+		oLatency.recordSince(LatencyStats.STAGE_ENQUEUE, start);
+		
+		return queued;
+	}
+	
+	/**
+	 * Queue a set point frame, an unsent older value with the same key is dropped
+	 * @param start  The System.nanoTime() the command was issued
+	 * @return False if there is no connection
+	 */
+	private boolean writeSetpoint(int key, byte[] buffer, int offset, int length, long start){
+		
+		if(!isSessionOpen()){
+			return false;
+		}
+		
+		oQueue.offerSetpoint(key, buffer, offset, length);
+		oLatency.recordSince(LatencyStats.STAGE_ENQUEUE, start);
+		
+		return true;
+	}
+	
+	/**
+	 * Set the speed of both tracks, a newer value replaces one that is still queued
+	 */
+	public boolean drive(int left, int right){
+		
+		long start = System.nanoTime();
 		
-		// Transit from STATE_CONNECTING to STATE_CONNECTED
-		setState(STATE_CONNECTED);
+		synchronized(oTxLock){
+			return writeSetpoint(SETPOINT_DRIVE, txFrame, 0, FrameCodec.encodeDrive(txFrame, 0, left, right), start);
+		}
+	}
+	
+	/**
+	 * Set the head tilt, a newer value replaces one that is still queued
+	 */
+	public boolean tilt(int angle){
+		
+		long start = System.nanoTime();
+		
+		synchronized(oTxLock){
+			return writeSetpoint(SETPOINT_TILT, txFrame, 0, FrameCodec.encodeTilt(txFrame, 0, angle), start);
+		}
+	}
+	
+	/**
+	 * Halt all motors, the stop frame jumps ahead of all queued frames and
+	 * discards the drive and tilt set points that were not written yet
+	 * @return False if there is no connection
+	 */
+	public boolean halt(){
+		
+		if(!isSessionOpen()){
+			return false;
+		}
+		
+		// Own frame buffer, a stop must not wait for oTxLock
+		long start = System.nanoTime();
+		oQueue.offerUrgent(haltFrame, 0, haltLength, HALT_KEYS);
+		oLatency.recordSince(LatencyStats.STAGE_ENQUEUE, start);
+		
+		return true;
+	}
+	
+	/**
+	 * Play an expression on the robot
+	 * @return False if there is no connection or the OutputQueue is full, the
+	 * 	expression was not sent
+	 */
+	public boolean expression(int expression){
+		
+		long start = System.nanoTime();
+		
+		synchronized(oTxLock){
+			
+			int length = FrameCodec.encodeExpression(txFrame, 0, expression);
+			
+			return reliableCommands ? writeReliable(txFrame, 0, length, start) : write(txFrame, 0, length, start);
+		}
 	}
 	
 	/**
 	 * Stop all running threads
 	 */
-	public synchronized void stop(){
+	public void stop(){
 		
 		Log.d(TAG, "stop threads");
 		
-		if(oConnectThread != null){
-			oConnectThread.cancel();
-			oConnectThread = null;
+		// No automatic reconnect after an explicit stop
+		oHandler.removeCallbacks(oReconnectTask);
+		
+		// Start a new generation, the callbacks of the running threads are stale from here on
+		long previous = oState.advance(STATE_NONE);
+		
+		// Commands for this session are not sent to the next one
+		oReliable.clear();
+		
+		ConnectThread connectThread = oConnectThread.getAndSet(null);
+		
+		if(connectThread != null){
+			connectThread.cancel();
 		}
 		
-		if(oConnectedThread != null){
-			oConnectedThread.cancel();
-			oConnectedThread = null;
+		ConnectedThread connectedThread = oConnectedThread.getAndSet(null);
+		
+		if(connectedThread != null){
+			connectedThread.cancel();
 		}
 		
-		setState(STATE_NONE);
+		postTransition(ConnectionState.generation(previous) + 1, ConnectionState.state(previous), STATE_NONE);
 	}
 	
-
+	
 	@Override
-	public void onConnect(int flag, BluetoothDevice device, BluetoothSocket socket) {
+	public void onConnectPhase(int generation, int phase, int flag, long elapsed) {
 		
-		Log.d(TAG, "onConnect() called, " + flag);
+		Log.d(TAG, "onConnectPhase() called, " + phase + ", " + flag + ", " + elapsed + " ms");
 		
-		// Reset the ConnectThread because it's done
-		oConnectedThread = null;
+		if(generation == oState.getGeneration()){
+			phaseTimes[phase] = elapsed;
+		}
+	}
+	
+	@Override
+	public void onConnect(int generation, int flag, Transport transport) {
+		
+		Log.d(TAG, "onConnect() called, " + flag + ", generation " + generation);
+		
+		// Reset the ConnectThread because it's done, unless a newer one replaced it
+		ConnectThread thread = oConnectThread.get();
+		
+		if((thread != null) && (thread.getGeneration() == generation)){
+			oConnectThread.compareAndSet(thread, null);
+		}
 		
 		// If connection succeed then start ConnectedThread
 		if(flag == ConnectListener.CONNECT_SUCCEED){
-			connected(socket);
-		}else{
-			// Connection failed : transit from STATE_CONNECTING to STATE_NONE
-			setState(STATE_NONE);
+			connected(generation, transport);
+		}else if(oState.is(generation, STATE_RECONNECTING)){
+			// Reconnect attempt failed : try again later
+			scheduleReconnect(generation);
+		}else if(!transition(generation, STATE_CONNECTING, STATE_NONE)){
+			// Connection failed : transit from STATE_CONNECTING to STATE_NONE, unless stale
+			Log.d(TAG, "stale onConnect, generation " + generation);
 		}
 	}
-
+	
 	
 	@Override
-	public void onReceive(byte[] buffer, int length) {
+	public void onReceive(int generation, ReceiveBuffer buffer) {
+		
+		// Bytes of a connection that was already stopped belong to no session
+		if(generation != oState.getGeneration()){
+			buffer.release();
+			return;
+		}
+		
+		// Decode frames on this thread, before the buffer is handed over
+		long start = System.nanoTime();
+		rxTimestamp = buffer.getTimestamp();
+		oDecoder.feed(buffer.getData(), 0, buffer.getLength());
+		oLatency.recordSince(LatencyStats.STAGE_DECODE, start);
+		
+		// Frames were gathered by the FrameBatcher
+		if(oBatcher.getMode() != FrameBatcher.MODE_RAW){
+			buffer.release();
+			return;
+		}
+		
+		// Publish obtained bytes to the UI-Activity, the LinkEventRing releases the buffer
+		LinkEvent event = oEvents.claim(false);
 		
-		Log.d(TAG, "onReceive() called, " + length);
+		if(event == null){
+			buffer.release();
+			return;
+		}
+		
+		event.setData(generation, buffer);
+		oEvents.publish(event);
+	}
 	
-		// Send obtained bytes to the UI-Activity
-		oHandler.obtainMessage(MESSAGE_DATA, length, 0, buffer).sendToTarget();
+	@Override
+	public void onDisconnect(int generation) {
+		
+		Log.d(TAG, "onDisconnect() called, generation " + generation);
+		
+		// Reset ConnectedThread because it's done, unless a newer one replaced it
+		ConnectedThread thread = oConnectedThread.get();
+		
+		if((thread != null) && (thread.getGeneration() == generation)){
+			oConnectedThread.compareAndSet(thread, null);
+		}
+		
+		// A closed Transport cannot connect again, only a reusable strategy reconnects
+		if(autoReconnect && (oLastStrategy != null) && oLastStrategy.isReusable()
+				&& oState.is(generation, STATE_CONNECTED)){
+			
+			disconnectTime = System.nanoTime();
+			reconnectAttempt = 0;
+			reconnectGeneration = generation;
+			
+			// Transit from STATE_CONNECTED to STATE_RECONNECTING
+			if(transition(generation, STATE_CONNECTED, STATE_RECONNECTING)){
+				scheduleReconnect(generation);
+			}
+		
+		}else if(!transition(generation, STATE_CONNECTED, STATE_NONE)){
+			
+			// Transit from STATE_CONNECTED to STATE_NONE, unless stop() came first
+			Log.d(TAG, "stale onDisconnect, generation " + generation);
+		}
 	}
 	
 	@Override
-	public void onDisconnect() {
+	public void onQualityChanged(int generation, int from, int to) {
 		
-		Log.d(TAG, "onDisconnect() called");
-
-		// Reset ConnectedThread because it's done
-		oConnectedThread = null;
+		// A HeartbeatThread of a previous connection
+		if(!oState.is(generation, STATE_CONNECTED)){
+			return;
+		}
+		
+		Log.d(TAG, "link quality " + from + " -> " + to + ", generation " + generation);
+		
+		LinkEvent event = oEvents.claim(true);
+		
+		if(event == null){
+			Log.w(TAG, "event ring full, quality change " + from + "-" + to + " lost");
+			return;
+		}
+		
+		event.setQuality(from, to, generation);
+		oEvents.publish(event);
+	}
+	
+	@Override
+	public void onHeartbeat(int generation, long now) {
+		
+		if(!oState.is(generation, STATE_CONNECTED)){
+			return;
+		}
+		
+		oReliable.retransmit(now, oQuality);
+		
+		boolean request = oRateController.update(now, oQuality, oQueue);
+		
+		pace(oRateController.getCommandInterval());
+		
+		if(request){
+			
+			synchronized(oTxLock){
+				writeSetpoint(SETPOINT_TELEMETRY_RATE, txFrame, 0, FrameCodec.encodeTelemetryRate(txFrame, 0, oRateController.getTelemetryRate()), now);
+			}
+		}
+		
+		// Ask for the telemetry encoding until the robot answers, an older robot never does
+		if((appliedEncoding < 0) && (encodingRequests < MAX_ENCODING_REQUESTS)){
+			
+			encodingRequests++;
+			
+			synchronized(oTxLock){
+				writeSetpoint(SETPOINT_TELEMETRY_ENCODING, txFrame, 0, FrameCodec.encodeTelemetryEncoding(txFrame, 0, telemetryEncoding), now);
+			}
+		}
+	}
+	
+	/**
+	 * Write the drive and tilt set points at most once per interval
+	 * @param interval  The minimum time between two set points in nanoseconds
+	 */
+	private void pace(long interval){
+		oQueue.setPacing(SETPOINT_DRIVE, interval);
+		oQueue.setPacing(SETPOINT_TILT, interval);
+	}
+	
+	@Override
+	public void onFrame(int type, byte[] payload, int offset, int length) {
+		
+		// Credits belong to the writer, a replayed session must not grant them
+		if(type == FrameCodec.TYPE_CREDIT){
+			
+			if((length == FrameCodec.CREDIT_SIZE) && (oState.getState() == STATE_CONNECTED)){
+				oQueue.grantCredits(FrameCodec.getInt(payload, offset));
+			}
+			return;
+		}
+		
+		// Heartbeat answers belong to the LinkQuality
+		if((type == FrameCodec.TYPE_ACK) && (length == FrameCodec.PING_SIZE + 1) && ((payload[offset] & 0xff) == FrameCodec.TYPE_PING)){
+			
+			if(oState.getState() == STATE_CONNECTED){
+				oQuality.onPong(FrameCodec.getShort(payload, offset + 1) & 0xffff, rxTimestamp);
+			}
+			return;
+		}
+		
+		// Sequences continue over reconnects, a late acknowledgement still counts
+		if((type == FrameCodec.TYPE_RELIABLE_ACK) && (length == FrameCodec.RELIABLE_ACK_SIZE)){
+			
+			if(oState.getState() != STATE_NONE){
+				oReliable.onAck(FrameCodec.getShort(payload, offset) & 0xffff, rxTimestamp);
+			}
+			return;
+		}
+		
+		// Answers to telemetry rate requests belong to the RateController
+		if((type == FrameCodec.TYPE_ACK) && (length == 2 * FrameCodec.TELEMETRY_RATE_SIZE + 1) && ((payload[offset] & 0xff) == FrameCodec.TYPE_TELEMETRY_RATE)){
+			
+			if(oState.getState() == STATE_CONNECTED){
+				oRateController.onTelemetryRateAck(FrameCodec.getShort(payload, offset + 1) & 0xffff, FrameCodec.getShort(payload, offset + 3) & 0xffff);
+			}
+			return;
+		}
+		
+		// Answers to telemetry encoding requests
+		if((type == FrameCodec.TYPE_ACK) && (length == 2 * FrameCodec.TELEMETRY_ENCODING_SIZE + 1) && ((payload[offset] & 0xff) == FrameCodec.TYPE_TELEMETRY_ENCODING)){
+			
+			if((oState.getState() == STATE_CONNECTED) && ((payload[offset + 1] & 0xff) == telemetryEncoding)){
+				appliedEncoding = payload[offset + 2] & 0xff;
+			}
+			return;
+		}
+		
+		// Listeners only see raw telemetry
+		if(type == FrameCodec.TYPE_TELEMETRY_DELTA){
+			
+			int count = oTelemetryDecoder.decode(payload, offset, length, rxChannels, rxValues);
+			
+			if(count < 0){
+				return;
+			}
+			
+			FrameCodec.encodeTelemetry(rxTelemetry, 0, rxChannels, rxValues, count);
+			
+			type = FrameCodec.TYPE_TELEMETRY;
+			payload = rxTelemetry;
+			offset = FrameCodec.HEADER_SIZE;
+			length = count * FrameCodec.TELEMETRY_SAMPLE_SIZE;
+		}
+		
+		if(type == FrameCodec.TYPE_TELEMETRY){
+			oRateController.onTelemetry();
+		}
+		
+		FrameListener listener = oFrameListener;
+		
+		if(listener != null){
+			listener.onFrame(type, payload, offset, length);
+		}
 		
-		// Transit from STATE_CONNECTED to STATE_NONE
-		setState(STATE_NONE);
+		oBatcher.add(type, payload, offset, length, rxTimestamp);
 	}
 }
@@ -1,22 +1,172 @@
 package romo;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.content.Context;
-import android.os.Bundle;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.widget.Toast;
 
-public class BluetoothServiceHandler extends Handler {
+/**
+ * Consumer side of the LinkEventRing of a BluetoothService, create it on the
+ * UI thread. Published events are drained in one batch per display frame,
+ * on a Choreographer frame callback or, before Jelly Bean, a message aligned
+ * to the next frame interval. Connection state changes are shown as toasts
+ * and every event is passed on to the registered LinkEventListener. In the
+ * other modes than FrameBatcher.MODE_RAW the received frames are handed to
+ * the FrameBatchListener in the same frame callback.
+ */
+public class BluetoothServiceHandler extends Handler implements LinkEventListener, FrameBatchListener {
 	
 	// Debugging
 	private static final String TAG = "BluetoothServiceHandler";
 	
+	// Message types of the fallback without Choreographer
+	private static final int MESSAGE_DRAIN = 0;
+	
+	// Frame interval of the fallback in milliseconds
+	private static final long FRAME_INTERVAL = 16;
+	
+	// Events handled per frame, the rest waits for the next frame
+	private static final int MAX_BATCH = 512;
+	
 	// Application context
 	private final Context oContext;
 	
-	public BluetoothServiceHandler(Context context){
+	private final LinkEventRing oRing;
+	private final FrameBatcher oBatcher;
+	private final FrameDrain oFrameDrain;
+	private volatile LinkEventListener oListener;
+	private volatile FrameBatchListener oBatchListener;
+	private volatile LatencyStats oLatency;
+	
+	// Set while a drain is scheduled
+	private final AtomicBoolean scheduled;
+	
+	/**
+	 * Initialize BluetoothServiceHandler on the UI thread
+	 * @param context
+	 * @param listener  The LinkEventListener called for every event or null
+	 */
+	public BluetoothServiceHandler(Context context, LinkEventListener listener){
+		
 		oContext = context;
+		oListener = listener;
+		oRing = new LinkEventRing();
+		oBatcher = new FrameBatcher();
+		scheduled = new AtomicBoolean();
+		
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+			oFrameDrain = new FrameDrain(this);
+		}else{
+			oFrameDrain = null;
+		}
+		
+		Runnable signal = new Runnable() {
+			
+			@Override
+			public void run() {
+				scheduleDrain();
+			}
+		};
+		
+		oRing.setSignal(signal);
+		oBatcher.setSignal(signal);
+	}
+	
+	/**
+	 * Return the ring the BluetoothService publishes its events in
+	 */
+	public LinkEventRing getEventRing(){
+		return oRing;
+	}
+	
+	/**
+	 * Return the FrameBatcher the BluetoothService gathers received frames in,
+	 * to set its mode and interval and read its counters
+	 */
+	public FrameBatcher getFrameBatcher(){
+		return oBatcher;
+	}
+	
+	/**
+	 * Register a FrameBatchListener
+	 * @param listener The FrameBatchListener to register or null
+	 */
+	public void setFrameBatchListener(FrameBatchListener listener){
+		oBatchListener = listener;
+	}
+	
+	/**
+	 * Record the dispatch and handle stages of received data
+	 * @param stats  The LatencyStats to record in or null
+	 */
+	public void setLatencyStats(LatencyStats stats){
+		oLatency = stats;
+	}
+	
+	/**
+	 * Register a LinkEventListener
+	 * @param listener The LinkEventListener to register or null
+	 */
+	public void register(LinkEventListener listener){
+		oListener = listener;
+	}
+	
+	/**
+	 * Drain on the next frame, called on the producing thread
+	 */
+	private void scheduleDrain(){
+		
+		if(!scheduled.compareAndSet(false, true)){
+			return;
+		}
+		
+		if(oFrameDrain != null){
+			oFrameDrain.post();
+		}else{
+			
+			// Align to the next frame interval of the uptime clock
+			long now = SystemClock.uptimeMillis();
+			sendEmptyMessageAtTime(MESSAGE_DRAIN, now + FRAME_INTERVAL - (now % FRAME_INTERVAL));
+		}
+	}
+	
+	/**
+	 * Stop draining and discard the events still in the ring, so their
+	 * ReceiveBuffers go back to the BufferPool instead of staying pinned
+	 */
+	public void cancel(){
+		
+		if(oFrameDrain != null){
+			oFrameDrain.remove();
+		}
+		
+		removeMessages(MESSAGE_DRAIN);
+		scheduled.set(false);
+		
+		int discarded = oRing.clear();
+		
+		if(discarded > 0){
+			Log.d(TAG, "discarded " + discarded + " undrained events");
+		}
+	}
+	
+	private void drain(long frameTime){
+		
+		// Producers schedule again for anything published from here on
+		scheduled.set(false);
+		
+		oRing.drain(this, MAX_BATCH);
+		
+		// The delivery interval did not elapse yet, look again next frame
+		if(oBatcher.deliver(this, frameTime)){
+			scheduleDrain();
+		}
 	}
 	
 	@Override
@@ -24,44 +174,123 @@ public class BluetoothServiceHandler extends Handler {
 		
 		switch (msg.what) {
 		
-		case BluetoothService.MESSAGE_DATA:
-			
-			//byte[] readBuf = (byte[])msg.obj;
-			Log.i("HANDLER", "!data received " + msg.arg1);
+		case MESSAGE_DRAIN:
+			drain(System.nanoTime());
+			break;
 			
+		default:
 			break;
+		}
+	}
+	
+	@Override
+	public void onEvent(LinkEvent event, boolean endOfBatch) {
+		
+		if(event.getType() == LinkEvent.TYPE_STATE){
+			showTransition(event.getFrom(), event.getTo(), event.getDeviceName());
+		}
+		
+		LinkEventListener listener = oListener;
+		LatencyStats stats = (event.getType() == LinkEvent.TYPE_DATA) ? oLatency : null;
+		long start = System.nanoTime();
+		
+		if(stats != null){
+			stats.record(LatencyStats.STAGE_DISPATCH, start - event.getTimestamp());
+		}
+		
+		if(listener != null){
+			listener.onEvent(event, endOfBatch);
+		}
+		
+		if(stats != null){
+			stats.recordSince(LatencyStats.STAGE_HANDLE, start);
+		}
+	}
+	
+	@Override
+	public void onFrameBatch(FrameBatch batch) {
+		
+		FrameBatchListener listener = oBatchListener;
+		LatencyStats stats = oLatency;
+		long start = System.nanoTime();
+		
+		if(stats != null){
+			stats.record(LatencyStats.STAGE_DISPATCH, start - batch.getFirstTimestamp());
+		}
+		
+		if(listener != null){
+			listener.onFrameBatch(batch);
+		}
 		
-		case BluetoothService.MESSAGE_STATE_CHANGED:
+		if(stats != null){
+			stats.recordSince(LatencyStats.STAGE_HANDLE, start);
+		}
+	}
+	
+	/**
+	 * Report a connection state change to the user
+	 */
+	private void showTransition(int currentState, int nextState, String deviceName){
+		
+		if((currentState == BluetoothService.STATE_NONE) && (nextState == BluetoothService.STATE_CONNECTING)){
 			
-			Bundle bundle = msg.getData();
+			Toast.makeText(oContext, "Connection with device " + deviceName + ".", Toast.LENGTH_LONG).show();
 			
-			String deviceName = bundle.getString(BluetoothService.KEY_DEVICE_NAME);
-			int currentState = bundle.getInt(BluetoothService.KEY_CURRENT_STATE);
-			int nextState = bundle.getInt(BluetoothService.KEY_NEXT_STATE);
+		}else if((currentState == BluetoothService.STATE_CONNECTING) && (nextState == BluetoothService.STATE_NONE)) {
 			
+			Toast.makeText(oContext, "Connection with device " + deviceName + " failed.", Toast.LENGTH_LONG).show();
 			
-			if((currentState == BluetoothService.STATE_NONE) && (nextState == BluetoothService.STATE_CONNECTING)){
-				
-				Toast.makeText(oContext, "Connection with device " + deviceName + ".", Toast.LENGTH_LONG).show();
-				
-			}else if((currentState == BluetoothService.STATE_CONNECTING) && (nextState == BluetoothService.STATE_NONE)) {
-				
-				Toast.makeText(oContext, "Connection with device " + deviceName + " failed.", Toast.LENGTH_LONG).show();
-				
-			}else if((currentState == BluetoothService.STATE_CONNECTING) && (nextState == BluetoothService.STATE_CONNECTED)){
-				
-				Toast.makeText(oContext, "Connection established with: " + deviceName, Toast.LENGTH_LONG).show();
-				
-			}else if((currentState == BluetoothService.STATE_CONNECTED) && (nextState == BluetoothService.STATE_NONE)){
+		}else if((currentState == BluetoothService.STATE_CONNECTING) && (nextState == BluetoothService.STATE_CONNECTED)){
 			
-				Toast.makeText(oContext, "Connection with " + deviceName + " closed", Toast.LENGTH_LONG).show();
-			}else if(currentState != nextState){
-				Log.w(TAG, "Invalid transition: " + currentState + "-" + nextState);
-			}
+			Toast.makeText(oContext, "Connection established with: " + deviceName, Toast.LENGTH_LONG).show();
 			
-		default:
-			break;
+		}else if((currentState == BluetoothService.STATE_CONNECTED) && (nextState == BluetoothService.STATE_NONE)){
+		
+			Toast.makeText(oContext, "Connection with " + deviceName + " closed", Toast.LENGTH_LONG).show();
+			
+		}else if((currentState == BluetoothService.STATE_CONNECTED) && (nextState == BluetoothService.STATE_RECONNECTING)){
+			
+			Toast.makeText(oContext, "Connection with " + deviceName + " lost, reconnecting", Toast.LENGTH_SHORT).show();
+			
+		}else if((currentState == BluetoothService.STATE_RECONNECTING) && (nextState == BluetoothService.STATE_CONNECTED)){
+			
+			Toast.makeText(oContext, "Connection restored with: " + deviceName, Toast.LENGTH_SHORT).show();
+			
+		}else if((currentState == BluetoothService.STATE_RECONNECTING) && (nextState == BluetoothService.STATE_NONE)){
+			
+			Toast.makeText(oContext, "Unable to reconnect with " + deviceName, Toast.LENGTH_LONG).show();
+			
+		}else if(currentState != nextState){
+			
+			// This state will normally never occure
+			Log.w(TAG, "Invalid transition: " + currentState + "-" + nextState);
+		}
+	}
+	
+	/**
+	 * Drains on the Choreographer of the UI thread, only loaded on Jelly Bean and later
+	 */
+	private static class FrameDrain implements Choreographer.FrameCallback {
+		
+		private final BluetoothServiceHandler oHandler;
+		private final Choreographer oChoreographer;
+		
+		FrameDrain(BluetoothServiceHandler handler){
+			oHandler = handler;
+			oChoreographer = Choreographer.getInstance();
 		}
 		
+		void post(){
+			oChoreographer.postFrameCallback(this);
+		}
+		
+		void remove(){
+			oChoreographer.removeFrameCallback(this);
+		}
+		
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			oHandler.drain(frameTimeNanos);
+		}
 	}
 }
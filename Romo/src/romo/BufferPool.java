@@ -0,0 +1,75 @@
+package romo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed slab of ReceiveBuffers allocated once and recycled for the
+ * lifetime of the BluetoothService. When all buffers are in use the
+ * reader blocks until a consumer releases one, so a slow consumer throttles
+ * the link instead of having its data overwritten.
+ */
+public class BufferPool {
+	
+	public static final int DEFAULT_COUNT = 16;
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	private final ArrayBlockingQueue<ReceiveBuffer> oFree;
+	private volatile int starved;
+	
+	/**
+	 * Initialize BufferPool
+	 * @param count  The amount of buffers
+	 * @param capacity  The size of each buffer in bytes
+	 */
+	public BufferPool(int count, int capacity){
+		
+		oFree = new ArrayBlockingQueue<ReceiveBuffer>(count);
+		starved = 0;
+		
+		for(int i=0; i<count; i++){
+			oFree.add(new ReceiveBuffer(this, capacity));
+		}
+	}
+	
+	public BufferPool(){
+		this(DEFAULT_COUNT, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Take a free buffer, blocking while all buffers are handed out
+	 * @return A buffer owned by the caller
+	 */
+	public ReceiveBuffer acquire() throws InterruptedException {
+		
+		ReceiveBuffer buffer = oFree.poll();
+		
+		if(buffer == null){
+			
+			// Only the reader thread acquires, a plain counter is fine
+			starved++;
+			
+			buffer = oFree.take();
+		}
+		
+		buffer.acquired();
+		return buffer;
+	}
+	
+	void recycle(ReceiveBuffer buffer){
+		oFree.offer(buffer);
+	}
+	
+	/**
+	 * Return the amount of buffers currently free
+	 */
+	public int getFreeCount(){
+		return oFree.size();
+	}
+	
+	/**
+	 * Return how many times acquire() had to wait for a release
+	 */
+	public int getStarvedCount(){
+		return starved;
+	}
+}
@@ -0,0 +1,187 @@
+package romo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory byte pipe between one writing and one reading thread.
+ * Unlike java.io.PipedInputStream it does not depend on the liveness of
+ * the writer thread and it never allocates after construction.
+ */
+class BytePipe {
+	
+	private final byte[] ring;
+	private int head;				// next byte to read
+	private int count;				// bytes stored in the ring
+	private boolean writeClosed;	// no more bytes will be written, reader gets end of stream
+	private boolean readClosed;		// reader is gone, writers and readers get an exception
+	
+	private final InputStream oInStream = new InputStream() {
+		
+		private final byte[] one = new byte[1];
+		
+		@Override
+		public int read() throws IOException {
+			return (BytePipe.this.read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return BytePipe.this.read(b, off, len);
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return BytePipe.this.available();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			closeRead();
+		}
+	};
+	
+	private final OutputStream oOutStream = new OutputStream() {
+		
+		private final byte[] one = new byte[1];
+		
+		@Override
+		public void write(int b) throws IOException {
+			one[0] = (byte)b;
+			BytePipe.this.write(one, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			BytePipe.this.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			closeWrite();
+		}
+	};
+	
+	/**
+	 * Initialize BytePipe
+	 * @param capacity The amount of bytes the pipe can hold before a writer blocks
+	 */
+	BytePipe(int capacity){
+		ring = new byte[capacity];
+		head = 0;
+		count = 0;
+	}
+	
+	InputStream getInputStream(){
+		return oInStream;
+	}
+	
+	OutputStream getOutputStream(){
+		return oOutStream;
+	}
+	
+	/**
+	 * Read at least one byte, blocking until data is available
+	 * @return The amount of bytes read or -1 at end of stream
+	 */
+	synchronized int read(byte[] b, int off, int len) throws IOException {
+		
+		if(len == 0){
+			return 0;
+		}
+		
+		while(count == 0){
+			
+			if(readClosed){
+				throw new IOException("pipe closed");
+			}
+			if(writeClosed){
+				return -1;
+			}
+			
+			await();
+		}
+		
+		if(readClosed){
+			throw new IOException("pipe closed");
+		}
+		
+		int n = Math.min(len, count);
+		int first = Math.min(n, ring.length - head);
+		
+		System.arraycopy(ring, head, b, off, first);
+		System.arraycopy(ring, 0, b, off + first, n - first);
+		
+		head = (head + n) % ring.length;
+		count -= n;
+		
+		notifyAll();
+		return n;
+	}
+	
+	/**
+	 * Write all bytes, blocking while the pipe is full
+	 */
+	synchronized void write(byte[] b, int off, int len) throws IOException {
+		
+		while(len > 0){
+			
+			if(readClosed || writeClosed){
+				throw new IOException("pipe closed");
+			}
+			
+			if(count == ring.length){
+				await();
+				continue;
+			}
+			
+			int tail = (head + count) % ring.length;
+			int n = Math.min(len, Math.min(ring.length - count, ring.length - tail));
+			
+			System.arraycopy(b, off, ring, tail, n);
+			
+			count += n;
+			off += n;
+			len -= n;
+			
+			notifyAll();
+		}
+	}
+	
+	synchronized int available() throws IOException {
+		
+		if(readClosed){
+			throw new IOException("pipe closed");
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Signal end of stream, the reader still drains the buffered bytes
+	 */
+	synchronized void closeWrite(){
+		writeClosed = true;
+		notifyAll();
+	}
+	
+	/**
+	 * Drop buffered bytes and fail all pending and future calls
+	 */
+	synchronized void closeRead(){
+		readClosed = true;
+		count = 0;
+		notifyAll();
+	}
+	
+	private void await() throws IOException {
+		
+		try{
+			wait();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		}
+	}
+}
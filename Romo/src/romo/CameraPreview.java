@@ -1,23 +1,56 @@
 package romo;
 
 import java.io.IOException;
+import java.util.List;
 
 import android.content.Context;
 import android.hardware.Camera;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import vision.BufferRecycler;
+import vision.PreviewPipeline;
 
-public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
+public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback, Camera.PreviewCallback, BufferRecycler {
     
 	private static final String TAG = "CameraPreview";
 	
 	private SurfaceHolder mHolder;
     private Camera mCamera;
+    
+    // Receives the preview frames on its own thread, null to only draw them
+    private PreviewPipeline mPipeline;
+
+    // Many cameras report no face detection and refuse startFaceDetection()
+    private final boolean mHardwareFaces;
+
+    // Smallest preview width used while idle
+    private static final int IDLE_MIN_WIDTH = 160;
+
+    // Preview size and fps range of the idle and the active mode
+    private final Camera.Size mIdleSize;
+    private final int[] mIdleFps;
+    private final Camera.Size mActiveSize;
+    private final int[] mActiveFps;
+    private boolean mIdle;
+
+    // The preview only starts once the surface exists
+    private boolean mSurfaceReady;
+
+    // The camera throws if startFaceDetection() is called twice
+    private boolean mFaceDetectionRunning;
 
     public CameraPreview(Context context, Camera camera) {
         super(context);
         mCamera = camera;
+        Camera.Parameters parameters = camera.getParameters();
+        mHardwareFaces = parameters.getMaxNumDetectedFaces() > 0;
+
+        // The active mode keeps the size the camera starts with
+        mActiveSize = parameters.getPreviewSize();
+        mIdleSize = smallestSize(parameters.getSupportedPreviewSizes(), mActiveSize);
+        mActiveFps = fpsRange(parameters.getSupportedPreviewFpsRange(), true);
+        mIdleFps = fpsRange(parameters.getSupportedPreviewFpsRange(), false);
 
         // Install a SurfaceHolder.Callback so we get notified when the
         // underlying surface is created and destroyed.
@@ -25,24 +58,179 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         mHolder.addCallback(this);
         
 		// start face detection feature
-        mCamera.startFaceDetection(); 
+        startFaceDetection();
 
         // deprecated setting, but required on Android versions prior to 3.0
         // mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
     }
 
+    /**
+     * Return false if faces must be found in the preview frames
+     */
+    public boolean hasHardwareFaceDetection() {
+        return mHardwareFaces;
+    }
+
+    /**
+     * Start the face detection of the camera, unless it runs already
+     */
+    public void startFaceDetection() {
+        if (!mHardwareFaces || mFaceDetectionRunning) {
+            return;
+        }
+
+        mCamera.startFaceDetection();
+        mFaceDetectionRunning = true;
+    }
+
+    public void stopFaceDetection() {
+        if (!mFaceDetectionRunning) {
+            return;
+        }
+
+        mFaceDetectionRunning = false;
+
+        try {
+            mCamera.stopFaceDetection();
+        } catch (Exception e){
+          // ignore: the preview stopped it already
+        }
+    }
+
+    /**
+     * The camera stops its face detection with the preview
+     */
+    private void stopPreview() {
+        mFaceDetectionRunning = false;
+
+        try {
+            mCamera.stopPreview();
+        } catch (Exception e){
+          // ignore: tried to stop a non-existent preview
+        }
+    }
+
+    /**
+     * Return the smallest size at least IDLE_MIN_WIDTH wide with the aspect
+     * ratio of the active size, the active size if there is none
+     */
+    private static Camera.Size smallestSize(List<Camera.Size> sizes, Camera.Size active) {
+        Camera.Size best = active;
+
+        for (Camera.Size size : sizes) {
+            boolean sameRatio = size.width * active.height == size.height * active.width;
+
+            if (sameRatio && (size.width >= IDLE_MIN_WIDTH) && (size.width < best.width)) {
+                best = size;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Return the range with the highest maximum fps, or the lowest one,
+     * null if the camera reports none
+     */
+    private static int[] fpsRange(List<int[]> ranges, boolean highest) {
+        int[] best = null;
+
+        if (ranges == null) {
+            return null;
+        }
+
+        for (int[] range : ranges) {
+            int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+
+            if ((best == null) || (highest ? max > best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    : max < best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX])) {
+                best = range;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Switch between a small preview at a low rate without face detection
+     * and the full preview with face detection. The preview restarts, the
+     * pipeline gets buffers of the new size. Before the surface is created
+     * only the parameters are set.
+     */
+    public void setIdle(boolean idle) {
+        if (idle == mIdle) {
+            return;
+        }
+
+        mIdle = idle;
+
+        if (idle) {
+            stopFaceDetection();
+        }
+
+        if (mSurfaceReady) {
+            stopPreview();
+        }
+
+        Camera.Size size = idle ? mIdleSize : mActiveSize;
+        int[] fps = idle ? mIdleFps : mActiveFps;
+
+        Camera.Parameters parameters = mCamera.getParameters();
+        parameters.setPreviewSize(size.width, size.height);
+
+        if (fps != null) {
+            parameters.setPreviewFpsRange(fps[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], fps[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        }
+
+        try {
+            mCamera.setParameters(parameters);
+
+            if (!mSurfaceReady) {
+                return;
+            }
+
+            startPipeline();
+            mCamera.startPreview();
+
+            if (!idle) {
+                startFaceDetection();
+            }
+        } catch (Exception e){
+            Log.d(TAG, "Error switching camera preview: " + e.getMessage());
+        }
+    }
+
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    /**
+     * Deliver the NV21 preview frames to a PreviewPipeline, set before the
+     * surface is created. The pipeline owns the callback buffers.
+     */
+    public void setPreviewPipeline(PreviewPipeline pipeline) {
+        mPipeline = pipeline;
+    }
+
     public void surfaceCreated(SurfaceHolder holder) {
         // The Surface has been created, now tell the camera where to draw the preview.
         try {
             mCamera.setPreviewDisplay(holder);
+            startPipeline();
             mCamera.startPreview();
+            mSurfaceReady = true;
         } catch (IOException e) {
             Log.d(TAG, "error setting camera preview: " + e.getMessage());
         }
     }
 
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // empty. Take care of releasing the Camera preview in your activity.
+        // Take care of releasing the Camera preview in your activity.
+        mSurfaceReady = false;
+
+        if (mPipeline != null) {
+            mPipeline.stop();
+        }
     }
 
     public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
@@ -55,23 +243,46 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
 
         // stop preview before making changes
-        try {
-            mCamera.stopPreview();
-        } catch (Exception e){
-          // ignore: tried to stop a non-existent preview
-        }
+        stopPreview();
 
         // set preview size and make any resize, rotate or
         // reformatting changes here
 
-        // start preview with new settings
+        // start preview with new settings, the pipeline allocates buffers of the new size
         try {
             mCamera.setPreviewDisplay(mHolder);
+            startPipeline();
             mCamera.startPreview();
 
-            mCamera.startFaceDetection();
+            if (!mIdle) {
+                startFaceDetection();
+            }
         } catch (Exception e){
             Log.d(TAG, "Error starting camera preview: " + e.getMessage());
         }
     }
+
+    /**
+     * Register the callback buffers of the pipeline, NV21 is the default preview format
+     */
+    private void startPipeline() {
+        if (mPipeline == null) {
+            return;
+        }
+
+        Camera.Size size = mCamera.getParameters().getPreviewSize();
+        mCamera.setPreviewCallbackWithBuffer(this);
+        mPipeline.start(size.width, size.height);
+    }
+
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        // Returns at once, the frame is processed on the pipeline thread
+        if (mPipeline != null) {
+            mPipeline.submit(data);
+        }
+    }
+
+    public void recycle(byte[] buffer) {
+        mCamera.addCallbackBuffer(buffer);
+    }
 }
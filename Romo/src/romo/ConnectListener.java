@@ -1,12 +1,33 @@
 package romo;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-
 public interface ConnectListener {
 	
 	public static final int CONNECT_SUCCEED =  1;
 	public static final int CONNECT_FAILED  = -1;
+	public static final int CONNECT_TIMEOUT = -2;
+	public static final int CONNECT_CANCELLED = -3;
+	
+	// Connect phases reported by onConnectPhase
+	public static final int PHASE_TRANSPORT = 0;				// single Transport, no fallback
+	public static final int PHASE_CACHED_CHANNEL = 1;			// RFCOMM channel that connected last time
+	public static final int PHASE_SDP = 2;						// SDP lookup of the SPP UUID
+	public static final int PHASE_DIRECT_CHANNEL = 3;			// default RFCOMM channel
+	public static final int PHASE_COUNT = 4;
 		
-	public void onConnect(int flag, BluetoothDevice device, BluetoothSocket oSocket);
+	/**
+	 * Called on the ConnectThread when the attempt ended
+	 * @param generation  The generation the ConnectThread was started with
+	 * @param flag  CONNECT_SUCCEED or CONNECT_FAILED
+	 * @param transport  The connected Transport or null
+	 */
+	public void onConnect(int generation, int flag, Transport transport);
+	
+	/**
+	 * Called on the ConnectThread after every connect phase
+	 * @param generation  The generation the ConnectThread was started with
+	 * @param phase  One of the PHASE_ constants
+	 * @param flag  One of the CONNECT_ constants
+	 * @param elapsed  The time spent in this phase in milliseconds
+	 */
+	public void onConnectPhase(int generation, int phase, int flag, long elapsed);
 }
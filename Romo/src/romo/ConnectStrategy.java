@@ -0,0 +1,121 @@
+package romo;
+
+import java.io.IOException;
+
+/**
+ * Describes how ConnectThread reaches a remote device: an ordered list of
+ * phases, each producing a Transport to try, with a timeout per phase and a
+ * hard deadline for the whole attempt. The first phase that connects wins.
+ */
+public abstract class ConnectStrategy {
+	
+	public static final long DEFAULT_DEADLINE = 8000L;				// ms
+	
+	private long deadline;
+	
+	protected ConnectStrategy(){
+		deadline = DEFAULT_DEADLINE;
+	}
+	
+	/**
+	 * Wrap a single Transport, for links that have only one way to connect.
+	 * A Transport connects once, so the strategy is not reusable.
+	 */
+	public static ConnectStrategy of(final Transport transport){
+		
+		return new ConnectStrategy() {
+			
+			@Override
+			public String getName() {
+				return transport.getName();
+			}
+			
+			@Override
+			public int getPhaseCount() {
+				return 1;
+			}
+			
+			@Override
+			public int getPhase(int index) {
+				return ConnectListener.PHASE_TRANSPORT;
+			}
+			
+			@Override
+			public long getPhaseTimeout(int index) {
+				return getDeadline();
+			}
+			
+			@Override
+			public Transport createTransport(int index) {
+				return transport;
+			}
+			
+			@Override
+			public boolean isReusable() {
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Return the maximum time in milliseconds for all phases together
+	 */
+	public long getDeadline(){
+		return deadline;
+	}
+	
+	/**
+	 * Set the maximum time in milliseconds for all phases together
+	 */
+	public void setDeadline(long millis){
+		deadline = millis;
+	}
+	
+	/**
+	 * Return a human readable name of the remote device
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Return the amount of phases
+	 */
+	public abstract int getPhaseCount();
+	
+	/**
+	 * Return which ConnectListener.PHASE_ constant the index-th phase is
+	 */
+	public abstract int getPhase(int index);
+	
+	/**
+	 * Return the maximum time in milliseconds the index-th phase may take
+	 */
+	public abstract long getPhaseTimeout(int index);
+	
+	/**
+	 * Create the Transport for the index-th phase
+	 * @return The Transport to connect or null to skip this phase
+	 */
+	public abstract Transport createTransport(int index) throws IOException;
+	
+	/**
+	 * Return false if createTransport() returns the same Transport every time,
+	 * such a strategy connects once and the BluetoothService does not reconnect it
+	 */
+	public boolean isReusable(){
+		return true;
+	}
+	
+	/**
+	 * Called on the ConnectThread before the first phase, the same strategy
+	 * is reused for every reconnect attempt
+	 */
+	public void prepare(){
+	}
+	
+	/**
+	 * Called on the ConnectThread when the index-th phase connected, a strategy
+	 * can remember what worked to go faster next time
+	 */
+	public void onConnected(int index, Transport transport){
+	}
+}
@@ -1,15 +1,16 @@
 package romo;
 
 import java.io.IOException;
-import java.util.UUID;
+import java.util.Timer;
+import java.util.TimerTask;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
  * This thread runs while attempting to make an outgoing conection with a device,
- * the connection either succeeds or fails
+ * the connection either succeeds or fails. The phases of the ConnectStrategy
+ * are tried in order until one connects, a watchdog closes the Transport of a
+ * phase that runs past its timeout or past the deadline of the whole attempt.
  * @author SteveVdb
  */
 public class ConnectThread extends Thread {
@@ -17,37 +18,42 @@ public class ConnectThread extends Thread {
 	// Debugging
 	private static final String TAG = "ConnectThread";
 	
-	//UUID Bluetooth service used by SDP lookup
-	private static final String spp_uuid = "00001101-0000-1000-8000-00805f9b34fb";
+	// Closes transports whose connect() runs too long, shared by all ConnectThreads
+	private static final Timer WATCHDOG = new Timer("ConnectWatchdog", true);
 	
-	private final BluetoothSocket oSocket;
-	private final BluetoothDevice oDevice;
+	private final ConnectStrategy oStrategy;
+	private final int generation;
 	private ConnectListener oListener;
+	private volatile Transport oCurrent;
+	private volatile boolean cancelled;
 	
 	/**
 	 * Initialize ConnectThread
-	 * @param device  The BluetoothDevice to connect
+	 * @param transport  The Transport to connect
 	 */
-	public ConnectThread(BluetoothDevice device){
+	public ConnectThread(Transport transport){
+		this(ConnectStrategy.of(transport), 0);
+	}
+	
+	/**
+	 * Initialize ConnectThread
+	 * @param strategy  The ConnectStrategy describing how to connect
+	 * @param generation  The connection generation passed back to the ConnectListener
+	 */
+	public ConnectThread(ConnectStrategy strategy, int generation){
 		
-		oDevice = device;
+		oStrategy = strategy;
+		this.generation = generation;
 		oListener = null;
-		
-		// Use temporary BluetoothSocket object because _socket is final
-		BluetoothSocket temp = null;
-		
-		// Get a RFCOMM BluetoothSocket ready to start a secure 
-		// outgoing connection to this remote device using SDP lookup of UUID
-		try{
-			
-			temp = oDevice.createInsecureRfcommSocketToServiceRecord(UUID.fromString(spp_uuid));
-			
-		}catch(IOException e){
-			
-			Log.e(TAG, "create RFCOMM socket failed", e);
-		}
-		
-		oSocket = temp;
+		oCurrent = null;
+		cancelled = false;
+	}
+	
+	/**
+	 * Return the connection generation this thread was started with
+	 */
+	public int getGeneration(){
+		return generation;
 	}
 	
 	/**
@@ -66,55 +72,120 @@ public class ConnectThread extends Thread {
 	}
 	
 	/**
-	 * Indicate that the connection attempt failed and notify the UI-Activity
+	 * Attempt to make a outgoing connection with a remote device
 	 */
-	/*private void connectionFailed(){
+	@Override
+	public void run() {
+		
+		Log.d(TAG, "begin ConnectThread job");
 		
-		// Data to send to the receiver
-		String data = "Unable to connect with device: " + oDevice.getName();
+		long deadline = System.nanoTime() + oStrategy.getDeadline() * 1000000L;
+		
+		oStrategy.prepare();
+			
+		for(int i=0; (i<oStrategy.getPhaseCount()) && !cancelled; i++){
+			
+			long remaining = (deadline - System.nanoTime()) / 1000000L;
+			
+			if(remaining <= 0){
+				Log.w(TAG, "connect deadline expired");
+				break;
+			}
+			
+			long start = System.nanoTime();
+			int flag = connect(i, Math.min(oStrategy.getPhaseTimeout(i), remaining));
+			long elapsed = (System.nanoTime() - start) / 1000000L;
+			
+			Log.d(TAG, "phase " + oStrategy.getPhase(i) + " ended with " + flag + " after " + elapsed + " ms");
+			
+			if(oListener != null){
+				oListener.onConnectPhase(generation, oStrategy.getPhase(i), flag, elapsed);
+			}
+			
+			if(flag == ConnectListener.CONNECT_SUCCEED){
+				
+				oStrategy.onConnected(i, oCurrent);
 				
-		// Obtain new message from the global message pool and send it to the specified target
-		oHandler.obtainMessage(BluetoothService.MESSAGE_TOAST, data).sendToTarget();
-	}*/
+				// Report this connection to the ConnectListener because its now save
+				// to start the thread for transferring data 
+				if(oListener != null){
+					oListener.onConnect(generation, ConnectListener.CONNECT_SUCCEED, oCurrent);
+				}
+				
+				return;
+			}
+		}
+		
+		// Report to the ConnectListener that this connection attempt failed
+		if(oListener != null){
+			oListener.onConnect(generation, ConnectListener.CONNECT_FAILED, null);
+		}
+	}
 	
 	/**
-	 * Attempt to make a outgoing connection with a remote device
+	 * Run one phase of the ConnectStrategy
+	 * @param index  The index of the phase
+	 * @param timeout  The time in milliseconds before the watchdog closes the Transport
+	 * @return One of the ConnectListener.CONNECT_ constants
 	 */
-	@Override
-	public void run() {
+	private int connect(int index, long timeout){
 		
-		Log.d(TAG, "begin ConnectThread job");
+		Transport transport;
+		
+		try{
+			transport = oStrategy.createTransport(index);
+		}catch(IOException e){
+			Log.e(TAG, "create transport failed", e);
+			return ConnectListener.CONNECT_FAILED;
+		}
+		
+		if(transport == null){
+			return ConnectListener.CONNECT_FAILED;
+		}
+		
+		oCurrent = transport;
+		
+		// cancel() may have run before oCurrent was set
+		if(cancelled){
+			close(transport);
+			return ConnectListener.CONNECT_CANCELLED;
+		}
+		
+		Watchdog watchdog = new Watchdog(transport);
+		WATCHDOG.schedule(watchdog, timeout);
 			
 		try{
 			
 			// Attempt to connect to a remote device, this is a blocking call
 			// and will only return on a succesful connection or an exception
-			oSocket.connect();
-			
-		}catch(IOException e1){
+			transport.connect();
 			
-			// Close socket
-			try{
-				oSocket.close();
-			}catch(IOException e2){
-				Log.e(TAG, "unable to close socket", e2);
+			if(watchdog.disarm()){
+				return ConnectListener.CONNECT_SUCCEED;
 			}
 			
-			// Report UI-activity that the connection attempt failed
-			// connectionFailed();
+		}catch(IOException e){
 			
-			// Report to the ConnectListener that this connection attempt failed
-			if(oListener != null){
-				oListener.onConnect(ConnectListener.CONNECT_FAILED, oDevice, null);
-			}
+			Log.d(TAG, "connect failed: " + e.getMessage());
 			
-			return;
+			if(watchdog.disarm()){
+				close(transport);
+			}
 		}
 		
-		// Report this connection to the ConnectListener because its now save
-		// to start the thread for transferring data 
-		if(oListener != null){
-			oListener.onConnect(ConnectListener.CONNECT_SUCCEED, oDevice, oSocket);
+		if(cancelled){
+			return ConnectListener.CONNECT_CANCELLED;
+		}
+		
+		return watchdog.expired ? ConnectListener.CONNECT_TIMEOUT : ConnectListener.CONNECT_FAILED;
+	}
+	
+	private static void close(Transport transport){
+		
+		try{
+			transport.close();
+		}catch(IOException e){
+			Log.e(TAG, "unable to close transport", e);
 		}
 	}
 	
@@ -123,11 +194,57 @@ public class ConnectThread extends Thread {
 	 */
 	public void cancel(){
 		
-		try{			
-			// Close socket
-			oSocket.close();
-		}catch (IOException e) {
-			Log.e(TAG, "cancel(), closing socket failed", e);
-		}	
-	}	
+		cancelled = true;
+		
+		Transport transport = oCurrent;
+		
+		if(transport != null){
+			close(transport);
+		}
+	}
+	
+	/**
+	 * Closes the Transport of a phase unless the phase ended first
+	 */
+	private static class Watchdog extends TimerTask {
+		
+		private final Transport oTransport;
+		private boolean armed = true;
+		private volatile boolean expired = false;
+		
+		Watchdog(Transport transport){
+			oTransport = transport;
+		}
+		
+		@Override
+		public void run() {
+			
+			synchronized(this){
+				
+				if(!armed){
+					return;
+				}
+				
+				armed = false;
+				expired = true;
+			}
+			
+			Log.w(TAG, "connect phase timed out");
+			close(oTransport);
+		}
+		
+		/**
+		 * End the phase
+		 * @return False if the watchdog already fired and closed the Transport
+		 */
+		synchronized boolean disarm(){
+			
+			cancel();
+			
+			boolean wasArmed = armed;
+			armed = false;
+			
+			return wasArmed;
+		}
+	}
 }
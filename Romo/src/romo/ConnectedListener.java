@@ -2,7 +2,17 @@ package romo;
 
 public interface ConnectedListener {
 	
-	public void onDisconnect();
-	public void onReceive(byte[] buffer, int length);
+	/**
+	 * Called on the ConnectedThread when the connection is lost or cancelled
+	 * @param generation  The generation the ConnectedThread was started with
+	 */
+	public void onDisconnect(int generation);
+	
+	/**
+	 * Called on the ConnectedThread for every chunk of received bytes. The
+	 * listener takes ownership of the buffer and must release() it when done.
+	 * @param generation  The generation the ConnectedThread was started with
+	 */
+	public void onReceive(int generation, ReceiveBuffer buffer);
 
 }
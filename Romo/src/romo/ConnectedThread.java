@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
@@ -17,20 +16,42 @@ public class ConnectedThread extends Thread{
 	// Debugging
 	private static final String TAG = "ConnectedThread";
 	
-	private final BluetoothSocket oSocket;
+	private final Transport oTransport;
 	private final InputStream oInStream;
 	private final OutputStream oOutStream;
+	private final BufferPool oPool;
+	private final OutputQueue oQueue;
+	private final WriterThread oWriter;
+	private final int generation;
 	private ConnectedListener oListener;
+	private volatile LatencyStats oLatency;
+	private volatile SessionRecorder oRecorder;
+	private LinkQuality oQuality;
+	private HeartbeatThread oHeartbeat;
 	private volatile boolean running;
 	
 	
 	/**
 	 * 
-	 * @param socket  The BluetoothSocket on which the connection was made
+	 * @param transport  The Transport on which the connection was made
 	 */
-	public ConnectedThread(BluetoothSocket socket){
+	public ConnectedThread(Transport transport){
+		this(transport, new BufferPool(), new OutputQueue(), 0);
+	}
+	
+	/**
+	 * 
+	 * @param transport  The Transport on which the connection was made
+	 * @param pool  The BufferPool received bytes are read into
+	 * @param queue  The OutputQueue written to the Transport
+	 * @param generation  The connection generation passed back to the ConnectedListener
+	 */
+	public ConnectedThread(Transport transport, BufferPool pool, OutputQueue queue, int generation){
 		
-		oSocket = socket;
+		oTransport = transport;
+		this.generation = generation;
+		oPool = pool;
+		oQueue = queue;
 		oListener = null;
 		running = true;
 		
@@ -38,16 +59,25 @@ public class ConnectedThread extends Thread{
 		InputStream tempIn = null;
 		OutputStream tempOut = null;
 		
-		// Get BluetoothSocket in- and output streams
+		// Get Transport in- and output streams
 		try{
-			tempIn = oSocket.getInputStream();
-			tempOut = oSocket.getOutputStream();
+			tempIn = oTransport.getInputStream();
+			tempOut = oTransport.getOutputStream();
 		}catch(IOException e){
 			Log.e(TAG, "unable to get in- and output streams", e);
 		}
 		
 		oInStream = tempIn;
 		oOutStream = tempOut;
+		
+		oWriter = new WriterThread(oTransport, oOutStream, oQueue);
+	}
+	
+	/**
+	 * Return the connection generation this thread was started with
+	 */
+	public int getGeneration(){
+		return generation;
 	}
 	
 	/**
@@ -64,7 +94,37 @@ public class ConnectedThread extends Thread{
 	public void unRegister(){
 		oListener = null;
 	}
+	
+	/**
+	 * Record the read stage of every ReceiveBuffer
+	 * @param stats  The LatencyStats to record in or null
+	 */
+	public void setLatencyStats(LatencyStats stats){
+		oLatency = stats;
+	}
+	
+	/**
+	 * Record every received and written chunk
+	 * @param recorder  The SessionRecorder or null to stop recording
+	 */
+	public void setSessionRecorder(SessionRecorder recorder){
+		oRecorder = recorder;
+		oWriter.setSessionRecorder(recorder);
+	}
 		
+	/**
+	 * Send heartbeats during the connection and close it when the link is
+	 * dead, call this before the thread is started
+	 * @param quality  The LinkQuality to update
+	 * @param listener  The listener of quality level changes or null
+	 */
+	public void setLinkQuality(LinkQuality quality, LinkQualityListener listener){
+		
+		oQuality = quality;
+		oHeartbeat = new HeartbeatThread(oTransport, oQueue, quality, generation);
+		oHeartbeat.register(listener);
+	}
+	
 	/**
 	 * Read data from InputStream while connected
 	 */
@@ -73,50 +133,167 @@ public class ConnectedThread extends Thread{
 		
 		Log.d(TAG, "begin ConnectedThread job");
 		
-		// Receive buffer
-		byte[] buffer = new byte[256];
-		// Amount of bytes read from InputStream
-		int length = 0;
+		// All writes go through the WriterThread
+		oWriter.start();
+		
+		if(oHeartbeat != null){
+			oHeartbeat.start();
+		}
+		
+		// Receive buffer, owned by this thread until it is handed to the listener
+		ReceiveBuffer buffer = null;
 		
 		while(running){
 			
 			try{
 				
+				buffer = oPool.acquire();
+				
 				// Read available bytes from InputStream
-				length = oInStream.read(buffer);
+				read(buffer);
 						
-				// Report the obtained bytes to the ConnectedListener
-				if(oListener != null){
-					oListener.onReceive(buffer, length);
+				// Report the obtained bytes to the ConnectedListener, which takes
+				// over the ownership of the buffer, even if it throws
+				ConnectedListener listener = oListener;
+				ReceiveBuffer received = buffer;
+				buffer = null;
+				
+				if(listener != null){
+					listener.onReceive(generation, received);
+				}else{
+					received.release();
 				}
-			}catch(IOException e){
+				
+			}catch(InterruptedException e){
+				
+				// cancel() interrupts a reader waiting for a free buffer, no disconnect to report
+				Log.d(TAG, "interrupted while waiting for a buffer");
+				
+				running = false;
+				oWriter.cancel();
+				
+				if(oHeartbeat != null){
+					oHeartbeat.cancel();
+				}
+			
+			}catch(Exception e){
 				
 				Log.e(TAG, "disconnected", e);
 				
+				if(buffer != null){
+					buffer.release();
+					buffer = null;
+				}
+				
 				// Stop job
 				running = false;
+				oWriter.cancel();
+				
+				if(oHeartbeat != null){
+					oHeartbeat.cancel();
+				}
 				
 				// Report this connection lose to the ConnectedListener 
 				if(oListener != null){
-					oListener.onDisconnect();
+					oListener.onDisconnect(generation);
 				}
 			}
 		}
 	}
 	
 	/**
-	 * Write to the connected OutputStream
-	 * @param buffer
+	 * Block until at least one byte arrives, then keep filling the buffer with
+	 * the bytes that are already available so a burst is drained in one chunk
+	 * @param buffer  The buffer to fill
 	 */
-	public void write(byte[] buffer){
+	private void read(ReceiveBuffer buffer) throws IOException {
 		
-		try{
-			oOutStream.write(buffer);
-		}catch(IOException e){
-			Log.e(TAG, "exception during write", e);
+		byte[] data = buffer.getData();
+		
+		int length = oInStream.read(data, 0, data.length);
+		
+		// The remote end closed the stream
+		if(length < 0){
+			throw new IOException("end of stream");
+		}
+		
+		long start = System.nanoTime();
+		
+		int available;
+		
+		while((length < data.length) && ((available = oInStream.available()) > 0)){
+			
+			int count = oInStream.read(data, length, Math.min(available, data.length - length));
+			
+			if(count <= 0){
+				break;
+			}
+			
+			length += count;
+		}
+		
+		long now = System.nanoTime();
+		buffer.fill(length, now);
+		
+		LatencyStats stats = oLatency;
+		
+		if(stats != null){
+			stats.record(LatencyStats.STAGE_READ, now - start);
+		}
+		
+		if(oQuality != null){
+			oQuality.onReceive(length, now);
+		}
+		
+		SessionRecorder recorder = oRecorder;
+		
+		if(recorder != null){
+			recorder.recordRx(data, 0, length, now);
 		}
 	}
 	
+	/**
+	 * Queue a frame for the WriterThread, this never blocks on the OutputStream
+	 * @param buffer
+	 * @return False if the OutputQueue rejected the frame
+	 */
+	public boolean write(byte[] buffer){
+		return write(buffer, 0, buffer.length);
+	}
+	
+	/**
+	 * Queue a range of bytes for the WriterThread, this never blocks on the OutputStream
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return False if the OutputQueue rejected the frame
+	 */
+	public boolean write(byte[] buffer, int offset, int length){
+		return oQueue.offer(buffer, offset, length);
+	}
+	
+	/**
+	 * Queue a set point frame, replacing an unsent frame with the same key
+	 * @param key  The set point key
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public void writeSetpoint(int key, byte[] buffer, int offset, int length){
+		oQueue.offerSetpoint(key, buffer, offset, length);
+	}
+	
+	/**
+	 * Queue an urgent frame ahead of all other frames and discard pending set points
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @param clearKeys  Bit mask of the set point keys to discard
+	 */
+	public void writeUrgent(byte[] buffer, int offset, int length, int clearKeys){
+		oQueue.offerUrgent(buffer, offset, length, clearKeys);
+	}
+	
 	/**
 	 * Stop thread in a safe manner
 	 */
@@ -125,15 +302,22 @@ public class ConnectedThread extends Thread{
 		try{			
 			// Stop the runnable job
 			running = false;
-			join(1000);
+			oWriter.cancel();
 			
-			// Close socket
-			oSocket.close();
+			if(oHeartbeat != null){
+				oHeartbeat.cancel();
+			}
+			
+			// Close transport first, it unblocks the pending read, and interrupt
+			// a reader waiting in BufferPool.acquire() for a buffer to be released
+			oTransport.close();
+			interrupt();
+			join(1000);
 			
 		}catch(InterruptedException e1){
 			Log.e(TAG, "terminating tread failed", e1);
 		}catch (IOException e2) {
-			Log.e(TAG, "cancel(), closing socket failed", e2);
+			Log.e(TAG, "cancel(), closing transport failed", e2);
 		}	
 	}
 }
@@ -0,0 +1,89 @@
+package romo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection state and connection generation packed in one atomic word.
+ * Every connect() and stop() starts a new generation, the threads of an
+ * attempt carry the generation they were started with. A callback from a
+ * thread of an older attempt then fails the compare-and-set of its
+ * transition and is dropped, without taking a lock.
+ */
+public final class ConnectionState {
+	
+	private static final long STATE_MASK = 0xffffffffL;
+	
+	private final AtomicLong word;
+	
+	/**
+	 * Initialize ConnectionState in generation 0
+	 * @param state  The initial state
+	 */
+	public ConnectionState(int state){
+		word = new AtomicLong(pack(0, state));
+	}
+	
+	private static long pack(int generation, int state){
+		return (((long)generation) << 32) | (state & STATE_MASK);
+	}
+	
+	/**
+	 * Return the state part of a word returned by get()
+	 */
+	public static int state(long word){
+		return (int)(word & STATE_MASK);
+	}
+	
+	/**
+	 * Return the generation part of a word returned by get()
+	 */
+	public static int generation(long word){
+		return (int)(word >>> 32);
+	}
+	
+	/**
+	 * Return state and generation read together
+	 */
+	public long get(){
+		return word.get();
+	}
+	
+	public int getState(){
+		return state(word.get());
+	}
+	
+	public int getGeneration(){
+		return generation(word.get());
+	}
+	
+	/**
+	 * Return true if the given generation is current and in the given state
+	 */
+	public boolean is(int generation, int state){
+		return word.get() == pack(generation, state);
+	}
+	
+	/**
+	 * Change the state if it still is from in the given generation
+	 * @return True if this call made the transition
+	 */
+	public boolean transition(int generation, int from, int to){
+		return word.compareAndSet(pack(generation, from), pack(generation, to));
+	}
+	
+	/**
+	 * Start a new generation in the given state, whatever the current state is
+	 * @return The word before the change, to report the transition
+	 */
+	public long advance(int to){
+		
+		while(true){
+			
+			long current = word.get();
+			
+			if(word.compareAndSet(current, pack(generation(current) + 1, to))){
+				return current;
+			}
+		}
+	}
+}
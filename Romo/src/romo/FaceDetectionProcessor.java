@@ -0,0 +1,161 @@
+package romo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.Face;
+import android.hardware.Camera.FaceDetectionListener;
+import android.os.Handler;
+import android.os.Looper;
+import vision.FaceDetector;
+import vision.FrameProcessor;
+import vision.PreviewFrame;
+import vision.PreviewStats;
+
+/**
+ * Software face detection for cameras without hardware face detection
+ * (getMaxNumDetectedFaces() is 0). It runs a FaceDetector on the frames of a
+ * PreviewPipeline and reports the faces to the FaceDetectionListener of the
+ * hardware detector on the UI thread, as Camera.Face rectangles from
+ * (-1000, -1000) to (1000, 1000). The listener is called while faces are
+ * found and once when they are gone. Frames found while the previous report
+ * was not delivered yet are not reported, the Face objects are reused.
+ */
+public class FaceDetectionProcessor implements FrameProcessor {
+	
+	private final FaceDetector oDetector;
+	private final Camera oCamera;
+	private final FaceDetectionListener oListener;
+	private final PreviewStats oStats;
+	private final Handler oHandler;
+	
+	// Reused faces indexed by count
+	private final Face[][] faces;
+	
+	private volatile boolean enabled = true;
+	
+	// Faces of the last report, only used by the pipeline worker
+	private int reported;
+	
+	// Set until the UI thread delivered the report
+	private final AtomicBoolean posted;
+	private Face[] report;
+	private long reportTime;
+	
+	/**
+	 * Initialize FaceDetectionProcessor
+	 * @param camera  The camera passed to the listener
+	 * @param listener  The listener of the hardware face detection
+	 * @param stats  The PreviewStats of the pipeline, the detection time is recorded
+	 */
+	public FaceDetectionProcessor(Camera camera, FaceDetectionListener listener, PreviewStats stats){
+		
+		oDetector = new FaceDetector();
+		oCamera = camera;
+		oListener = listener;
+		oStats = stats;
+		oHandler = new Handler(Looper.getMainLooper());
+		posted = new AtomicBoolean(false);
+		
+		faces = new Face[FaceDetector.MAX_FACES + 1][];
+		
+		for(int count=0; count<=FaceDetector.MAX_FACES; count++){
+			
+			faces[count] = new Face[count];
+			
+			for(int i=0; i<count; i++){
+				faces[count][i] = (i < count - 1) ? faces[count - 1][i] : newFace();
+			}
+		}
+	}
+	
+	private static Face newFace(){
+		
+		Face face = new Face();
+		face.rect = new Rect();
+		face.id = -1;
+		
+		return face;
+	}
+	
+	/**
+	 * Start or stop reporting faces, like Camera.startFaceDetection() and
+	 * Camera.stopFaceDetection()
+	 */
+	public void setEnabled(boolean enabled){
+		this.enabled = enabled;
+	}
+	
+	public FaceDetector getDetector(){
+		return oDetector;
+	}
+	
+	@Override
+	public void onFrame(PreviewFrame frame) {
+		
+		if(!enabled){
+			return;
+		}
+		
+		long start = System.nanoTime();
+		int count = oDetector.detect(frame.getData(), frame.getWidth(), frame.getHeight());
+		oStats.record(PreviewStats.STAGE_DETECT, System.nanoTime() - start);
+		
+		// Nothing found and nothing to take back
+		if((count == 0) && (reported == 0)){
+			return;
+		}
+		
+		if(!posted.compareAndSet(false, true)){
+			return;
+		}
+		
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		
+		for(int i=0; i<count; i++){
+			
+			Face face = faces[count][i];
+			
+			face.rect.set(oDetector.getLeft(i) * 2000 / width - 1000, oDetector.getTop(i) * 2000 / height - 1000,
+					oDetector.getRight(i) * 2000 / width - 1000, oDetector.getBottom(i) * 2000 / height - 1000);
+			face.score = oDetector.getScore(i);
+		}
+		
+		reported = count;
+		report = faces[count];
+		reportTime = frame.getTimestamp();
+		
+		oHandler.post(oDeliver);
+	}
+	
+	private final Runnable oDeliver = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			// Stopped after the report was posted
+			if(enabled){
+				oListener.onFaceDetection(report, oCamera);
+			}
+			
+			posted.set(false);
+		}
+	};
+	
+	/**
+	 * Return the System.nanoTime() the frame of the faces was taken, only
+	 * valid during onFaceDetection()
+	 */
+	public long getFrameTime(){
+		return reportTime;
+	}
+	
+	/**
+	 * Stop the threads of the detector
+	 */
+	public void close(){
+		oDetector.close();
+	}
+}
@@ -0,0 +1,177 @@
+package romo;
+
+import java.util.Arrays;
+
+/**
+ * The frames received between two deliveries of a FrameBatcher. Frames are
+ * copied back to back into one payload array, in MODE_LATEST telemetry
+ * frames only update a table holding the latest value of every channel.
+ * A FrameBatch is reused, it is only valid during onFrameBatch().
+ */
+public final class FrameBatch {
+	
+	public static final int CHANNELS = 256;
+	
+	// Frames
+	private final byte[] payloads;
+	private final int[] types;
+	private final int[] offsets;
+	private final int[] lengths;
+	private int count;
+	private int used;
+	private int overflows;
+	
+	// Latest telemetry value of every channel, with a bit set for every changed channel
+	private final int[] values;
+	private final long[] changed;
+	private int updates;
+	
+	// System.nanoTime() of the first frame of this batch
+	private long firstTimestamp;
+	
+	FrameBatch(int maxFrames, int payloadCapacity){
+		
+		payloads = new byte[payloadCapacity];
+		types = new int[maxFrames];
+		offsets = new int[maxFrames];
+		lengths = new int[maxFrames];
+		
+		values = new int[CHANNELS];
+		changed = new long[CHANNELS / 64];
+	}
+	
+	boolean isEmpty(){
+		return (count == 0) && (updates == 0) && (overflows == 0);
+	}
+	
+	void clear(){
+		count = 0;
+		used = 0;
+		overflows = 0;
+		updates = 0;
+		Arrays.fill(changed, 0);
+	}
+	
+	/**
+	 * Append a frame
+	 * @return False if the batch is full, the frame is counted as overflow
+	 */
+	boolean add(int type, byte[] payload, int offset, int length, long timestamp){
+		
+		if((count == types.length) || (used + length > payloads.length)){
+			overflows++;
+			return false;
+		}
+		
+		if(isEmpty()){
+			firstTimestamp = timestamp;
+		}
+		
+		System.arraycopy(payload, offset, payloads, used, length);
+		
+		types[count] = type;
+		offsets[count] = used;
+		lengths[count] = length;
+		
+		used += length;
+		count++;
+		
+		return true;
+	}
+	
+	/**
+	 * Store the samples of a telemetry payload, later samples overwrite earlier ones
+	 */
+	void update(byte[] payload, int offset, int length, long timestamp){
+		
+		if(isEmpty()){
+			firstTimestamp = timestamp;
+		}
+		
+		int samples = FrameCodec.telemetryCount(length);
+		
+		for(int i=0; i<samples; i++){
+			
+			int channel = FrameCodec.telemetryChannel(payload, offset, i);
+			
+			values[channel] = FrameCodec.telemetryValue(payload, offset, i);
+			changed[channel >>> 6] |= 1L << channel;
+		}
+		
+		updates += samples;
+	}
+	
+	/**
+	 * Return the amount of frames in this batch
+	 */
+	public int getFrameCount(){
+		return count;
+	}
+	
+	public int getType(int index){
+		return types[index];
+	}
+	
+	/**
+	 * Return the array holding the payloads of all frames
+	 */
+	public byte[] getPayload(){
+		return payloads;
+	}
+	
+	public int getOffset(int index){
+		return offsets[index];
+	}
+	
+	public int getLength(int index){
+		return lengths[index];
+	}
+	
+	/**
+	 * Return the amount of frames dropped because this batch was full
+	 */
+	public int getOverflowCount(){
+		return overflows;
+	}
+	
+	/**
+	 * Return the amount of telemetry samples folded into the channel table
+	 */
+	public int getUpdateCount(){
+		return updates;
+	}
+	
+	/**
+	 * Return the first changed telemetry channel at or after channel
+	 * @return The channel or -1 if no later channel changed
+	 */
+	public int nextChanged(int channel){
+		
+		while(channel < CHANNELS){
+			
+			long bits = changed[channel >>> 6] & (-1L << channel);
+			
+			if(bits != 0){
+				return (channel & ~63) + Long.numberOfTrailingZeros(bits);
+			}
+			
+			channel = (channel & ~63) + 64;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Return the latest value of a telemetry channel, valid if the channel changed
+	 */
+	public int getValue(int channel){
+		return values[channel];
+	}
+	
+	/**
+	 * Return the System.nanoTime() of the read that started this batch
+	 */
+	public long getFirstTimestamp(){
+		return firstTimestamp;
+	}
+}
@@ -0,0 +1,10 @@
+package romo;
+
+public interface FrameBatchListener {
+	
+	/**
+	 * Called on the UI thread with the frames received since the last delivery
+	 * @param batch  The frames, only valid during this call
+	 */
+	public void onFrameBatch(FrameBatch batch);
+}
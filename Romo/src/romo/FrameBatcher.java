@@ -0,0 +1,241 @@
+package romo;
+
+/**
+ * Gathers decoded frames on the reader thread and hands them to the UI as
+ * one FrameBatch per delivery, so the UI does not handle every read. Two
+ * FrameBatches are swapped on delivery, the reader fills one while the UI
+ * reads the other.
+ * In MODE_RAW nothing is gathered, the BluetoothService publishes every
+ * read as a LinkEvent instead.
+ */
+public final class FrameBatcher {
+	
+	// Delivery modes
+	public static final int MODE_RAW = 0;							// every read as a LinkEvent
+	public static final int MODE_FRAMES = 1;						// every frame, one batch per delivery
+	public static final int MODE_LATEST = 2;						// latest value per telemetry channel, other frames as in MODE_FRAMES
+	
+	public static final int DEFAULT_MAX_FRAMES = 1024;
+	public static final int DEFAULT_PAYLOAD_CAPACITY = 16 * 1024;
+	
+	// Deliver on every display frame
+	public static final long DEFAULT_INTERVAL = 0;
+	
+	private FrameBatch oFilling;
+	private FrameBatch oDelivering;
+	
+	private volatile int iMode;
+	private volatile long interval;
+	private volatile Runnable oSignal;
+	
+	// Delivery statistics, only touched by the consumer
+	private long lastDelivery;
+	private long deliveries;
+	private long totalInterval;
+	private long maxInterval;
+	private long totalFrames;
+	private int maxFrames;
+	private long totalAge;
+	private long maxAge;
+	private long overflows;
+	
+	/**
+	 * Initialize FrameBatcher in MODE_RAW
+	 */
+	public FrameBatcher(){
+		this(DEFAULT_MAX_FRAMES, DEFAULT_PAYLOAD_CAPACITY);
+	}
+	
+	/**
+	 * Initialize FrameBatcher in MODE_RAW
+	 * @param maxFrames  The maximum amount of frames per batch
+	 * @param payloadCapacity  The maximum amount of payload bytes per batch
+	 */
+	public FrameBatcher(int maxFrames, int payloadCapacity){
+		
+		oFilling = new FrameBatch(maxFrames, payloadCapacity);
+		oDelivering = new FrameBatch(maxFrames, payloadCapacity);
+		
+		iMode = MODE_RAW;
+		interval = DEFAULT_INTERVAL;
+	}
+	
+	/**
+	 * Set the Runnable that wakes up the consumer, it runs on the reader
+	 * thread when a frame lands in an empty batch
+	 */
+	public void setSignal(Runnable signal){
+		oSignal = signal;
+	}
+	
+	/**
+	 * @param mode  One of the MODE_ constants
+	 */
+	public void setMode(int mode){
+		iMode = mode;
+	}
+	
+	public int getMode(){
+		return iMode;
+	}
+	
+	/**
+	 * Set the minimum time between two deliveries
+	 * @param millis  The interval in milliseconds, 0 to deliver on every display frame
+	 */
+	public void setInterval(long millis){
+		interval = millis * 1000000L;
+	}
+	
+	/**
+	 * Add a decoded frame, called on the reader thread
+	 */
+	public void add(int type, byte[] payload, int offset, int length, long timestamp){
+		
+		int mode = iMode;
+		
+		if(mode == MODE_RAW){
+			return;
+		}
+		
+		boolean wasEmpty;
+		
+		synchronized(this){
+			
+			wasEmpty = oFilling.isEmpty();
+			
+			if((mode == MODE_LATEST) && (type == FrameCodec.TYPE_TELEMETRY)){
+				oFilling.update(payload, offset, length, timestamp);
+			}else{
+				oFilling.add(type, payload, offset, length, timestamp);
+			}
+		}
+		
+		Runnable signal = oSignal;
+		
+		if(wasEmpty && (signal != null)){
+			signal.run();
+		}
+	}
+	
+	/**
+	 * Hand the gathered frames to the listener if the interval elapsed,
+	 * called on the consumer thread
+	 * @param listener  The FrameBatchListener to call
+	 * @param now  The System.nanoTime() of this display frame
+	 * @return True if frames are still waiting for a later delivery
+	 */
+	public boolean deliver(FrameBatchListener listener, long now){
+		
+		synchronized(this){
+			
+			if(oFilling.isEmpty()){
+				return false;
+			}
+			
+			// Half a millisecond of slack, display frames do not tick exactly
+			if((deliveries > 0) && (now - lastDelivery < interval - 500000L)){
+				return true;
+			}
+			
+			FrameBatch batch = oFilling;
+			oFilling = oDelivering;
+			oDelivering = batch;
+		}
+		
+		FrameBatch batch = oDelivering;
+		
+		if(deliveries > 0){
+			long elapsed = now - lastDelivery;
+			totalInterval += elapsed;
+			maxInterval = Math.max(maxInterval, elapsed);
+		}
+		
+		long age = now - batch.getFirstTimestamp();
+		
+		lastDelivery = now;
+		deliveries++;
+		totalFrames += batch.getFrameCount();
+		maxFrames = Math.max(maxFrames, batch.getFrameCount());
+		totalAge += age;
+		maxAge = Math.max(maxAge, age);
+		overflows += batch.getOverflowCount();
+		
+		try{
+			if(listener != null){
+				listener.onFrameBatch(batch);
+			}
+		}finally{
+			batch.clear();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Return the amount of batches delivered
+	 */
+	public long getDeliveryCount(){
+		return deliveries;
+	}
+	
+	/**
+	 * Return the average time between two deliveries in nanoseconds
+	 */
+	public long getAverageInterval(){
+		return (deliveries < 2) ? 0 : (totalInterval / (deliveries - 1));
+	}
+	
+	/**
+	 * Return the longest time between two deliveries in nanoseconds
+	 */
+	public long getMaxInterval(){
+		return maxInterval;
+	}
+	
+	/**
+	 * Return the average amount of frames per batch
+	 */
+	public long getAverageBatchSize(){
+		return (deliveries == 0) ? 0 : (totalFrames / deliveries);
+	}
+	
+	public int getMaxBatchSize(){
+		return maxFrames;
+	}
+	
+	/**
+	 * Return the average time from the first read of a batch to its delivery in nanoseconds
+	 */
+	public long getAverageAge(){
+		return (deliveries == 0) ? 0 : (totalAge / deliveries);
+	}
+	
+	/**
+	 * Return the longest time from the first read of a batch to its delivery in nanoseconds
+	 */
+	public long getMaxAge(){
+		return maxAge;
+	}
+	
+	/**
+	 * Return the amount of frames dropped because a batch was full
+	 */
+	public long getOverflowCount(){
+		return overflows;
+	}
+	
+	/**
+	 * Reset the delivery statistics, on the consumer thread
+	 */
+	public void resetStats(){
+		deliveries = 0;
+		totalInterval = 0;
+		maxInterval = 0;
+		totalFrames = 0;
+		maxFrames = 0;
+		totalAge = 0;
+		maxAge = 0;
+		overflows = 0;
+	}
+}
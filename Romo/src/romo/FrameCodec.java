@@ -0,0 +1,392 @@
+package romo;
+
+/**
+ * Wire format of the frames exchanged with the Romo base. Every frame is
+ * 
+ * <pre>
+ * +------+------+------+--------+-----------------+--------+--------+
+ * | 0xA5 | 0x5A | type | length | payload[length] | crc hi | crc lo |
+ * +------+------+------+--------+-----------------+--------+--------+
+ * </pre>
+ * 
+ * where the CRC-16/CCITT covers type, length and payload. Multi-byte values
+ * are big endian. The encoders write straight into a caller supplied array
+ * and never allocate, so a control loop can reuse one buffer for every frame.
+ */
+public final class FrameCodec {
+	
+	// Frame layout
+	public static final int SYNC_1 = 0xA5;
+	public static final int SYNC_2 = 0x5A;
+	public static final int HEADER_SIZE = 4;						// sync, sync, type, length
+	public static final int TRAILER_SIZE = 2;						// crc
+	public static final int OVERHEAD = HEADER_SIZE + TRAILER_SIZE;
+	public static final int MAX_PAYLOAD = 255;
+	public static final int MAX_FRAME = OVERHEAD + MAX_PAYLOAD;
+	
+	// Frame types send to the robot
+	public static final int TYPE_DRIVE = 0x01;						// int16 left, int16 right motor speed
+	public static final int TYPE_TILT = 0x02;						// int16 head tilt
+	public static final int TYPE_STOP = 0x03;						// no payload, halt all motors
+	public static final int TYPE_EXPRESSION = 0x04;				// uint8 expression id
+	public static final int TYPE_PING = 0x05;						// uint16 sequence, acknowledged at once
+	public static final int TYPE_TELEMETRY_RATE = 0x06;			// uint16 frames per second, see encodeTelemetryRate()
+	public static final int TYPE_RELIABLE = 0x07;					// uint16 sequence, uint8 type, payload of that type
+	public static final int TYPE_TELEMETRY_ENCODING = 0x08;		// uint8 encoding, see encodeTelemetryEncoding()
+	
+	// Frame types received from the robot
+	public static final int TYPE_TELEMETRY = 0x40;					// n * (uint8 channel, int16 value)
+	public static final int TYPE_ACK = 0x41;						// uint8 command type, command payload
+	public static final int TYPE_CREDIT = 0x42;					// uint32 receive limit, see encodeCredit()
+	public static final int TYPE_RELIABLE_ACK = 0x43;				// uint16 sequence of a TYPE_RELIABLE frame
+	public static final int TYPE_TELEMETRY_DELTA = 0x44;			// see TelemetryEncoder
+	
+	// Telemetry encodings
+	public static final int ENCODING_RAW = 0;						// TYPE_TELEMETRY frames
+	public static final int ENCODING_DELTA = 1;					// TYPE_TELEMETRY_DELTA frames
+	
+	// Payload sizes
+	public static final int DRIVE_SIZE = 4;
+	public static final int TILT_SIZE = 2;
+	public static final int EXPRESSION_SIZE = 1;
+	public static final int TELEMETRY_SAMPLE_SIZE = 3;
+	public static final int CREDIT_SIZE = 4;
+	public static final int PING_SIZE = 2;
+	public static final int TELEMETRY_RATE_SIZE = 2;
+	public static final int RELIABLE_HEADER_SIZE = 3;
+	public static final int RELIABLE_ACK_SIZE = 2;
+	public static final int TELEMETRY_ENCODING_SIZE = 1;
+	
+	// CRC-16/CCITT lookup table, polynomial 0x1021
+	private static final char[] CRC_TABLE = new char[256];
+	
+	static{
+		for(int i=0; i<256; i++){
+			
+			int crc = i << 8;
+			
+			for(int bit=0; bit<8; bit++){
+				crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x1021) : (crc << 1);
+			}
+			
+			CRC_TABLE[i] = (char)(crc & 0xffff);
+		}
+	}
+	
+	private FrameCodec(){
+	}
+	
+	/**
+	 * Compute the CRC-16/CCITT (initial value 0xFFFF) of a byte range
+	 */
+	public static int crc16(byte[] buffer, int offset, int length){
+		
+		int crc = 0xffff;
+		
+		for(int i=offset; i<offset+length; i++){
+			crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ buffer[i]) & 0xff]) & 0xffff;
+		}
+		
+		return crc;
+	}
+	
+	/**
+	 * Write the header of a frame, the payload can then be written directly
+	 * behind it, starting at the returned offset
+	 * @return The offset of the first payload byte
+	 */
+	public static int begin(byte[] out, int offset, int type){
+		
+		out[offset] = (byte)SYNC_1;
+		out[offset + 1] = (byte)SYNC_2;
+		out[offset + 2] = (byte)type;
+		
+		return offset + HEADER_SIZE;
+	}
+	
+	/**
+	 * Complete a frame started with begin() once its payload is written
+	 * @return The total length of the frame in bytes
+	 */
+	public static int finish(byte[] out, int offset, int payloadLength){
+		
+		if(payloadLength < 0 || payloadLength > MAX_PAYLOAD){
+			throw new IllegalArgumentException("payload length " + payloadLength);
+		}
+		
+		out[offset + 3] = (byte)payloadLength;
+		
+		int crc = crc16(out, offset + 2, payloadLength + 2);
+		putShort(out, offset + HEADER_SIZE + payloadLength, crc);
+		
+		return payloadLength + OVERHEAD;
+	}
+	
+	/**
+	 * Encode a frame with an arbitrary payload
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encode(byte[] out, int offset, int type, byte[] payload, int payloadOffset, int payloadLength){
+		
+		int p = begin(out, offset, type);
+		System.arraycopy(payload, payloadOffset, out, p, payloadLength);
+		
+		return finish(out, offset, payloadLength);
+	}
+	
+	/**
+	 * Encode a drive command
+	 * @param left  The speed of the left track
+	 * @param right  The speed of the right track
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeDrive(byte[] out, int offset, int left, int right){
+		
+		int p = begin(out, offset, TYPE_DRIVE);
+		putShort(out, p, left);
+		putShort(out, p + 2, right);
+		
+		return finish(out, offset, DRIVE_SIZE);
+	}
+	
+	/**
+	 * Encode a head tilt command
+	 * @param angle  The tilt set point
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeTilt(byte[] out, int offset, int angle){
+		
+		int p = begin(out, offset, TYPE_TILT);
+		putShort(out, p, angle);
+		
+		return finish(out, offset, TILT_SIZE);
+	}
+	
+	/**
+	 * Encode a command that halts all motors
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeStop(byte[] out, int offset){
+		
+		begin(out, offset, TYPE_STOP);
+		
+		return finish(out, offset, 0);
+	}
+	
+	/**
+	 * Encode a command that plays an expression
+	 * @param expression  The id of the expression
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeExpression(byte[] out, int offset, int expression){
+		
+		int p = begin(out, offset, TYPE_EXPRESSION);
+		out[p] = (byte)expression;
+		
+		return finish(out, offset, EXPRESSION_SIZE);
+	}
+	
+	/**
+	 * Encode a heartbeat, the robot acknowledges it without delay so the
+	 * acknowledgement measures the round-trip time
+	 * @param sequence  The 16 bit sequence number echoed in the acknowledgement
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodePing(byte[] out, int offset, int sequence){
+		
+		int p = begin(out, offset, TYPE_PING);
+		putShort(out, p, sequence);
+		
+		return finish(out, offset, PING_SIZE);
+	}
+	
+	/**
+	 * Encode a request for a telemetry rate. The robot acknowledges it with
+	 * the rate it applies, which is lower if it cannot send that fast.
+	 * @param framesPerSecond  The requested rate
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeTelemetryRate(byte[] out, int offset, int framesPerSecond){
+		
+		int p = begin(out, offset, TYPE_TELEMETRY_RATE);
+		putShort(out, p, framesPerSecond);
+		
+		return finish(out, offset, TELEMETRY_RATE_SIZE);
+	}
+	
+	/**
+	 * Encode a request for a telemetry encoding. The robot acknowledges it
+	 * with the requested and the applied encoding, ENCODING_RAW if it does
+	 * not know the requested one. Raw frames are always understood.
+	 * @param encoding  One of the ENCODING_ constants
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeTelemetryEncoding(byte[] out, int offset, int encoding){
+		
+		int p = begin(out, offset, TYPE_TELEMETRY_ENCODING);
+		out[p] = (byte)encoding;
+		
+		return finish(out, offset, TELEMETRY_ENCODING_SIZE);
+	}
+	
+	/**
+	 * Wrap a command in a frame of the reliable channel. The robot
+	 * acknowledges every copy it receives and executes only the first.
+	 * @param sequence  The 16 bit sequence number
+	 * @param type  The type of the wrapped command
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeReliable(byte[] out, int offset, int sequence, int type, byte[] payload, int payloadOffset, int payloadLength){
+		
+		int p = begin(out, offset, TYPE_RELIABLE);
+		putShort(out, p, sequence);
+		out[p + 2] = (byte)type;
+		System.arraycopy(payload, payloadOffset, out, p + RELIABLE_HEADER_SIZE, payloadLength);
+		
+		return finish(out, offset, payloadLength + RELIABLE_HEADER_SIZE);
+	}
+	
+	/**
+	 * Encode the acknowledgement of a frame of the reliable channel
+	 * @param sequence  The sequence number of the received frame
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeReliableAck(byte[] out, int offset, int sequence){
+		
+		int p = begin(out, offset, TYPE_RELIABLE_ACK);
+		putShort(out, p, sequence);
+		
+		return finish(out, offset, RELIABLE_ACK_SIZE);
+	}
+	
+	/**
+	 * Encode a telemetry frame carrying count channel samples
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeTelemetry(byte[] out, int offset, int[] channels, int[] values, int count){
+		
+		int p = begin(out, offset, TYPE_TELEMETRY);
+		
+		for(int i=0; i<count; i++){
+			out[p] = (byte)channels[i];
+			putShort(out, p + 1, values[i]);
+			p += TELEMETRY_SAMPLE_SIZE;
+		}
+		
+		return finish(out, offset, count * TELEMETRY_SAMPLE_SIZE);
+	}
+	
+	/**
+	 * Encode the acknowledgement of a command, it echoes the command payload
+	 * @param type  The type of the acknowledged command
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeAck(byte[] out, int offset, int type, byte[] payload, int payloadOffset, int payloadLength){
+		
+		int p = begin(out, offset, TYPE_ACK);
+		out[p] = (byte)type;
+		System.arraycopy(payload, payloadOffset, out, p + 1, payloadLength);
+		
+		return finish(out, offset, payloadLength + 1);
+	}
+	
+	/**
+	 * Encode a receive credit. The limit is the total amount of bytes, counted
+	 * from the start of the connection, the robot can take: the bytes it
+	 * consumed plus the free room in its receive buffer. An absolute limit
+	 * instead of an increment means a lost credit frame is repaired by the next.
+	 * @param limit  The receive limit, modulo 2^32
+	 * @return The total length of the frame in bytes
+	 */
+	public static int encodeCredit(byte[] out, int offset, int limit){
+		
+		int p = begin(out, offset, TYPE_CREDIT);
+		putInt(out, p, limit);
+		
+		return finish(out, offset, CREDIT_SIZE);
+	}
+	
+	/**
+	 * Return the amount of samples in a telemetry payload
+	 */
+	public static int telemetryCount(int payloadLength){
+		return payloadLength / TELEMETRY_SAMPLE_SIZE;
+	}
+	
+	/**
+	 * Return the channel of the index-th sample in a telemetry payload
+	 */
+	public static int telemetryChannel(byte[] payload, int offset, int index){
+		return payload[offset + index * TELEMETRY_SAMPLE_SIZE] & 0xff;
+	}
+	
+	/**
+	 * Return the value of the index-th sample in a telemetry payload
+	 */
+	public static int telemetryValue(byte[] payload, int offset, int index){
+		return getShort(payload, offset + index * TELEMETRY_SAMPLE_SIZE + 1);
+	}
+	
+	/**
+	 * Write a 16 bit value in big endian order
+	 */
+	public static void putShort(byte[] out, int offset, int value){
+		out[offset] = (byte)(value >> 8);
+		out[offset + 1] = (byte)value;
+	}
+	
+	/**
+	 * Read a signed 16 bit value in big endian order
+	 */
+	public static int getShort(byte[] in, int offset){
+		return (short)(((in[offset] & 0xff) << 8) | (in[offset + 1] & 0xff));
+	}
+	
+	/**
+	 * Map a signed value to an unsigned one with small magnitudes first:
+	 * 0, -1, 1, -2, 2 become 0, 1, 2, 3, 4
+	 */
+	public static int zigZag(int value){
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	/**
+	 * Undo zigZag()
+	 */
+	public static int unZigZag(int value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Write an unsigned value in 7 bit groups, least significant first, the
+	 * high bit of a byte is set when another byte follows
+	 * @return The amount of bytes written
+	 */
+	public static int putVarint(byte[] out, int offset, int value){
+		
+		int p = offset;
+		
+		while((value & ~0x7f) != 0){
+			out[p++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[p++] = (byte)value;
+		
+		return p - offset;
+	}
+	
+	/**
+	 * Write a 32 bit value in big endian order
+	 */
+	public static void putInt(byte[] out, int offset, int value){
+		putShort(out, offset, value >> 16);
+		putShort(out, offset + 2, value);
+	}
+	
+	/**
+	 * Read a 32 bit value in big endian order
+	 */
+	public static int getInt(byte[] in, int offset){
+		return (getShort(in, offset) << 16) | (getShort(in, offset + 2) & 0xffff);
+	}
+}
@@ -0,0 +1,134 @@
+package romo;
+
+/**
+ * Incremental decoder for the frames described in FrameCodec. Bytes can be
+ * fed in chunks of any size, frames split over several reads or packed
+ * together in one read are both handled. After a CRC failure the decoder
+ * resumes the search for a sync pattern one byte behind the bad frame, so a
+ * corrupted byte costs at most the frames it overlaps.
+ * A decoder is not thread safe, it is meant to run on the reader thread.
+ */
+public class FrameDecoder {
+	
+	private final FrameListener oListener;
+	
+	// Unparsed bytes, never more than one incomplete frame is kept between calls
+	private final byte[] buffer;
+	private int fill;
+	
+	// Statistics
+	private long frames;
+	private long crcErrors;
+	private long droppedBytes;
+	
+	/**
+	 * Initialize FrameDecoder
+	 * @param listener  The FrameListener receiving every valid frame
+	 */
+	public FrameDecoder(FrameListener listener){
+		
+		oListener = listener;
+		buffer = new byte[2 * FrameCodec.MAX_FRAME];
+		fill = 0;
+	}
+	
+	/**
+	 * Feed received bytes to the decoder, every completed frame is reported
+	 * to the FrameListener before this method returns
+	 */
+	public void feed(byte[] data, int offset, int length){
+		
+		while(length > 0){
+			
+			int count = Math.min(length, buffer.length - fill);
+			
+			System.arraycopy(data, offset, buffer, fill, count);
+			fill += count;
+			offset += count;
+			length -= count;
+			
+			parse();
+		}
+	}
+	
+	/**
+	 * Drop a partially received frame, used when the connection restarts
+	 */
+	public void reset(){
+		fill = 0;
+	}
+	
+	private void parse(){
+		
+		int pos = 0;
+		
+		while(true){
+			
+			// Search the sync pattern
+			int start = pos;
+			
+			while((pos + 1 < fill) && !(((buffer[pos] & 0xff) == FrameCodec.SYNC_1) && ((buffer[pos + 1] & 0xff) == FrameCodec.SYNC_2))){
+				pos++;
+			}
+			
+			// A lone trailing SYNC_1 might be the start of the next frame
+			if((pos + 1 >= fill) && ((pos >= fill) || ((buffer[pos] & 0xff) != FrameCodec.SYNC_1))){
+				pos = fill;
+			}
+			
+			droppedBytes += pos - start;
+			
+			if(fill - pos < FrameCodec.HEADER_SIZE){
+				break;
+			}
+			
+			int payloadLength = buffer[pos + 3] & 0xff;
+			int frameLength = payloadLength + FrameCodec.OVERHEAD;
+			
+			if(fill - pos < frameLength){
+				break;
+			}
+			
+			int crc = FrameCodec.crc16(buffer, pos + 2, payloadLength + 2);
+			
+			if(crc == (FrameCodec.getShort(buffer, pos + FrameCodec.HEADER_SIZE + payloadLength) & 0xffff)){
+				
+				frames++;
+				oListener.onFrame(buffer[pos + 2] & 0xff, buffer, pos + FrameCodec.HEADER_SIZE, payloadLength);
+				pos += frameLength;
+				
+			}else{
+				
+				// Resynchronize on the next sync pattern inside the bad frame
+				crcErrors++;
+				droppedBytes++;
+				pos++;
+			}
+		}
+		
+		// Keep the incomplete tail for the next call
+		fill -= pos;
+		System.arraycopy(buffer, pos, buffer, 0, fill);
+	}
+	
+	/**
+	 * Return the amount of valid frames decoded
+	 */
+	public long getFrameCount(){
+		return frames;
+	}
+	
+	/**
+	 * Return the amount of frames rejected by the CRC check
+	 */
+	public long getCrcErrorCount(){
+		return crcErrors;
+	}
+	
+	/**
+	 * Return the amount of bytes skipped while searching for a frame
+	 */
+	public long getDroppedByteCount(){
+		return droppedBytes;
+	}
+}
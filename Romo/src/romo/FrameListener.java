@@ -0,0 +1,14 @@
+package romo;
+
+public interface FrameListener {
+	
+	/**
+	 * Called for every frame that passed the CRC check. The payload array
+	 * belongs to the decoder and is only valid during this call.
+	 * @param type  The frame type
+	 * @param payload  The array holding the payload
+	 * @param offset  The offset of the first payload byte
+	 * @param length  The amount of payload bytes
+	 */
+	public void onFrame(int type, byte[] payload, int offset, int length);
+}
@@ -0,0 +1,134 @@
+package romo;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * This thread runs during a connection with a remote device next to the
+ * WriterThread. Every heartbeat interval it queues a ping, the robot answers
+ * it with an acknowledgement that the BluetoothService hands to the
+ * LinkQuality. When nothing was received for the dead link timeout it closes
+ * the Transport, the blocked read then fails and reports the disconnect long
+ * before the socket would notice.
+ */
+class HeartbeatThread extends Thread {
+	
+	// Debugging
+	private static final String TAG = "HeartbeatThread";
+	
+	// The last set point key is reserved for the pings, an unsent ping is replaced by the next
+	static final int SETPOINT_KEY = OutputQueue.SETPOINT_KEYS - 1;
+	
+	private final Transport oTransport;
+	private final OutputQueue oQueue;
+	private final LinkQuality oQuality;
+	private final int generation;
+	private final byte[] ping;
+	private volatile LinkQualityListener oListener;
+	private volatile boolean running;
+	
+	/**
+	 * Initialize HeartbeatThread
+	 * @param transport  The Transport to close when the link is dead
+	 * @param queue  The OutputQueue the pings are offered to
+	 * @param quality  The LinkQuality to update
+	 * @param generation  The connection generation passed back to the LinkQualityListener
+	 */
+	HeartbeatThread(Transport transport, OutputQueue queue, LinkQuality quality, int generation){
+		
+		super("HeartbeatThread");
+		
+		oTransport = transport;
+		oQueue = queue;
+		oQuality = quality;
+		this.generation = generation;
+		ping = new byte[FrameCodec.OVERHEAD + FrameCodec.PING_SIZE];
+		running = true;
+	}
+	
+	/**
+	 * Register the listener of quality level changes
+	 * @param listener  The LinkQualityListener or null
+	 */
+	void register(LinkQualityListener listener){
+		oListener = listener;
+	}
+	
+	/**
+	 * Send pings and watch the link until cancelled
+	 */
+	@Override
+	public void run() {
+		
+		Log.d(TAG, "begin HeartbeatThread job");
+		
+		oQuality.reset(System.nanoTime());
+		
+		int level = LinkQuality.QUALITY_UNKNOWN;
+		
+		try{
+			
+			while(running){
+				
+				Thread.sleep(oQuality.getHeartbeatInterval());
+				
+				long now = System.nanoTime();
+				
+				if(oQuality.isDead(now)){
+					
+					Log.w(TAG, "nothing received for " + oQuality.getDeadTimeout() + " ms, closing dead link");
+					
+					oQuality.onDead();
+					level = report(level, LinkQuality.QUALITY_DEAD);
+					
+					// Let the reader notice the broken link and report the disconnect
+					try{
+						oTransport.close();
+					}catch(IOException e){
+						Log.e(TAG, "unable to close transport", e);
+					}
+					break;
+				}
+				
+				int sequence = oQuality.nextPing(now, oQueue.getWrittenBytes());
+				oQueue.offerSetpoint(SETPOINT_KEY, ping, 0, FrameCodec.encodePing(ping, 0, sequence));
+				
+				level = report(level, oQuality.getQuality(now));
+				
+				LinkQualityListener listener = oListener;
+				
+				if(listener != null){
+					listener.onHeartbeat(generation, now);
+				}
+			}
+		
+		}catch(InterruptedException e){
+			
+			Log.d(TAG, "heartbeat cancelled");
+		}
+	}
+	
+	/**
+	 * Report a change of the quality level
+	 * @return The current level
+	 */
+	private int report(int from, int to){
+		
+		LinkQualityListener listener = oListener;
+		
+		if((from != to) && (listener != null)){
+			listener.onQualityChanged(generation, from, to);
+		}
+		
+		return to;
+	}
+	
+	/**
+	 * Stop the heartbeat
+	 */
+	void cancel(){
+		running = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,171 @@
+package romo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets: every power
+ * of two is split in SUB_BUCKETS linear buckets, so a recorded value is kept
+ * within about 6% from 1 ns up to MAX_VALUE. Recording is one atomic
+ * increment and never allocates, it can be called from any thread.
+ */
+public final class LatencyHistogram {
+	
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	
+	// Highest power of two kept apart, larger values land in the last bucket (about 36 minutes)
+	private static final int MAX_EXPONENT = 41;
+	
+	public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+	
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+	
+	private final String name;
+	private final AtomicLongArray counts;
+	
+	/**
+	 * Initialize LatencyHistogram
+	 * @param name  The name used in toString()
+	 */
+	public LatencyHistogram(String name){
+		this.name = name;
+		counts = new AtomicLongArray(BUCKETS);
+	}
+	
+	public String getName(){
+		return name;
+	}
+	
+	private static int index(long value){
+		
+		if(value < SUB_BUCKETS){
+			return (value < 0) ? 0 : (int)value;
+		}
+		
+		if(value > MAX_VALUE){
+			value = MAX_VALUE;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		
+		return ((shift + 1) << SUB_BITS) + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+	
+	/**
+	 * Return the highest value that lands in a bucket
+	 */
+	private static long upperBound(int index){
+		
+		if(index < SUB_BUCKETS){
+			return index;
+		}
+		
+		int shift = (index >>> SUB_BITS) - 1;
+		long lower = ((long)(SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << shift;
+		
+		return lower + (1L << shift) - 1;
+	}
+	
+	/**
+	 * Record one duration
+	 * @param nanos  The duration in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos){
+		counts.incrementAndGet(index(nanos));
+	}
+	
+	/**
+	 * Record the time elapsed since a System.nanoTime() stamp
+	 */
+	public void recordSince(long start){
+		record(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Return the amount of recorded values
+	 */
+	public long getCount(){
+		
+		long total = 0;
+		
+		for(int i=0; i<BUCKETS; i++){
+			total += counts.get(i);
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Return the value below which the given fraction of the recorded values lie
+	 * @param percentile  The percentile between 0 and 100
+	 * @return The upper bound of the bucket in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile){
+		
+		long total = getCount();
+		
+		if(total == 0){
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		
+		for(int i=0; i<BUCKETS; i++){
+			
+			seen += counts.get(i);
+			
+			if(seen >= rank){
+				return upperBound(i);
+			}
+		}
+		
+		return MAX_VALUE;
+	}
+	
+	/**
+	 * Return the upper bound of the highest bucket in use
+	 */
+	public long getMax(){
+		
+		for(int i=BUCKETS-1; i>=0; i--){
+			
+			if(counts.get(i) != 0){
+				return upperBound(i);
+			}
+		}
+		
+		return 0;
+	}
+	
+	public void reset(){
+		
+		for(int i=0; i<BUCKETS; i++){
+			counts.set(i, 0);
+		}
+	}
+	
+	/**
+	 * Append a line with count, p50, p99, p999 and max in microseconds
+	 */
+	public void appendTo(StringBuilder out){
+		
+		out.append(name)
+			.append(": n=").append(getCount())
+			.append(" p50=").append(getPercentile(50) / 1000)
+			.append(" p99=").append(getPercentile(99) / 1000)
+			.append(" p999=").append(getPercentile(99.9) / 1000)
+			.append(" max=").append(getMax() / 1000)
+			.append(" us");
+	}
+	
+	@Override
+	public String toString(){
+		
+		StringBuilder out = new StringBuilder();
+		appendTo(out);
+		
+		return out.toString();
+	}
+}
@@ -0,0 +1,74 @@
+package romo;
+
+/**
+ * One LatencyHistogram per stage of the link pipeline. Received bytes pass
+ * read, decode, dispatch and handle, commands pass enqueue and write.
+ */
+public final class LatencyStats {
+	
+	// Stages
+	public static final int STAGE_READ = 0;						// first byte read until the ReceiveBuffer is filled
+	public static final int STAGE_DECODE = 1;						// FrameDecoder.feed() of one ReceiveBuffer
+	public static final int STAGE_DISPATCH = 2;					// ReceiveBuffer filled until the UI thread picks it up
+	public static final int STAGE_HANDLE = 3;						// listener call on the UI thread
+	public static final int STAGE_ENQUEUE = 4;						// command encoded and offered to the OutputQueue
+	public static final int STAGE_WRITE = 5;						// oldest frame of a batch queued until written and flushed
+	public static final int STAGE_COUNT = 6;
+	
+	private static final String[] NAMES = {"read", "decode", "dispatch", "handle", "enqueue", "write"};
+	
+	private final LatencyHistogram[] histograms;
+	
+	public LatencyStats(){
+		
+		histograms = new LatencyHistogram[STAGE_COUNT];
+		
+		for(int i=0; i<STAGE_COUNT; i++){
+			histograms[i] = new LatencyHistogram(NAMES[i]);
+		}
+	}
+	
+	/**
+	 * @param stage  One of the STAGE_ constants
+	 */
+	public LatencyHistogram get(int stage){
+		return histograms[stage];
+	}
+	
+	/**
+	 * Record a duration of a stage in nanoseconds
+	 */
+	public void record(int stage, long nanos){
+		histograms[stage].record(nanos);
+	}
+	
+	/**
+	 * Record the time elapsed since a System.nanoTime() stamp
+	 */
+	public void recordSince(int stage, long start){
+		histograms[stage].record(System.nanoTime() - start);
+	}
+	
+	public void reset(){
+		
+		for(int i=0; i<STAGE_COUNT; i++){
+			histograms[i].reset();
+		}
+	}
+	
+	/**
+	 * Return one line per stage with its percentiles
+	 */
+	@Override
+	public String toString(){
+		
+		StringBuilder out = new StringBuilder();
+		
+		for(int i=0; i<STAGE_COUNT; i++){
+			histograms[i].appendTo(out);
+			out.append('\n');
+		}
+		
+		return out.toString();
+	}
+}
@@ -0,0 +1,104 @@
+package romo;
+
+/**
+ * A reusable slot of the LinkEventRing, carrying a state change of the
+ * BluetoothService, a chunk of received bytes or a change of the link quality. A LinkEvent is only
+ * valid until the LinkEventListener returns from handling it.
+ */
+public final class LinkEvent {
+	
+	// Event types
+	public static final int TYPE_STATE = 0;					// connection state changed
+	public static final int TYPE_DATA = 1;						// bytes received
+	public static final int TYPE_QUALITY = 2;					// LinkQuality level changed
+	
+	// Sequence this slot was last claimed and published with, -1 if never
+	long claimed = -1;
+	volatile long published = -1;
+	
+	int type;
+	int from;
+	int to;
+	int generation;
+	String deviceName;
+	ReceiveBuffer buffer;
+	long timestamp;
+	
+	LinkEvent(){
+	}
+	
+	void setState(int from, int to, int generation, String deviceName){
+		this.type = TYPE_STATE;
+		this.from = from;
+		this.to = to;
+		this.generation = generation;
+		this.deviceName = deviceName;
+		this.buffer = null;
+		this.timestamp = System.nanoTime();
+	}
+	
+	void setQuality(int from, int to, int generation){
+		this.type = TYPE_QUALITY;
+		this.from = from;
+		this.to = to;
+		this.generation = generation;
+		this.buffer = null;
+		this.timestamp = System.nanoTime();
+	}
+	
+	void setData(int generation, ReceiveBuffer buffer){
+		this.type = TYPE_DATA;
+		this.generation = generation;
+		this.buffer = buffer;
+		this.timestamp = buffer.getTimestamp();
+	}
+	
+	/**
+	 * Return one of the TYPE_ constants
+	 */
+	public int getType(){
+		return type;
+	}
+	
+	/**
+	 * Return the state before the transition of a TYPE_STATE event or the
+	 * previous LinkQuality level of a TYPE_QUALITY event
+	 */
+	public int getFrom(){
+		return from;
+	}
+	
+	/**
+	 * Return the state after the transition of a TYPE_STATE event or the new
+	 * LinkQuality level of a TYPE_QUALITY event
+	 */
+	public int getTo(){
+		return to;
+	}
+	
+	/**
+	 * Return the connection generation in which the event happened
+	 */
+	public int getGeneration(){
+		return generation;
+	}
+	
+	public String getDeviceName(){
+		return deviceName;
+	}
+	
+	/**
+	 * Return the received bytes of a TYPE_DATA event, released by the
+	 * LinkEventRing after the event was handled unless retained
+	 */
+	public ReceiveBuffer getBuffer(){
+		return buffer;
+	}
+	
+	/**
+	 * Return the System.nanoTime() of the transition or of the read
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+}
@@ -0,0 +1,11 @@
+package romo;
+
+public interface LinkEventListener {
+	
+	/**
+	 * Called on the consumer thread for every event drained from the LinkEventRing
+	 * @param event  The event, only valid during this call
+	 * @param endOfBatch  True for the last event of this drain
+	 */
+	public void onEvent(LinkEvent event, boolean endOfBatch);
+}
@@ -0,0 +1,214 @@
+package romo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring of preallocated LinkEvents between the BluetoothService threads and
+ * one consumer thread. A producer claims the next sequence, fills the slot
+ * and publishes it, the consumer drains all published slots in order and
+ * the slots are reused afterwards, so no event allocates.
+ * The consumer is signalled once per batch, not once per event.
+ */
+public final class LinkEventRing {
+	
+	public static final int DEFAULT_SIZE = 1024;
+	
+	// Slots only state changes may claim, so a data flood cannot hide a transition
+	private static final int RESERVE = 16;
+	
+	private final LinkEvent[] slots;
+	private final int mask;
+	
+	// Next sequence to claim, shared by the producers
+	private final AtomicLong claimed;
+	
+	// Next sequence to drain, only written by the consumer
+	private volatile long consumed;
+	
+	// Set from the first publish until the consumer starts draining
+	private final AtomicBoolean signalled;
+	private volatile Runnable oSignal;
+	
+	private final AtomicLong dropped;
+	
+	/**
+	 * Initialize LinkEventRing with DEFAULT_SIZE slots
+	 */
+	public LinkEventRing(){
+		this(DEFAULT_SIZE);
+	}
+	
+	/**
+	 * Initialize LinkEventRing
+	 * @param size  The number of slots, a power of two larger than the reserve
+	 */
+	public LinkEventRing(int size){
+		
+		if((size <= RESERVE) || (Integer.bitCount(size) != 1)){
+			throw new IllegalArgumentException("size must be a power of two above " + RESERVE);
+		}
+		
+		slots = new LinkEvent[size];
+		mask = size - 1;
+		
+		for(int i=0; i<size; i++){
+			slots[i] = new LinkEvent();
+		}
+		
+		claimed = new AtomicLong();
+		consumed = 0;
+		signalled = new AtomicBoolean();
+		dropped = new AtomicLong();
+	}
+	
+	/**
+	 * Set the Runnable that wakes up the consumer, it runs on the producing
+	 * thread at most once until the next drain()
+	 */
+	public void setSignal(Runnable signal){
+		oSignal = signal;
+	}
+	
+	/**
+	 * Claim the next free slot
+	 * @param reserved  True to allow the slots kept for state changes
+	 * @return The slot to fill and publish, or null if the ring is full
+	 */
+	LinkEvent claim(boolean reserved){
+		
+		int limit = reserved ? slots.length : (slots.length - RESERVE);
+		
+		while(true){
+			
+			long sequence = claimed.get();
+			
+			if(sequence - consumed >= limit){
+				dropped.incrementAndGet();
+				return null;
+			}
+			
+			if(claimed.compareAndSet(sequence, sequence + 1)){
+				
+				LinkEvent event = slots[(int)sequence & mask];
+				event.claimed = sequence;
+				
+				return event;
+			}
+		}
+	}
+	
+	/**
+	 * Make a claimed and filled slot visible to the consumer
+	 */
+	void publish(LinkEvent event){
+		
+		event.published = event.claimed;
+		
+		signal();
+	}
+	
+	/**
+	 * Hand the published events to the listener in order, on the consumer
+	 * thread only. The ReceiveBuffer of a data event is released afterwards.
+	 * @param listener  The LinkEventListener to call
+	 * @param max  The maximum number of events of this batch
+	 * @return The number of events handled
+	 */
+	public int drain(LinkEventListener listener, int max){
+		
+		// Producers signal again for events published from here on
+		signalled.set(false);
+		
+		long next = consumed;
+		int count = 0;
+		
+		while((count < max) && (slots[(int)next & mask].published == next)){
+			
+			LinkEvent event = slots[(int)next & mask];
+			boolean endOfBatch = (count + 1 == max) || (slots[(int)(next + 1) & mask].published != (next + 1));
+			
+			try{
+				listener.onEvent(event, endOfBatch);
+			}finally{
+				
+				if(event.buffer != null){
+					event.buffer.release();
+					event.buffer = null;
+				}
+				
+				next++;
+				count++;
+				
+				// The slot may be claimed again
+				consumed = next;
+			}
+		}
+		
+		// Events left behind by max, drain them in the next batch
+		if((count == max) && (slots[(int)next & mask].published == next)){
+			signal();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Discard the published events without handling them, on the consumer
+	 * thread only. The ReceiveBuffers of data events go back to their pool.
+	 * @return The number of events discarded
+	 */
+	public int clear(){
+		
+		signalled.set(false);
+		
+		long next = consumed;
+		int count = 0;
+		
+		while(slots[(int)next & mask].published == next){
+			
+			LinkEvent event = slots[(int)next & mask];
+			
+			if(event.buffer != null){
+				event.buffer.release();
+				event.buffer = null;
+			}
+			
+			next++;
+			count++;
+			consumed = next;
+		}
+		
+		return count;
+	}
+	
+	private void signal(){
+		
+		if(signalled.compareAndSet(false, true)){
+			
+			Runnable signal = oSignal;
+			
+			if(signal != null){
+				signal.run();
+			}
+		}
+	}
+	
+	/**
+	 * Return the number of published events not drained yet
+	 */
+	public int getBacklog(){
+		return (int)(claimed.get() - consumed);
+	}
+	
+	/**
+	 * Return the number of events dropped because the ring was full
+	 */
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+	
+	public int getSize(){
+		return slots.length;
+	}
+}
@@ -0,0 +1,330 @@
+package romo;
+
+/**
+ * Estimates the quality of the link from heartbeats. Every heartbeat sends a
+ * ping the robot answers with an acknowledgement, the round-trip times feed
+ * smoothed averages like the TCP retransmission timer (RFC 6298): the RTT
+ * and its mean deviation, the jitter. A ping that is not answered within the
+ * dead link timeout counts as lost. The received and written bytes between
+ * heartbeats give the achieved throughput in both directions.
+ * 
+ * A link is dead when nothing at all was received for the dead link timeout.
+ * Detection starts with the first answered ping, so a robot that does not
+ * answer pings is never declared dead.
+ */
+public class LinkQuality {
+	
+	// Quality levels
+	public static final int QUALITY_UNKNOWN = -1;					// no ping answered yet
+	public static final int QUALITY_DEAD = 0;
+	public static final int QUALITY_POOR = 1;
+	public static final int QUALITY_FAIR = 2;
+	public static final int QUALITY_GOOD = 3;
+	
+	public static final long DEFAULT_HEARTBEAT_INTERVAL = 100;		// ms
+	public static final long DEFAULT_DEAD_TIMEOUT = 400;			// ms
+	
+	// Thresholds of the quality levels
+	private static final long GOOD_RTT = 50000000L;				// 50 ms
+	private static final long FAIR_RTT = 200000000L;				// 200 ms
+	private static final double GOOD_LOSS = 0.03;
+	private static final double FAIR_LOSS = 0.15;
+	
+	// Gains of the moving averages
+	private static final double RTT_GAIN = 0.125;
+	private static final double JITTER_GAIN = 0.25;
+	private static final double LOSS_GAIN = 0.05;
+	private static final double THROUGHPUT_GAIN = 0.25;
+	
+	// Pings waiting for an answer, indexed by sequence, a power of two
+	private static final int PINGS = 64;
+	
+	private final long[] pingTimes;
+	private final int[] pingSequences;
+	private final boolean[] pingPending;
+	private int nextSequence;
+	
+	private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+	private volatile long deadTimeout = DEFAULT_DEAD_TIMEOUT;
+	
+	// Estimates, guarded by this
+	private boolean sampled;
+	private double rtt;
+	private double jitter;
+	private long lastRtt;
+	private double loss;
+	private double receiveRate;
+	private double sendRate;
+	private long lastSample;
+	private long lastReceivedBytes;
+	private long lastSentBytes;
+	private long pings;
+	private long lostPings;
+	private long deadLinks;
+	
+	// Written by the reader only
+	private volatile long receivedBytes;
+	private volatile long lastReceive;
+	
+	public LinkQuality(){
+		
+		pingTimes = new long[PINGS];
+		pingSequences = new int[PINGS];
+		pingPending = new boolean[PINGS];
+	}
+	
+	/**
+	 * @param millis  The time between heartbeats
+	 */
+	public void setHeartbeatInterval(long millis){
+		heartbeatInterval = millis;
+	}
+	
+	public long getHeartbeatInterval(){
+		return heartbeatInterval;
+	}
+	
+	/**
+	 * @param millis  How long nothing may be received before the link is dead,
+	 * 	a few heartbeat intervals
+	 */
+	public void setDeadTimeout(long millis){
+		deadTimeout = millis;
+	}
+	
+	public long getDeadTimeout(){
+		return deadTimeout;
+	}
+	
+	/**
+	 * Forget the estimates of the previous connection
+	 * @param now  The System.nanoTime() the connection was made
+	 */
+	public synchronized void reset(long now){
+		
+		for(int i=0; i<PINGS; i++){
+			pingPending[i] = false;
+		}
+		
+		sampled = false;
+		rtt = 0;
+		jitter = 0;
+		lastRtt = 0;
+		loss = 0;
+		receiveRate = 0;
+		sendRate = 0;
+		lastSample = now;
+		lastReceivedBytes = receivedBytes;
+		lastSentBytes = -1;
+		lastReceive = now;
+	}
+	
+	/**
+	 * Account received bytes, called by the reader for every chunk
+	 */
+	void onReceive(int length, long now){
+		receivedBytes += length;
+		lastReceive = now;
+	}
+	
+	/**
+	 * Start a heartbeat: count the pings that were not answered in time as
+	 * lost, sample the throughput and register a new ping
+	 * @param now  The System.nanoTime() of the heartbeat
+	 * @param sentBytes  The total amount of bytes written so far
+	 * @return The sequence number of the new ping, 16 bits
+	 */
+	public synchronized int nextPing(long now, long sentBytes){
+		
+		long timeout = deadTimeout * 1000000L;
+		
+		for(int i=0; i<PINGS; i++){
+			
+			if(pingPending[i] && (now - pingTimes[i] > timeout)){
+				pingPending[i] = false;
+				lostPings++;
+				loss += LOSS_GAIN * (1.0 - loss);
+			}
+		}
+		
+		long elapsed = now - lastSample;
+		
+		if(elapsed > 0){
+			
+			long received = receivedBytes;
+			
+			receiveRate += THROUGHPUT_GAIN * ((received - lastReceivedBytes) * 1e9 / elapsed - receiveRate);
+			
+			// The written bytes restart at 0 when the OutputQueue statistics are reset
+			if((lastSentBytes >= 0) && (sentBytes >= lastSentBytes)){
+				sendRate += THROUGHPUT_GAIN * ((sentBytes - lastSentBytes) * 1e9 / elapsed - sendRate);
+			}
+			
+			lastReceivedBytes = received;
+			lastSentBytes = sentBytes;
+			lastSample = now;
+		}
+		
+		int sequence = nextSequence;
+		int slot = sequence & (PINGS - 1);
+		
+		// A ping still pending after PINGS heartbeats was lost anyway
+		if(pingPending[slot]){
+			lostPings++;
+			loss += LOSS_GAIN * (1.0 - loss);
+		}
+		
+		pingTimes[slot] = now;
+		pingSequences[slot] = sequence;
+		pingPending[slot] = true;
+		
+		nextSequence = (sequence + 1) & 0xffff;
+		pings++;
+		
+		return sequence;
+	}
+	
+	/**
+	 * Match the answer of a ping
+	 * @param sequence  The sequence number echoed by the robot
+	 * @param now  The System.nanoTime() the answer was read
+	 */
+	public synchronized void onPong(int sequence, long now){
+		
+		int slot = sequence & (PINGS - 1);
+		
+		// Late, duplicated or corrupted
+		if(!pingPending[slot] || (pingSequences[slot] != sequence)){
+			return;
+		}
+		
+		pingPending[slot] = false;
+		
+		long sample = now - pingTimes[slot];
+		
+		if(sampled){
+			jitter += JITTER_GAIN * (Math.abs(sample - rtt) - jitter);
+			rtt += RTT_GAIN * (sample - rtt);
+		}else{
+			rtt = sample;
+			jitter = sample / 2.0;
+			sampled = true;
+		}
+		
+		lastRtt = sample;
+		loss -= LOSS_GAIN * loss;
+	}
+	
+	/**
+	 * Return true if nothing was received for the dead link timeout
+	 */
+	public boolean isDead(long now){
+		
+		synchronized(this){
+			
+			if(!sampled){
+				return false;
+			}
+		}
+		
+		return now - lastReceive > deadTimeout * 1000000L;
+	}
+	
+	/**
+	 * Count a link declared dead
+	 */
+	synchronized void onDead(){
+		deadLinks++;
+	}
+	
+	/**
+	 * Return one of the QUALITY_ constants
+	 */
+	public synchronized int getQuality(){
+		return getQuality(System.nanoTime());
+	}
+	
+	synchronized int getQuality(long now){
+		
+		if(!sampled){
+			return QUALITY_UNKNOWN;
+		}
+		
+		if(isDead(now)){
+			return QUALITY_DEAD;
+		}
+		
+		if((rtt < GOOD_RTT) && (loss < GOOD_LOSS)){
+			return QUALITY_GOOD;
+		}
+		
+		if((rtt < FAIR_RTT) && (loss < FAIR_LOSS)){
+			return QUALITY_FAIR;
+		}
+		
+		return QUALITY_POOR;
+	}
+	
+	/**
+	 * Return the smoothed round-trip time in nanoseconds
+	 */
+	public synchronized long getRtt(){
+		return (long)rtt;
+	}
+	
+	/**
+	 * Return the smoothed mean deviation of the round-trip time in nanoseconds
+	 */
+	public synchronized long getJitter(){
+		return (long)jitter;
+	}
+	
+	/**
+	 * Return the round-trip time of the last answered ping in nanoseconds
+	 */
+	public synchronized long getLastRtt(){
+		return lastRtt;
+	}
+	
+	/**
+	 * Return the smoothed fraction of lost pings, 0 to 1
+	 */
+	public synchronized double getLoss(){
+		return loss;
+	}
+	
+	/**
+	 * Return the smoothed amount of received bytes per second
+	 */
+	public synchronized double getReceiveRate(){
+		return receiveRate;
+	}
+	
+	/**
+	 * Return the smoothed amount of written bytes per second
+	 */
+	public synchronized double getSendRate(){
+		return sendRate;
+	}
+	
+	public synchronized long getPingCount(){
+		return pings;
+	}
+	
+	public synchronized long getLostPingCount(){
+		return lostPings;
+	}
+	
+	/**
+	 * Return the amount of connections closed because the link was dead
+	 */
+	public synchronized long getDeadLinkCount(){
+		return deadLinks;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return String.format("quality %d, rtt %.1f ms, jitter %.1f ms, loss %.1f %%, rx %.0f B/s, tx %.0f B/s, %d pings, %d lost, %d dead links",
+				getQuality(), rtt / 1e6, jitter / 1e6, loss * 100, receiveRate, sendRate, pings, lostPings, deadLinks);
+	}
+}
@@ -0,0 +1,20 @@
+package romo;
+
+public interface LinkQualityListener {
+	
+	/**
+	 * Called on the HeartbeatThread when the quality level of the link changed
+	 * @param generation  The generation the ConnectedThread was started with
+	 * @param from  The previous LinkQuality.QUALITY_ constant
+	 * @param to  The new LinkQuality.QUALITY_ constant
+	 */
+	public void onQualityChanged(int generation, int from, int to);
+	
+	/**
+	 * Called on the HeartbeatThread after every heartbeat, the estimates of
+	 * the LinkQuality are up to date
+	 * @param generation  The generation the ConnectedThread was started with
+	 * @param now  The System.nanoTime() of the heartbeat
+	 */
+	public void onHeartbeat(int generation, long now);
+}
@@ -0,0 +1,793 @@
+package romo;
+
+import java.util.Arrays;
+
+/**
+ * Bounded queue of outgoing frames between the threads that send commands
+ * and the WriterThread. Frames are copied into preallocated slots, so
+ * enqueueing never allocates. The writer drains the queue in batches: after
+ * the first frame it waits a short window for more frames and sends all of
+ * them with a single write on the OutputStream.
+ * 
+ * What happens when the queue is full depends on the policy:
+ * POLICY_BLOCK waits for room (bounded by the block timeout),
+ * POLICY_DROP_OLDEST discards the oldest queued frame and
+ * POLICY_REJECT refuses the new frame. The default is POLICY_REJECT: a
+ * discrete command is sent once or offer() returns false, it is never
+ * dropped silently. Only set points lose values, to coalescing.
+ * 
+ * Continuous set points (speed, heading, ...) are offered under a key with
+ * offerSetpoint(). Only the newest value per key is kept, it replaces a
+ * value that was not written yet, so a congested link never builds a
+ * backlog of stale set points. Discrete frames and set points leave in the
+ * order they were offered. A key can be paced with setPacing(): its set
+ * points are then written at most once per interval, the newest value at
+ * that moment, and may be overtaken by discrete frames meanwhile.
+ * 
+ * Urgent frames (emergency stop) offered with offerUrgent() bypass both: they
+ * end a running batch window and are written on their own, ahead of every
+ * other queued frame. The time from offerUrgent() to the end of the socket
+ * write is measured, so the worst case stop latency can be proven.
+ * 
+ * Once the robot grants receive credits with grantCredits(), the writer
+ * never sends more discrete frames and set points than the robot has room
+ * for. They then wait here, where set points are still coalesced, instead
+ * of in the socket buffers where nothing can overtake them. Urgent frames
+ * are not limited by credits: a stop is written even when the robot stopped
+ * granting them, so the worst case stop latency holds. Their bytes are still
+ * counted against the credits. A robot that never sends credits is written
+ * to without a limit.
+ */
+public class OutputQueue {
+	
+	// Backpressure policies
+	public static final int POLICY_BLOCK = 0;
+	public static final int POLICY_DROP_OLDEST = 1;
+	public static final int POLICY_REJECT = 2;
+	
+	public static final int DEFAULT_CAPACITY = 64;
+	public static final long DEFAULT_BATCH_WINDOW = 2000000L;		// 2 ms
+	public static final long DEFAULT_BLOCK_TIMEOUT = 1000L;		// 1 s
+	public static final int SETPOINT_KEYS = 8;
+	public static final int URGENT_CAPACITY = 4;
+	
+	// Frame slots, a ring of capacity entries starting at head
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final long[] timestamps;
+	private final long[] sequences;
+	private int head;
+	private int count;
+	
+	// Set point slots, one per key
+	private final byte[][] setpoints;
+	private final int[] setpointLengths;
+	private final long[] setpointTimestamps;
+	private final long[] setpointSequences;
+	private final boolean[] setpointPending;
+	private final long[] setpointPacing;
+	private final long[] setpointNextWrite;
+	private int pendingSetpoints;
+	
+	// Urgent frame slots, a ring of URGENT_CAPACITY entries starting at urgentHead
+	private final byte[][] urgent;
+	private final int[] urgentLengths;
+	private final long[] urgentTimestamps;
+	private int urgentHead;
+	private int urgentCount;
+	
+	// Bytes waiting in both slot kinds and the order of the last offered frame
+	private int bytes;
+	private long sequence;
+	
+	private int policy;
+	private long batchWindow;
+	private long blockTimeout;
+	
+	// Statistics, guarded by this
+	private int maxDepth;
+	private long enqueued;
+	private long dropped;
+	private long rejected;
+	private long coalesced;
+	private long writes;
+	private long writtenBytes;
+	private long totalWriteLatency;
+	private long maxWriteLatency;
+	private long urgentWrites;
+	private long totalUrgentLatency;
+	private long maxUrgentLatency;
+	private long lastUrgentLatency;
+	private volatile LatencyStats oLatency;
+	
+	// Receive credits of the robot, all byte counts are modulo 2^32, guarded by this
+	private boolean flowControl;
+	private int creditLimit;
+	private int sentBytes;
+	private long creditStalls;
+	private long totalCreditStall;
+	private long maxCreditStall;
+	
+	// Enqueue time of the oldest frame in the last batch and if it was urgent, only used by the writer
+	private long batchTimestamp;
+	private boolean batchUrgent;
+	
+	/**
+	 * Initialize OutputQueue
+	 * @param capacity  The maximum amount of queued frames
+	 * @param policy  One of the POLICY_ constants
+	 */
+	public OutputQueue(int capacity, int policy){
+		
+		slots = new byte[capacity][FrameCodec.MAX_FRAME];
+		lengths = new int[capacity];
+		timestamps = new long[capacity];
+		sequences = new long[capacity];
+		head = 0;
+		count = 0;
+		
+		setpoints = new byte[SETPOINT_KEYS][FrameCodec.MAX_FRAME];
+		setpointLengths = new int[SETPOINT_KEYS];
+		setpointTimestamps = new long[SETPOINT_KEYS];
+		setpointSequences = new long[SETPOINT_KEYS];
+		setpointPending = new boolean[SETPOINT_KEYS];
+		setpointPacing = new long[SETPOINT_KEYS];
+		setpointNextWrite = new long[SETPOINT_KEYS];
+		Arrays.fill(setpointNextWrite, System.nanoTime());
+		pendingSetpoints = 0;
+		
+		urgent = new byte[URGENT_CAPACITY][FrameCodec.MAX_FRAME];
+		urgentLengths = new int[URGENT_CAPACITY];
+		urgentTimestamps = new long[URGENT_CAPACITY];
+		urgentHead = 0;
+		urgentCount = 0;
+		
+		this.policy = policy;
+		batchWindow = DEFAULT_BATCH_WINDOW;
+		blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+	}
+	
+	public OutputQueue(){
+		this(DEFAULT_CAPACITY, POLICY_REJECT);
+	}
+	
+	/**
+	 * Set what happens when a frame is offered to a full queue
+	 * @param policy  One of the POLICY_ constants
+	 */
+	public synchronized void setPolicy(int policy){
+		this.policy = policy;
+		notifyAll();
+	}
+	
+	/**
+	 * Set how long the writer waits for more frames after the first one
+	 * @param nanos  The batch window in nanoseconds, 0 sends every frame at once
+	 */
+	public synchronized void setBatchWindow(long nanos){
+		batchWindow = nanos;
+	}
+	
+	/**
+	 * Set how long POLICY_BLOCK waits for room before the frame is rejected
+	 * @param millis  The timeout in milliseconds
+	 */
+	public synchronized void setBlockTimeout(long millis){
+		blockTimeout = millis;
+	}
+	
+	/**
+	 * Limit how often the set points of a key are written
+	 * @param key  The set point key, 0 to SETPOINT_KEYS - 1
+	 * @param nanos  The minimum time between two writes, 0 to write every set point at once
+	 */
+	public synchronized void setPacing(int key, long nanos){
+		
+		// A shorter interval takes effect now
+		if(nanos < setpointPacing[key]){
+			setpointNextWrite[key] -= setpointPacing[key] - nanos;
+		}
+		
+		setpointPacing[key] = nanos;
+		notifyAll();
+	}
+	
+	/**
+	 * Record the write stage of every batch
+	 * @param stats  The LatencyStats to record in or null
+	 */
+	public void setLatencyStats(LatencyStats stats){
+		oLatency = stats;
+	}
+	
+	/**
+	 * Switch flow control off until the robot grants credits again, the byte
+	 * counts of a new connection start at 0
+	 */
+	public synchronized void resetCredits(){
+		flowControl = false;
+		creditLimit = 0;
+		sentBytes = 0;
+		notifyAll();
+	}
+	
+	/**
+	 * Raise the amount of bytes the writer may send, the first grant of a
+	 * connection switches flow control on
+	 * @param limit  The receive limit of a FrameCodec.TYPE_CREDIT frame
+	 */
+	public synchronized void grantCredits(int limit){
+		
+		// A late credit frame must not lower the limit
+		if(!flowControl || (limit - creditLimit > 0)){
+			flowControl = true;
+			creditLimit = limit;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Return the amount of bytes the robot can still take or Integer.MAX_VALUE
+	 * if it does not use flow control
+	 */
+	public synchronized int getCredits(){
+		return flowControl ? Math.max(0, creditLimit - sentBytes) : Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Copy a frame into the queue
+	 * @return False if the frame was rejected
+	 */
+	public synchronized boolean offer(byte[] frame, int offset, int length){
+		
+		if(length > FrameCodec.MAX_FRAME){
+			throw new IllegalArgumentException("frame length " + length);
+		}
+		
+		if(count == slots.length){
+			
+			if(policy == POLICY_DROP_OLDEST){
+				
+				bytes -= lengths[head];
+				head = (head + 1) % slots.length;
+				count--;
+				dropped++;
+				
+			}else if((policy != POLICY_BLOCK) || !awaitRoom()){
+				
+				rejected++;
+				return false;
+			}
+		}
+		
+		int tail = (head + count) % slots.length;
+		
+		System.arraycopy(frame, offset, slots[tail], 0, length);
+		lengths[tail] = length;
+		timestamps[tail] = System.nanoTime();
+		sequences[tail] = sequence++;
+		
+		count++;
+		bytes += length;
+		enqueued++;
+		
+		if(count + pendingSetpoints > maxDepth){
+			maxDepth = count + pendingSetpoints;
+		}
+		
+		notifyAll();
+		return true;
+	}
+	
+	/**
+	 * Copy a set point frame into the slot of its key, replacing the previous
+	 * value of that key if it was not written yet. This never blocks.
+	 * @param key  The set point key, 0 to SETPOINT_KEYS - 1
+	 */
+	public synchronized void offerSetpoint(int key, byte[] frame, int offset, int length){
+		
+		if(length > FrameCodec.MAX_FRAME){
+			throw new IllegalArgumentException("frame length " + length);
+		}
+		
+		if(setpointPending[key]){
+			
+			// Latest value wins
+			bytes -= setpointLengths[key];
+			coalesced++;
+			
+		}else{
+			
+			setpointPending[key] = true;
+			pendingSetpoints++;
+		}
+		
+		System.arraycopy(frame, offset, setpoints[key], 0, length);
+		setpointLengths[key] = length;
+		setpointTimestamps[key] = System.nanoTime();
+		setpointSequences[key] = sequence++;
+		
+		bytes += length;
+		enqueued++;
+		
+		if(count + pendingSetpoints > maxDepth){
+			maxDepth = count + pendingSetpoints;
+		}
+		
+		notifyAll();
+	}
+	
+	/**
+	 * Copy an urgent frame into the priority lane, it is written before any
+	 * other queued frame and without waiting for a batch window. This never blocks.
+	 * @param clearKeys  Bit mask of the set point keys whose pending set
+	 * 	points are discarded, they must not undo a stop command, 0 for none
+	 */
+	public synchronized void offerUrgent(byte[] frame, int offset, int length, int clearKeys){
+		
+		long now = System.nanoTime();
+		
+		if(length > FrameCodec.MAX_FRAME){
+			throw new IllegalArgumentException("frame length " + length);
+		}
+		
+		for(int key=0; key<SETPOINT_KEYS; key++){
+			
+			if(((clearKeys & (1 << key)) != 0) && setpointPending[key]){
+				setpointPending[key] = false;
+				bytes -= setpointLengths[key];
+				pendingSetpoints--;
+			}
+		}
+		
+		// The lane only holds a few identical stop frames, the oldest can go
+		if(urgentCount == URGENT_CAPACITY){
+			urgentHead = (urgentHead + 1) % URGENT_CAPACITY;
+			urgentCount--;
+			dropped++;
+		}
+		
+		int tail = (urgentHead + urgentCount) % URGENT_CAPACITY;
+		
+		System.arraycopy(frame, offset, urgent[tail], 0, length);
+		urgentLengths[tail] = length;
+		urgentTimestamps[tail] = now;
+		
+		urgentCount++;
+		enqueued++;
+		
+		notifyAll();
+	}
+	
+	/**
+	 * Return the key of the oldest pending set point that its pacing allows to write or -1
+	 */
+	private int oldestSetpoint(long now){
+		
+		int oldest = -1;
+		
+		if(pendingSetpoints > 0){
+			
+			for(int key=0; key<SETPOINT_KEYS; key++){
+				
+				if(setpointPending[key] && (setpointNextWrite[key] - now <= 0) && ((oldest < 0) || (setpointSequences[key] < setpointSequences[oldest]))){
+					oldest = key;
+				}
+			}
+		}
+		
+		return oldest;
+	}
+	
+	/**
+	 * Return the System.nanoTime() at which the pacing allows to write the first pending set point
+	 */
+	private long nextSetpointWrite(){
+		
+		long next = Long.MAX_VALUE;
+		
+		for(int key=0; key<SETPOINT_KEYS; key++){
+			
+			if(setpointPending[key] && ((next == Long.MAX_VALUE) || (setpointNextWrite[key] - next < 0))){
+				next = setpointNextWrite[key];
+			}
+		}
+		
+		return next;
+	}
+	
+	private boolean awaitRoom(){
+		
+		long deadline = System.currentTimeMillis() + blockTimeout;
+		
+		while(count == slots.length){
+			
+			long remaining = deadline - System.currentTimeMillis();
+			
+			if(remaining <= 0){
+				return false;
+			}
+			
+			try{
+				wait(remaining);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Wait for at least one frame, then collect the frames arriving within the
+	 * batch window and copy as many whole frames as fit into batch
+	 * @return The amount of bytes copied into batch
+	 */
+	public synchronized int drain(byte[] batch) throws InterruptedException {
+		
+		long stallStart = 0;
+		long now;
+		int limit;
+		
+		while(true){
+			
+			now = System.nanoTime();
+			
+			while((count == 0) && (urgentCount == 0) && (oldestSetpoint(now) < 0)){
+				
+				if(pendingSetpoints == 0){
+					wait();
+				}else{
+					
+					// Only paced set points are waiting
+					long remaining = Math.max(1, nextSetpointWrite() - now);
+					wait(remaining / 1000000L, (int)(remaining % 1000000L));
+				}
+				
+				now = System.nanoTime();
+			}
+			
+			// Give other small frames the chance to join this write, unless something urgent is waiting
+			if((batchWindow > 0) && (urgentCount == 0) && (stallStart == 0)){
+				
+				long deadline = System.nanoTime() + batchWindow;
+				long remaining;
+				
+				while((urgentCount == 0) && (count < slots.length) && (bytes < batch.length) && ((remaining = deadline - System.nanoTime()) > 0)){
+					wait(remaining / 1000000L, (int)(remaining % 1000000L));
+				}
+			}
+			
+			now = System.nanoTime();
+			
+			// A stop never waits for credits
+			limit = (urgentCount > 0) ? batch.length : Math.min(batch.length, getCredits());
+			
+			int next = nextLength(now);
+			
+			if((next > 0) && (next <= limit)){
+				break;
+			}
+			
+			// Cleared meanwhile
+			if(next == 0){
+				continue;
+			}
+			
+			// The robot has no room for the next frame, wait for credits while the queue keeps coalescing
+			if(stallStart == 0){
+				stallStart = now;
+			}
+			
+			wait();
+		}
+		
+		if(stallStart != 0){
+			
+			long stall = System.nanoTime() - stallStart;
+			
+			creditStalls++;
+			totalCreditStall += stall;
+			
+			if(stall > maxCreditStall){
+				maxCreditStall = stall;
+			}
+		}
+		
+		batchTimestamp = Long.MAX_VALUE;
+		
+		int length = 0;
+		
+		// Urgent frames are written on their own so nothing delays them
+		if(urgentCount > 0){
+			
+			batchUrgent = true;
+			
+			while((urgentCount > 0) && (length + urgentLengths[urgentHead] <= limit)){
+				
+				System.arraycopy(urgent[urgentHead], 0, batch, length, urgentLengths[urgentHead]);
+				length += urgentLengths[urgentHead];
+				batchTimestamp = Math.min(batchTimestamp, urgentTimestamps[urgentHead]);
+				
+				urgentHead = (urgentHead + 1) % URGENT_CAPACITY;
+				urgentCount--;
+			}
+			
+			sentBytes += length;
+			notifyAll();
+			return length;
+		}
+		
+		batchUrgent = false;
+		
+		// Merge discrete frames and set points in the order they were offered
+		while(true){
+			
+			int key = oldestSetpoint(now);
+			
+			if((count > 0) && ((key < 0) || (sequences[head] < setpointSequences[key]))){
+				
+				if(length + lengths[head] > limit){
+					break;
+				}
+				
+				System.arraycopy(slots[head], 0, batch, length, lengths[head]);
+				length += lengths[head];
+				bytes -= lengths[head];
+				batchTimestamp = Math.min(batchTimestamp, timestamps[head]);
+				
+				head = (head + 1) % slots.length;
+				count--;
+				
+			}else if(key >= 0){
+				
+				if(length + setpointLengths[key] > limit){
+					break;
+				}
+				
+				System.arraycopy(setpoints[key], 0, batch, length, setpointLengths[key]);
+				length += setpointLengths[key];
+				bytes -= setpointLengths[key];
+				batchTimestamp = Math.min(batchTimestamp, setpointTimestamps[key]);
+				
+				setpointPending[key] = false;
+				setpointNextWrite[key] = now + setpointPacing[key];
+				pendingSetpoints--;
+				
+			}else{
+				break;
+			}
+		}
+		
+		sentBytes += length;
+		notifyAll();
+		return length;
+	}
+	
+	/**
+	 * Return the length of the frame drain() takes first or 0 if the queue is empty
+	 */
+	private int nextLength(long now){
+		
+		if(urgentCount > 0){
+			return urgentLengths[urgentHead];
+		}
+		
+		int key = oldestSetpoint(now);
+		
+		if((count > 0) && ((key < 0) || (sequences[head] < setpointSequences[key]))){
+			return lengths[head];
+		}
+		
+		return (key >= 0) ? setpointLengths[key] : 0;
+	}
+	
+	/**
+	 * Discard all queued frames
+	 */
+	public synchronized void clear(){
+		
+		head = 0;
+		count = 0;
+		urgentHead = 0;
+		urgentCount = 0;
+		
+		for(int key=0; key<SETPOINT_KEYS; key++){
+			setpointPending[key] = false;
+		}
+		pendingSetpoints = 0;
+		
+		bytes = 0;
+		notifyAll();
+	}
+	
+	/**
+	 * Return the System.nanoTime() at which the oldest frame of the last drained batch was queued
+	 */
+	long getBatchTimestamp(){
+		return batchTimestamp;
+	}
+	
+	/**
+	 * Account a completed write on the OutputStream
+	 * @param length  The amount of bytes written
+	 * @param latency  The time between queueing the oldest frame and the end of the write, in nanoseconds
+	 */
+	synchronized void recordWrite(int length, long latency){
+		
+		LatencyStats stats = oLatency;
+		
+		if(stats != null){
+			stats.record(LatencyStats.STAGE_WRITE, latency);
+		}
+		
+		writes++;
+		writtenBytes += length;
+		totalWriteLatency += latency;
+		
+		if(latency > maxWriteLatency){
+			maxWriteLatency = latency;
+		}
+		
+		if(batchUrgent){
+			
+			urgentWrites++;
+			totalUrgentLatency += latency;
+			lastUrgentLatency = latency;
+			
+			if(latency > maxUrgentLatency){
+				maxUrgentLatency = latency;
+			}
+		}
+	}
+	
+	/**
+	 * Return the amount of queued frames, pending set points and urgent frames included
+	 */
+	public synchronized int getDepth(){
+		return count + pendingSetpoints + urgentCount;
+	}
+	
+	/**
+	 * Return how long the oldest queued frame or set point has been waiting
+	 * @param now  The current System.nanoTime()
+	 * @return The age in nanoseconds, 0 if nothing is queued
+	 */
+	public synchronized long getQueueDelay(long now){
+		
+		long oldest = now;
+		
+		if(count > 0){
+			oldest = timestamps[head];
+		}
+		
+		for(int key=0; key<SETPOINT_KEYS; key++){
+			
+			if(setpointPending[key] && (setpointTimestamps[key] - oldest < 0)){
+				oldest = setpointTimestamps[key];
+			}
+		}
+		
+		return now - oldest;
+	}
+	
+	/**
+	 * Return the highest amount of queued frames since the last resetStats()
+	 */
+	public synchronized int getMaxDepth(){
+		return maxDepth;
+	}
+	
+	public synchronized long getEnqueuedCount(){
+		return enqueued;
+	}
+	
+	public synchronized long getDroppedCount(){
+		return dropped;
+	}
+	
+	public synchronized long getRejectedCount(){
+		return rejected;
+	}
+	
+	/**
+	 * Return the amount of set points replaced by a newer value before they were written
+	 */
+	public synchronized long getCoalescedCount(){
+		return coalesced;
+	}
+	
+	/**
+	 * Return the amount of write calls on the OutputStream
+	 */
+	public synchronized long getWriteCount(){
+		return writes;
+	}
+	
+	public synchronized long getWrittenBytes(){
+		return writtenBytes;
+	}
+	
+	/**
+	 * Return the average time in nanoseconds between queueing a frame and writing it
+	 */
+	public synchronized long getAverageWriteLatency(){
+		return (writes == 0) ? 0 : (totalWriteLatency / writes);
+	}
+	
+	/**
+	 * Return the worst time in nanoseconds between queueing a frame and writing it
+	 */
+	public synchronized long getMaxWriteLatency(){
+		return maxWriteLatency;
+	}
+	
+	/**
+	 * Return the amount of urgent writes
+	 */
+	public synchronized long getUrgentWriteCount(){
+		return urgentWrites;
+	}
+	
+	/**
+	 * Return the time in nanoseconds from offerUrgent() to the end of the socket write of the last urgent frame
+	 */
+	public synchronized long getLastUrgentLatency(){
+		return lastUrgentLatency;
+	}
+	
+	/**
+	 * Return the average time in nanoseconds from offerUrgent() to the end of the socket write
+	 */
+	public synchronized long getAverageUrgentLatency(){
+		return (urgentWrites == 0) ? 0 : (totalUrgentLatency / urgentWrites);
+	}
+	
+	/**
+	 * Return the worst time in nanoseconds from offerUrgent() to the end of the socket write
+	 */
+	public synchronized long getMaxUrgentLatency(){
+		return maxUrgentLatency;
+	}
+	
+	/**
+	 * Return how often the writer had to wait for receive credits
+	 */
+	public synchronized long getCreditStallCount(){
+		return creditStalls;
+	}
+	
+	/**
+	 * Return the average time in nanoseconds the writer waited for receive credits
+	 */
+	public synchronized long getAverageCreditStall(){
+		return (creditStalls == 0) ? 0 : (totalCreditStall / creditStalls);
+	}
+	
+	/**
+	 * Return the worst time in nanoseconds the writer waited for receive credits
+	 */
+	public synchronized long getMaxCreditStall(){
+		return maxCreditStall;
+	}
+	
+	public synchronized void resetStats(){
+		maxDepth = count + pendingSetpoints;
+		enqueued = 0;
+		dropped = 0;
+		rejected = 0;
+		coalesced = 0;
+		writes = 0;
+		writtenBytes = 0;
+		totalWriteLatency = 0;
+		maxWriteLatency = 0;
+		urgentWrites = 0;
+		totalUrgentLatency = 0;
+		maxUrgentLatency = 0;
+		lastUrgentLatency = 0;
+		creditStalls = 0;
+		totalCreditStall = 0;
+		maxCreditStall = 0;
+	}
+}
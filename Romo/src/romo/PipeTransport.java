@@ -0,0 +1,77 @@
+package romo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-memory Transport, one end of a connected pair created with createPair().
+ * Closing either end makes the other end read end of stream.
+ */
+public class PipeTransport implements Transport {
+	
+	// Default amount of bytes in flight per direction, roughly a RFCOMM socket buffer
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	private final String name;
+	private final BytePipe oInPipe;
+	private final BytePipe oOutPipe;
+	private volatile boolean closed;
+	
+	private PipeTransport(String name, BytePipe in, BytePipe out){
+		this.name = name;
+		oInPipe = in;
+		oOutPipe = out;
+		closed = false;
+	}
+	
+	/**
+	 * Create two connected transports, what is written to one is read from the other
+	 * @param capacity The amount of bytes buffered per direction
+	 * @return The local end at index 0 and the remote end at index 1
+	 */
+	public static PipeTransport[] createPair(int capacity){
+		
+		BytePipe a = new BytePipe(capacity);
+		BytePipe b = new BytePipe(capacity);
+		
+		return new PipeTransport[]{ new PipeTransport("pipe-local", a, b), new PipeTransport("pipe-remote", b, a) };
+	}
+	
+	public static PipeTransport[] createPair(){
+		return createPair(DEFAULT_CAPACITY);
+	}
+	
+	@Override
+	public void connect() throws IOException {
+		
+		if(closed){
+			throw new IOException("pipe closed");
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return oInPipe.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return oOutPipe.getOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException {
+		
+		closed = true;
+		
+		// Fail our own pending read and signal end of stream to the remote end
+		oInPipe.closeRead();
+		oOutPipe.closeWrite();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+}
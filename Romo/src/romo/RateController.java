@@ -0,0 +1,275 @@
+package romo;
+
+/**
+ * Adapts the telemetry rate and the set point rate to what the link can
+ * carry, with additive increase and multiplicative decrease like TCP
+ * congestion control. It is updated on every heartbeat.
+ * 
+ * A heartbeat on which the smoothed RTT or the delay of the OutputQueue is
+ * above the latency target, or after which the queue kept growing, halves
+ * the rate. The next halving waits a few RTTs, the previous one needs time to
+ * show. A control interval without congestion raises the rate by a step. The
+ * telemetry rate also comes down when clearly fewer frames arrive than were
+ * requested, or when the pings get lost.
+ * 
+ * The telemetry rate is negotiated: the robot acknowledges a request with the
+ * rate it applies, a lower rate caps the requests from then on. Set points of
+ * every drive or tilt are paced at the command rate in the OutputQueue, so
+ * callers keep their own rate and only the newest value goes out.
+ */
+public class RateController {
+	
+	public static final long DEFAULT_TARGET_LATENCY = 100;			// ms
+	public static final int DEFAULT_MIN_COMMAND_RATE = 5;			// set points per second and key
+	public static final int DEFAULT_MAX_COMMAND_RATE = 50;
+	public static final int DEFAULT_MIN_TELEMETRY_RATE = 5;		// frames per second
+	public static final int DEFAULT_MAX_TELEMETRY_RATE = 50;
+	
+	private static final long CONTROL_INTERVAL = 500000000L;		// 500 ms between increases
+	private static final long MIN_HOLD = 300000000L;				// 300 ms between decreases
+	private static final long RESEND_INTERVAL = 1000000000L;		// 1 s until an unacknowledged rate is requested again
+	private static final double DECREASE = 0.5;
+	private static final int COMMAND_STEP = 5;
+	private static final int TELEMETRY_STEP = 5;
+	private static final double DELIVERY_RATIO = 0.75;				// of the requested telemetry frames
+	private static final double LOSS_LIMIT = 0.1;					// of the pings
+	private static final int GROWTH_LIMIT = 3;						// heartbeats the queue may grow in a row
+	
+	// Configuration
+	private volatile boolean enabled = true;
+	private volatile long targetLatency = DEFAULT_TARGET_LATENCY * 1000000L;
+	private volatile int minCommandRate = DEFAULT_MIN_COMMAND_RATE;
+	private volatile int maxCommandRate = DEFAULT_MAX_COMMAND_RATE;
+	private volatile int minTelemetryRate = DEFAULT_MIN_TELEMETRY_RATE;
+	private volatile int maxTelemetryRate = DEFAULT_MAX_TELEMETRY_RATE;
+	
+	// Control state, guarded by this
+	private int commandRate;
+	private long commandHold;
+	private long commandIntervalStart;
+	private int lastDepth;
+	private int growth;
+	
+	private int telemetryRate;
+	private int telemetryCap;
+	private int requestedRate;
+	private int acknowledgedRate;
+	private long lastRequest;
+	private long telemetryHold;
+	private long telemetryIntervalStart;
+	private long telemetryFramesAtStart;
+	
+	// Statistics, guarded by this
+	private long commandDecreases;
+	private long telemetryDecreases;
+	
+	// Written by the reader only
+	private volatile long telemetryFrames;
+	
+	public RateController(){
+		reset(System.nanoTime());
+	}
+	
+	/**
+	 * @param enabled  False to send at the rates of the callers, the robot
+	 * 	keeps the telemetry rate it was given last
+	 */
+	public void setEnabled(boolean enabled){
+		this.enabled = enabled;
+	}
+	
+	public boolean isEnabled(){
+		return enabled;
+	}
+	
+	/**
+	 * @param millis  The latency the RTT and the queue delay must stay under
+	 */
+	public void setTargetLatency(long millis){
+		targetLatency = millis * 1000000L;
+	}
+	
+	/**
+	 * @param min  The lowest amount of set points per second and key
+	 * @param max  The highest amount of set points per second and key
+	 */
+	public void setCommandRateRange(int min, int max){
+		minCommandRate = min;
+		maxCommandRate = max;
+	}
+	
+	/**
+	 * @param min  The lowest telemetry rate requested
+	 * @param max  The highest telemetry rate requested
+	 */
+	public void setTelemetryRateRange(int min, int max){
+		minTelemetryRate = min;
+		maxTelemetryRate = max;
+	}
+	
+	/**
+	 * Start a new connection at the highest rates, the robot has to be told
+	 * the telemetry rate again
+	 * @param now  The System.nanoTime() the connection was made
+	 */
+	public synchronized void reset(long now){
+		
+		commandRate = maxCommandRate;
+		commandHold = now;
+		commandIntervalStart = now;
+		lastDepth = 0;
+		growth = 0;
+		
+		telemetryRate = maxTelemetryRate;
+		telemetryCap = maxTelemetryRate;
+		requestedRate = -1;
+		acknowledgedRate = -1;
+		lastRequest = now;
+		telemetryHold = now;
+		telemetryIntervalStart = now;
+		telemetryFramesAtStart = telemetryFrames;
+	}
+	
+	/**
+	 * Count a received telemetry frame, called by the reader
+	 */
+	void onTelemetry(){
+		telemetryFrames++;
+	}
+	
+	/**
+	 * Take the answer of the robot to a telemetry rate request
+	 * @param requested  The rate that was requested
+	 * @param applied  The rate the robot applies
+	 */
+	public synchronized void onTelemetryRateAck(int requested, int applied){
+		
+		// The robot cannot send faster
+		if(applied < requested){
+			telemetryCap = Math.max(minTelemetryRate, Math.min(telemetryCap, applied));
+			telemetryRate = Math.min(telemetryRate, telemetryCap);
+		}
+		
+		// Answers to older requests are stale
+		if(requested == requestedRate){
+			acknowledgedRate = applied;
+		}
+	}
+	
+	/**
+	 * Adapt the rates to the last heartbeat
+	 * @param now  The System.nanoTime() of the heartbeat
+	 * @param quality  The LinkQuality updated by the heartbeat
+	 * @param queue  The OutputQueue of the connection
+	 * @return True if getTelemetryRate() must be requested from the robot
+	 */
+	public synchronized boolean update(long now, LinkQuality quality, OutputQueue queue){
+		
+		if(!enabled){
+			return false;
+		}
+		
+		long target = targetLatency;
+		long rtt = quality.getRtt();
+		long hold = Math.max(MIN_HOLD, 2 * rtt);
+		
+		int depth = queue.getDepth();
+		growth = (depth > lastDepth) ? growth + 1 : 0;
+		lastDepth = depth;
+		
+		boolean slow = rtt > target;
+		
+		// Commands : the queue holds them back
+		if(slow || (queue.getQueueDelay(now) > target) || (growth >= GROWTH_LIMIT)){
+			
+			if(now - commandHold >= 0){
+				commandRate = Math.max(minCommandRate, (int)(commandRate * DECREASE));
+				commandHold = now + hold;
+				commandDecreases++;
+			}
+			commandIntervalStart = now;
+		
+		}else if(now - commandIntervalStart >= CONTROL_INTERVAL){
+			
+			commandRate = Math.min(maxCommandRate, commandRate + COMMAND_STEP);
+			commandIntervalStart = now;
+		}
+		
+		// Telemetry : the robot or the link holds it back
+		long frames = telemetryFrames;
+		long elapsed = now - telemetryIntervalStart;
+		boolean congested = slow || (quality.getLoss() > LOSS_LIMIT);
+		
+		if(!congested && (elapsed >= CONTROL_INTERVAL) && (acknowledgedRate == telemetryRate)){
+			congested = (frames - telemetryFramesAtStart) * 1e9 / elapsed < DELIVERY_RATIO * telemetryRate;
+		}
+		
+		if(congested){
+			
+			if(now - telemetryHold >= 0){
+				telemetryRate = Math.max(minTelemetryRate, (int)(telemetryRate * DECREASE));
+				telemetryHold = now + hold;
+				telemetryDecreases++;
+			}
+			telemetryIntervalStart = now;
+			telemetryFramesAtStart = frames;
+		
+		}else if(elapsed >= CONTROL_INTERVAL){
+			
+			telemetryRate = Math.min(telemetryCap, telemetryRate + TELEMETRY_STEP);
+			telemetryIntervalStart = now;
+			telemetryFramesAtStart = frames;
+		}
+		
+		// A request or its acknowledgement can be lost
+		if((telemetryRate != requestedRate) || ((acknowledgedRate != requestedRate) && (now - lastRequest >= RESEND_INTERVAL))){
+			requestedRate = telemetryRate;
+			lastRequest = now;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Return the set points per second and key the link can carry
+	 */
+	public synchronized int getCommandRate(){
+		return commandRate;
+	}
+	
+	/**
+	 * Return the minimum time between two set points of a key in nanoseconds, 0 when disabled
+	 */
+	public synchronized long getCommandInterval(){
+		return enabled ? (1000000000L / commandRate) : 0;
+	}
+	
+	/**
+	 * Return the telemetry rate to request from the robot
+	 */
+	public synchronized int getTelemetryRate(){
+		return telemetryRate;
+	}
+	
+	/**
+	 * Return the telemetry rate the robot acknowledged last or -1
+	 */
+	public synchronized int getAcknowledgedTelemetryRate(){
+		return acknowledgedRate;
+	}
+	
+	public synchronized long getCommandDecreaseCount(){
+		return commandDecreases;
+	}
+	
+	public synchronized long getTelemetryDecreaseCount(){
+		return telemetryDecreases;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return String.format("commands %d/s (%d decreases), telemetry %d/s requested, %d/s acknowledged (%d decreases)",
+				commandRate, commandDecreases, telemetryRate, acknowledgedRate, telemetryDecreases);
+	}
+}
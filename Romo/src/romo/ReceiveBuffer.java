@@ -0,0 +1,84 @@
+package romo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reusable chunk of received bytes owned by a BufferPool. Whoever holds a
+ * reference must call release() exactly once when done with it, retain()
+ * adds an extra owner when the buffer is handed to more than one consumer.
+ */
+public final class ReceiveBuffer {
+	
+	private final BufferPool oPool;
+	private final byte[] data;
+	private final AtomicInteger refCount;
+	private int length;
+	private long timestamp;
+	
+	ReceiveBuffer(BufferPool pool, int capacity){
+		oPool = pool;
+		data = new byte[capacity];
+		refCount = new AtomicInteger(0);
+		length = 0;
+		timestamp = 0;
+	}
+	
+	/**
+	 * Return the backing array, only the first getLength() bytes are valid
+	 */
+	public byte[] getData(){
+		return data;
+	}
+	
+	public int getLength(){
+		return length;
+	}
+	
+	public int getCapacity(){
+		return data.length;
+	}
+	
+	/**
+	 * Return the System.nanoTime() at which the bytes were read
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+	
+	void fill(int length, long timestamp){
+		this.length = length;
+		this.timestamp = timestamp;
+	}
+	
+	/**
+	 * Add an owner, each retain() must be matched by a release()
+	 * @return This buffer
+	 */
+	public ReceiveBuffer retain(){
+		
+		if(refCount.getAndIncrement() <= 0){
+			throw new IllegalStateException("retain of a released buffer");
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Drop an owner, the last release() returns the buffer to its pool
+	 */
+	public void release(){
+		
+		int count = refCount.decrementAndGet();
+		
+		if(count == 0){
+			length = 0;
+			oPool.recycle(this);
+		}else if(count < 0){
+			throw new IllegalStateException("buffer released twice");
+		}
+	}
+	
+	void acquired(){
+		refCount.set(1);
+	}
+}
@@ -0,0 +1,62 @@
+package romo;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts: exponential backoff with jitter. The
+ * delay of attempt n is drawn uniformly from [cap / 2, cap] where
+ * cap = min(maxDelay, baseDelay * 2^n), so a short radio dropout is retried
+ * almost at once while a robot that is switched off is not hammered, and
+ * several phones never retry in lock step.
+ */
+public class ReconnectPolicy {
+	
+	public static final long DEFAULT_BASE_DELAY = 250L;			// ms
+	public static final long DEFAULT_MAX_DELAY = 8000L;			// ms
+	public static final int DEFAULT_MAX_ATTEMPTS = 12;
+	
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int maxAttempts;
+	private final Random oRandom;
+	
+	/**
+	 * Initialize ReconnectPolicy
+	 * @param baseDelay  The delay cap of the first attempt in milliseconds
+	 * @param maxDelay  The upper bound of every delay in milliseconds
+	 * @param maxAttempts  The amount of attempts before giving up, 0 retries forever
+	 */
+	public ReconnectPolicy(long baseDelay, long maxDelay, int maxAttempts){
+		
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+		oRandom = new Random();
+	}
+	
+	public ReconnectPolicy(){
+		this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_ATTEMPTS);
+	}
+	
+	/**
+	 * Return true if another attempt is allowed
+	 * @param attempt  The amount of attempts already made
+	 */
+	public boolean shouldRetry(int attempt){
+		return (maxAttempts == 0) || (attempt < maxAttempts);
+	}
+	
+	/**
+	 * Return the delay before an attempt
+	 * @param attempt  The amount of attempts already made
+	 * @return The delay in milliseconds
+	 */
+	public long nextDelay(int attempt){
+		
+		// Shift at most 30 bits, beyond that the cap is maxDelay anyway
+		long cap = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+		long half = cap / 2;
+		
+		return half + (long)(oRandom.nextDouble() * (cap - half));
+	}
+}
@@ -0,0 +1,263 @@
+package romo;
+
+/**
+ * Reliable delivery of discrete commands over the best-effort OutputQueue.
+ * Every command is wrapped in a FrameCodec.TYPE_RELIABLE frame with a
+ * sequence number and kept until the robot acknowledges that sequence.
+ * At most WINDOW commands are unacknowledged, a command past the window is
+ * refused. Frames that are not acknowledged within the retransmission
+ * timeout are sent again on their own, the acknowledged ones are not, and
+ * the timeout doubles with every retry of a frame.
+ * 
+ * Sequence numbers continue over reconnects: after a reconnect every
+ * unacknowledged frame is sent again, the robot drops the copies of frames
+ * it already executed. Set points do not use this channel, a lost set point
+ * is replaced by the next one anyway.
+ */
+public class ReliableChannel {
+	
+	// Unacknowledged frames, a power of two
+	public static final int WINDOW = 16;
+	public static final int DEFAULT_MAX_RETRIES = 8;
+	
+	// Bounds of the retransmission timeout
+	private static final long MIN_TIMEOUT = 50000000L;				// 50 ms
+	private static final long MAX_TIMEOUT = 2000000000L;			// 2 s
+	private static final long INITIAL_TIMEOUT = 250000000L;		// 250 ms, without an RTT estimate
+	private static final int MAX_BACKOFF = 4;
+	
+	private final OutputQueue oQueue;
+	
+	// Frames indexed by sequence, guarded by this
+	private final byte[][] frames;
+	private final int[] lengths;
+	private final int[] sequences;
+	private final long[] firstSent;
+	private final long[] lastSent;
+	private final int[] retries;
+	private final boolean[] pending;
+	private int nextSequence;
+	private int outstanding;
+	
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	
+	// Statistics, guarded by this
+	private long sent;
+	private long delivered;
+	private long retransmits;
+	private long failed;
+	private long refused;
+	private long duplicateAcks;
+	private long totalDeliveryTime;
+	private long maxDeliveryTime;
+	
+	/**
+	 * Initialize ReliableChannel
+	 * @param queue  The OutputQueue the frames are offered to
+	 */
+	public ReliableChannel(OutputQueue queue){
+		
+		oQueue = queue;
+		
+		frames = new byte[WINDOW][FrameCodec.MAX_FRAME];
+		lengths = new int[WINDOW];
+		sequences = new int[WINDOW];
+		firstSent = new long[WINDOW];
+		lastSent = new long[WINDOW];
+		retries = new int[WINDOW];
+		pending = new boolean[WINDOW];
+	}
+	
+	/**
+	 * @param retries  How often a frame is sent again before it counts as failed
+	 */
+	public void setMaxRetries(int retries){
+		maxRetries = retries;
+	}
+	
+	/**
+	 * Send a complete frame reliably, its type and payload are wrapped
+	 * @return False if the window is full
+	 */
+	public synchronized boolean send(byte[] frame, int offset, int length){
+		
+		int payloadLength = frame[offset + 3] & 0xff;
+		
+		if((length != payloadLength + FrameCodec.OVERHEAD) || (payloadLength + FrameCodec.RELIABLE_HEADER_SIZE > FrameCodec.MAX_PAYLOAD)){
+			throw new IllegalArgumentException("frame length " + length);
+		}
+		
+		int sequence = nextSequence;
+		int slot = sequence & (WINDOW - 1);
+		
+		// The frame WINDOW sequences back is not acknowledged yet
+		if(pending[slot]){
+			refused++;
+			return false;
+		}
+		
+		long now = System.nanoTime();
+		
+		lengths[slot] = FrameCodec.encodeReliable(frames[slot], 0, sequence, frame[offset + 2] & 0xff, frame, offset + FrameCodec.HEADER_SIZE, payloadLength);
+		sequences[slot] = sequence;
+		firstSent[slot] = now;
+		lastSent[slot] = now;
+		retries[slot] = 0;
+		pending[slot] = true;
+		
+		nextSequence = (sequence + 1) & 0xffff;
+		outstanding++;
+		sent++;
+		
+		// A frame the queue refuses is sent again on timeout
+		oQueue.offer(frames[slot], 0, lengths[slot]);
+		
+		return true;
+	}
+	
+	/**
+	 * Take the acknowledgement of a sequence
+	 * @param now  The System.nanoTime() the acknowledgement was read
+	 */
+	public synchronized void onAck(int sequence, long now){
+		
+		int slot = sequence & (WINDOW - 1);
+		
+		// The acknowledgement of a copy that was sent again
+		if(!pending[slot] || (sequences[slot] != sequence)){
+			duplicateAcks++;
+			return;
+		}
+		
+		pending[slot] = false;
+		outstanding--;
+		delivered++;
+		
+		long time = now - firstSent[slot];
+		totalDeliveryTime += time;
+		
+		if(time > maxDeliveryTime){
+			maxDeliveryTime = time;
+		}
+	}
+	
+	/**
+	 * Send the frames again whose retransmission timeout expired, called on
+	 * every heartbeat of a connection
+	 * @param now  The current System.nanoTime()
+	 * @param quality  The RTT estimate the timeout is derived from
+	 */
+	public synchronized void retransmit(long now, LinkQuality quality){
+		
+		if(outstanding == 0){
+			return;
+		}
+		
+		long rtt = quality.getRtt();
+		long timeout = (rtt == 0) ? INITIAL_TIMEOUT : Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, rtt + 4 * quality.getJitter()));
+		
+		for(int slot=0; slot<WINDOW; slot++){
+			
+			if(!pending[slot] || (now - lastSent[slot] < (timeout << Math.min(retries[slot], MAX_BACKOFF)))){
+				continue;
+			}
+			
+			if(retries[slot] >= maxRetries){
+				
+				pending[slot] = false;
+				outstanding--;
+				failed++;
+				continue;
+			}
+			
+			retries[slot]++;
+			lastSent[slot] = now;
+			retransmits++;
+			
+			oQueue.offer(frames[slot], 0, lengths[slot]);
+		}
+	}
+	
+	/**
+	 * Send every unacknowledged frame again at once, the previous connection
+	 * may have lost them. This does not count as a retry.
+	 */
+	public synchronized void resend(){
+		
+		long now = System.nanoTime();
+		
+		for(int slot=0; slot<WINDOW; slot++){
+			
+			if(pending[slot]){
+				lastSent[slot] = now;
+				oQueue.offer(frames[slot], 0, lengths[slot]);
+			}
+		}
+	}
+	
+	/**
+	 * Give up on every unacknowledged frame, they count as failed
+	 */
+	public synchronized void clear(){
+		
+		for(int slot=0; slot<WINDOW; slot++){
+			pending[slot] = false;
+		}
+		
+		failed += outstanding;
+		outstanding = 0;
+	}
+	
+	/**
+	 * Return the amount of unacknowledged frames
+	 */
+	public synchronized int getOutstanding(){
+		return outstanding;
+	}
+	
+	public synchronized long getSentCount(){
+		return sent;
+	}
+	
+	public synchronized long getDeliveredCount(){
+		return delivered;
+	}
+	
+	public synchronized long getRetransmitCount(){
+		return retransmits;
+	}
+	
+	/**
+	 * Return the amount of frames given up after the last retry or by clear()
+	 */
+	public synchronized long getFailedCount(){
+		return failed;
+	}
+	
+	/**
+	 * Return the amount of frames refused because the window was full
+	 */
+	public synchronized long getRefusedCount(){
+		return refused;
+	}
+	
+	/**
+	 * Return the average time in nanoseconds from the first send to the acknowledgement
+	 */
+	public synchronized long getAverageDeliveryTime(){
+		return (delivered == 0) ? 0 : (totalDeliveryTime / delivered);
+	}
+	
+	/**
+	 * Return the worst time in nanoseconds from the first send to the acknowledgement
+	 */
+	public synchronized long getMaxDeliveryTime(){
+		return maxDeliveryTime;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return String.format("%d sent, %d delivered (avg %.1f ms, max %.1f ms), %d retransmits, %d failed, %d refused, %d duplicate acks, %d outstanding",
+				sent, delivered, getAverageDeliveryTime() / 1e6, maxDeliveryTime / 1e6, retransmits, failed, refused, duplicateAcks, outstanding);
+	}
+}
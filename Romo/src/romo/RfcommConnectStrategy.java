@@ -0,0 +1,120 @@
+package romo;
+
+import java.util.HashMap;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Connect to the serial port profile of a Bluetooth device. SDP lookup of the
+ * SPP UUID can take several seconds or hang, so the RFCOMM channel that worked
+ * last time is tried first, then SDP lookup and finally the channel used by
+ * nearly every serial module.
+ */
+public class RfcommConnectStrategy extends ConnectStrategy {
+	
+	// Channel of most SPP modules
+	public static final int DEFAULT_CHANNEL = 1;
+	
+	// Phase timeouts in milliseconds
+	public static final long CHANNEL_TIMEOUT = 2000L;
+	public static final long SDP_TIMEOUT = 5000L;
+	
+	// Remote address to last RFCOMM channel that connected
+	private static final HashMap<String, Integer> channelCache = new HashMap<String, Integer>();
+	
+	private final BluetoothDevice oDevice;
+	private final int[] phases;
+	private int cachedChannel;
+	private int phaseCount;
+	
+	/**
+	 * Initialize RfcommConnectStrategy
+	 * @param device  The BluetoothDevice to connect
+	 */
+	public RfcommConnectStrategy(BluetoothDevice device){
+		
+		oDevice = device;
+		phases = new int[3];
+		
+		prepare();
+	}
+	
+	/**
+	 * Build the phase list from the current channel cache
+	 */
+	@Override
+	public void prepare() {
+		
+		cachedChannel = getCachedChannel(oDevice.getAddress());
+		
+		int count = 0;
+		
+		if(cachedChannel > 0){
+			phases[count++] = ConnectListener.PHASE_CACHED_CHANNEL;
+		}
+		
+		phases[count++] = ConnectListener.PHASE_SDP;
+		
+		if(cachedChannel != DEFAULT_CHANNEL){
+			phases[count++] = ConnectListener.PHASE_DIRECT_CHANNEL;
+		}
+		
+		phaseCount = count;
+	}
+	
+	private static int getCachedChannel(String address){
+		
+		synchronized(channelCache){
+			Integer channel = channelCache.get(address);
+			return (channel == null) ? -1 : channel.intValue();
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return oDevice.getName();
+	}
+	
+	@Override
+	public int getPhaseCount() {
+		return phaseCount;
+	}
+	
+	@Override
+	public int getPhase(int index) {
+		return phases[index];
+	}
+	
+	@Override
+	public long getPhaseTimeout(int index) {
+		return (phases[index] == ConnectListener.PHASE_SDP) ? SDP_TIMEOUT : CHANNEL_TIMEOUT;
+	}
+	
+	@Override
+	public Transport createTransport(int index) {
+		
+		switch (phases[index]) {
+		
+		case ConnectListener.PHASE_CACHED_CHANNEL:
+			return new RfcommTransport(oDevice, cachedChannel);
+			
+		case ConnectListener.PHASE_DIRECT_CHANNEL:
+			return new RfcommTransport(oDevice, DEFAULT_CHANNEL);
+			
+		default:
+			return new RfcommTransport(oDevice);
+		}
+	}
+	
+	@Override
+	public void onConnected(int index, Transport transport) {
+		
+		int channel = ((RfcommTransport)transport).getChannel();
+		
+		if(channel > 0){
+			synchronized(channelCache){
+				channelCache.put(oDevice.getAddress(), Integer.valueOf(channel));
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package romo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * Transport over an insecure RFCOMM BluetoothSocket to the serial port
+ * profile of a remote device
+ */
+public class RfcommTransport implements Transport {
+	
+	// Debugging
+	private static final String TAG = "RfcommTransport";
+	
+	//UUID Bluetooth service used by SDP lookup
+	private static final String spp_uuid = "00001101-0000-1000-8000-00805f9b34fb";
+	
+	private final BluetoothDevice oDevice;
+	private final BluetoothSocket oSocket;
+	private final int channel;
+	
+	/**
+	 * Initialize RfcommTransport
+	 * @param device  The BluetoothDevice to connect
+	 */
+	public RfcommTransport(BluetoothDevice device){
+		
+		oDevice = device;
+		channel = -1;
+		
+		// Use temporary BluetoothSocket object because oSocket is final
+		BluetoothSocket temp = null;
+		
+		// Get a RFCOMM BluetoothSocket ready to start a secure 
+		// outgoing connection to this remote device using SDP lookup of UUID
+		try{
+			
+			temp = oDevice.createInsecureRfcommSocketToServiceRecord(UUID.fromString(spp_uuid));
+			
+		}catch(IOException e){
+			
+			Log.e(TAG, "create RFCOMM socket failed", e);
+		}
+		
+		oSocket = temp;
+	}
+	
+	/**
+	 * Initialize a RfcommTransport on a known RFCOMM channel, this skips the
+	 * SDP lookup. The API for it is hidden, so it is called by reflection.
+	 * @param device  The BluetoothDevice to connect
+	 * @param channel  The RFCOMM channel
+	 */
+	public RfcommTransport(BluetoothDevice device, int channel){
+		
+		oDevice = device;
+		this.channel = channel;
+		
+		// Use temporary BluetoothSocket object because oSocket is final
+		BluetoothSocket temp = null;
+		
+		try{
+			
+			temp = (BluetoothSocket)oDevice.getClass().getMethod("createInsecureRfcommSocket", int.class).invoke(oDevice, channel);
+			
+		}catch(Exception e){
+			
+			Log.e(TAG, "create RFCOMM socket on channel " + channel + " failed", e);
+		}
+		
+		oSocket = temp;
+	}
+	
+	/**
+	 * Return the RFCOMM channel, after an SDP lookup it is read from the
+	 * connected socket
+	 * @return The channel or -1 if it is unknown
+	 */
+	public int getChannel(){
+		
+		if((channel > 0) || (oSocket == null)){
+			return channel;
+		}
+		
+		try{
+			
+			Field port = oSocket.getClass().getDeclaredField("mPort");
+			port.setAccessible(true);
+			
+			return port.getInt(oSocket);
+			
+		}catch(Exception e){
+			
+			Log.w(TAG, "RFCOMM channel not available: " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	/**
+	 * Return the remote BluetoothDevice
+	 */
+	public BluetoothDevice getDevice(){
+		return oDevice;
+	}
+	
+	@Override
+	public void connect() throws IOException {
+		
+		if(oSocket == null){
+			throw new IOException("no RFCOMM socket for " + oDevice.getAddress());
+		}
+		
+		oSocket.connect();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return oSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return oSocket.getOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException {
+		
+		if(oSocket != null){
+			oSocket.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return oDevice.getName();
+	}
+}
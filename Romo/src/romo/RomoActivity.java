@@ -1,5 +1,8 @@
 package romo;
 
+import java.io.File;
+import java.io.IOException;
+
 import media.MediaActivity;
 import android.app.ActionBar;
 import android.app.Activity;
@@ -12,6 +15,7 @@ import android.hardware.Camera.Face;
 import android.hardware.Camera.FaceDetectionListener;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Process;
 import android.support.v4.view.GestureDetectorCompat;
 import android.util.Log;
 import android.view.GestureDetector.SimpleOnGestureListener;
@@ -24,34 +28,101 @@ import android.widget.FrameLayout;
 import android.widget.Switch;
 import android.widget.Toast;
 
+import com.example.romo.BuildConfig;
 import com.example.romo.R;
 
 import discovery.DiscoverActivity;
+import simulator.RobotSimulator;
+import simulator.SoakTest;
+import vision.AdaptiveCapture;
+import vision.CaptureModeListener;
+import vision.DetectionRecorder;
+import vision.FaceFollower;
+import vision.FaceTrackListener;
+import vision.FaceTracker;
+import vision.MotorOutput;
+import vision.PreviewPipeline;
+import vision.PreviewStats;
 
 public class RomoActivity extends Activity {
 	
 	// Debugging
 	public static final String TAG = "RomoActivity";
 
+	// Intent extra starting a soak test against the RobotSimulator for the given minutes,
+	// the activity is exported so only debug builds take it
+	public static final String EXTRA_SOAK_MINUTES = "soak_minutes";
+	
+	// Intent extras recording the session to a file, or replaying a recorded file at a speed
+	// factor, only taken by debug builds
+	public static final String EXTRA_RECORD_FILE = "record_file";
+	public static final String EXTRA_REPLAY_FILE = "replay_file";
+	public static final String EXTRA_REPLAY_SPEED = "replay_speed";
+	
+	// Intent extra recording the face detections to a file, to replay them with a DetectionReplay,
+	// only taken by debug builds
+	public static final String EXTRA_DETECTION_FILE = "detection_file";
+	
 	// Intent request codes
 	private static final int REQUEST_ENABLE_BT   = 0;
 	private static final int REQUEST_DISCOVER_BT = 1;
 	private static final int REQUEST_MEDIAPLAYER = 2;
 	
+	// Tracks are checked this often when no faces are reported
+	private static final long TRACK_EXPIRE_INTERVAL = 250;			// ms
+	
 	// Local Bluetooth adapter
 	private BluetoothAdapter oAdapter;
 	
 	// The BluetoothService
 	private BluetoothService oBluetootService;
 	
+	// Drains the events of the BluetoothService once per frame
+	private BluetoothServiceHandler oServiceHandler;
+	
+	// Load driver, only when a debug build is started with EXTRA_SOAK_MINUTES
+	private SoakTest oSoakTest;
+	
+	// Session recording and replay, only when a debug build is started with their extras
+	private SessionRecorder oRecorder;
+	private SessionReplay oReplay;
+	
 	// Detects various gestures and touch events 
 	private GestureDetectorCompat oDetector;
 	
 	// Client for camera service, which manages the actual camera hardware
 	private Camera oCamera;
 	
+	// Clockwise rotation turning the camera frames upright, set by getFrontCamera()
+	private int cameraRotation;
+	
 	// SurfaceView that can display the live image data coming from the camera
 	private CameraPreview oPreview;
+	
+	// Preview frames, looked at for motion while idle and for faces while active
+	private PreviewPipeline oPipeline;
+	private AdaptiveCapture oCapture;
+	
+	// Software face detection on the preview frames, only without hardware face detection
+	private FaceDetectionProcessor oFaceProcessor;
+	
+	// Follows the reported faces, a reaction fires once per person entering
+	private final FaceTracker oTracker = new FaceTracker();
+	private final int[] faceLeft = new int[FaceTracker.MAX_DETECTIONS];
+	private final int[] faceTop = new int[FaceTracker.MAX_DETECTIONS];
+	private final int[] faceRight = new int[FaceTracker.MAX_DETECTIONS];
+	private final int[] faceBottom = new int[FaceTracker.MAX_DETECTIONS];
+	private final Handler oHandler = new Handler();
+	
+	// True while the MediaActivity plays a reaction
+	private boolean reacting;
+	
+	// Drives towards the followed face, stepped by oControlTask while following
+	private FaceFollower oFollower;
+	private boolean following;
+	
+	// Only when a debug build is started with EXTRA_DETECTION_FILE
+	private DetectionRecorder oDetectionRecorder;
 			
 	/**
 	 * Activity initialisation
@@ -74,16 +145,80 @@ public class RomoActivity extends Activity {
 			finish();
 		}
 		
-		oBluetootService = new BluetoothService(this, oHandler);
+		oServiceHandler = new BluetoothServiceHandler(getApplicationContext(), oLinkEventListener);
+		oBluetootService = new BluetoothService(this, oServiceHandler);
+		oBluetootService.setAutoReconnect(true);
+		oBluetootService.setDeliveryMode(FrameBatcher.MODE_LATEST);
+		
+		// adb shell am start -n com.example.romo/romo.RomoActivity --ei soak_minutes 120
+		int soakMinutes = getIntent().getIntExtra(EXTRA_SOAK_MINUTES, 0);
+		
+		if(BuildConfig.DEBUG && (soakMinutes > 0)){
+			oSoakTest = new SoakTest(oBluetootService, new RobotSimulator());
+			oSoakTest.setDuration(soakMinutes * 60 * 1000L);
+			oSoakTest.start();
+		}
+		
+		// adb shell am start -n com.example.romo/romo.RomoActivity --es record_file /sdcard/romo.rec
+		String recordFile = getIntent().getStringExtra(EXTRA_RECORD_FILE);
+		
+		if(BuildConfig.DEBUG && (recordFile != null)){
+			try{
+				oRecorder = new SessionRecorder(new File(recordFile));
+				oBluetootService.setSessionRecorder(oRecorder);
+			}catch(IOException e){
+				Log.e(TAG, "unable to record to " + recordFile, e);
+			}
+		}
+		
+		// adb shell am start -n com.example.romo/romo.RomoActivity --es replay_file /sdcard/romo.rec --ef replay_speed 4
+		String replayFile = getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+		
+		if(BuildConfig.DEBUG && (replayFile != null)){
+			oReplay = oBluetootService.replay(new File(replayFile), getIntent().getFloatExtra(EXTRA_REPLAY_SPEED, 1.0f));
+		}
+		
 		oDetector = new GestureDetectorCompat(this, GestureListener);
+		oTracker.setListener(oFaceTrackListener);
+		
+		// Stepped once connected, see updateFollower()
+		oFollower = new FaceFollower(oTracker, oMotorOutput);
+		
+		// adb shell am start -n com.example.romo/romo.RomoActivity --es detection_file /sdcard/romo.det
+		String detectionFile = getIntent().getStringExtra(EXTRA_DETECTION_FILE);
+		
+		if(BuildConfig.DEBUG && (detectionFile != null)){
+			try{
+				oDetectionRecorder = new DetectionRecorder(new File(detectionFile));
+			}catch(IOException e){
+				Log.e(TAG, "unable to record detections to " + detectionFile, e);
+			}
+		}
 		
 		// Get acces to front camera
 		oCamera = getFrontCamera();
+		oFollower.setRotation(cameraRotation);
 		
 		// Setup camera preview and face detection listener
 		if(oCamera != null){
 						
 			oPreview = new CameraPreview(this, oCamera);
+			
+			PreviewStats stats = new PreviewStats();
+			
+			// Without hardware support the faces are found in the preview frames
+			if(!oPreview.hasHardwareFaceDetection()){
+				oFaceProcessor = new FaceDetectionProcessor(oCamera, oFaceDetectionListener, stats);
+				oFaceProcessor.getDetector().setRotation(cameraRotation);
+			}
+				
+			// Start idle, the first motion switches to the full preview
+			oCapture = new AdaptiveCapture(oFaceProcessor);
+			oCapture.setListener(oCaptureModeListener);
+			oPipeline = new PreviewPipeline(oCapture, oPreview, stats);
+			oPreview.setPreviewPipeline(oPipeline);
+			setCaptureMode(AdaptiveCapture.MODE_IDLE);
+			
 			FrameLayout preview = (FrameLayout)findViewById(R.id.camera_preview);
 			preview.addView(oPreview);
 			oCamera.setFaceDetectionListener(oFaceDetectionListener);
@@ -116,7 +251,47 @@ public class RomoActivity extends Activity {
 	protected void onDestroy() {
 		super.onDestroy();
 		
+		if(oSoakTest != null){
+			oSoakTest.stop();
+		}
+		
+		if(oReplay != null){
+			oReplay.cancel();
+		}
+		
 		oBluetootService.stop();
+		oServiceHandler.cancel();
+		
+		if(oPipeline != null){
+			oPipeline.stop();
+		}
+		
+		if(oFaceProcessor != null){
+			oFaceProcessor.close();
+		}
+		
+		oHandler.removeCallbacks(oExpireTask);
+		oHandler.removeCallbacks(oControlTask);
+		
+		if(oDetectionRecorder != null){
+			
+			try{
+				oDetectionRecorder.close();
+			}catch(IOException e){
+				Log.e(TAG, "unable to close the detection recording", e);
+			}
+		}
+		
+		if(oRecorder != null){
+			
+			oBluetootService.setSessionRecorder(null);
+			
+			try{
+				oRecorder.close();
+			}catch(IOException e){
+				Log.e(TAG, "unable to close the recording", e);
+			}
+		}
 	}
 	
 	
@@ -159,17 +334,65 @@ public class RomoActivity extends Activity {
 		// When the Media activity returns
 		case REQUEST_MEDIAPLAYER:
 			
-			if(resultCode == Activity.RESULT_OK){
-				
-				oCamera.stopFaceDetection();
-				oCamera.stopPreview();
-			}
+			// The faces still in front of the robot were greeted already, the
+			// detection keeps running to greet the next person
+			reacting = false;
+			oTracker.refresh(System.nanoTime());
+			oHandler.removeCallbacks(oExpireTask);
+			oHandler.postDelayed(oExpireTask, TRACK_EXPIRE_INTERVAL);
 			
 		default:
 			break;
 		}		
 	}
 	
+	/**
+	 * Configure the camera for a capture mode and tell the AdaptiveCapture
+	 */
+	private void setCaptureMode(int mode){
+		
+		Log.d(TAG, "capture mode " + mode);
+		
+		oPreview.setIdle(mode == AdaptiveCapture.MODE_IDLE);
+		oCapture.setMode(mode, Process.getElapsedCpuTime() * 1000000L);
+		
+		updateFollower();
+	}
+	
+	/**
+	 * Return true if the FaceFollower must be stepped: while connected and
+	 * the camera looks for faces or faces are still followed
+	 */
+	private boolean isFollowing(){
+		
+		if(oBluetootService.getState() != BluetoothService.STATE_CONNECTED){
+			return false;
+		}
+		
+		return ((oCapture != null) && (oCapture.getMode() == AdaptiveCapture.MODE_ACTIVE))
+				|| (oTracker.getFaceCount() > 0);
+	}
+	
+	/**
+	 * Start or stop oControlTask, called when the capture mode or the connection
+	 * changes. A robot still moving gets its stop first, unless the link is gone.
+	 */
+	private void updateFollower(){
+		
+		if(isFollowing()){
+			
+			if(!following){
+				following = true;
+				oFollower.resume();
+				oHandler.post(oControlTask);
+			}
+		}else if(following && (oFollower.isStopped()
+				|| (oBluetootService.getState() != BluetoothService.STATE_CONNECTED))){
+			following = false;
+			oHandler.removeCallbacks(oControlTask);
+		}
+	}
+	
 	/**
 	 * Get front camera
 	 * @return
@@ -212,6 +435,9 @@ public class RomoActivity extends Activity {
 				    result = (360 - result) % 360;  
 				    c.setDisplayOrientation(result);
 					
+					// The frames are not mirrored, for them the display rotation adds up
+					cameraRotation = (cInfo.orientation + degrees) % 360;
+					
 					break;
 				}
 			}
@@ -291,95 +517,202 @@ public class RomoActivity extends Activity {
 			}*/
 			
 			
-			oCamera.startPreview();
-			oCamera.startFaceDetection();
+			// Wake the camera up at once, the active mode starts the face detection
+			if(oCapture != null){
+				setCaptureMode(AdaptiveCapture.MODE_ACTIVE);
+			}
 
 			return true;
 		};
+		
+		public void onLongPress(MotionEvent e) {
+			
+			// Dump the link and preview latencies and start a new measurement
+			LatencyStats stats = oBluetootService.getLatencyStats();
+			Log.i(TAG, "link latency\n" + stats);
+			stats.reset();
+			
+			if(oPipeline != null){
+				
+				Log.i(TAG, "preview " + oPipeline + "\n" + oPipeline.getStats());
+				oPipeline.getStats().reset();
+				
+				oCapture.sample(Process.getElapsedCpuTime() * 1000000L);
+				Log.i(TAG, "capture modes\n" + oCapture);
+				oCapture.reset();
+			}
+			
+			Log.i(TAG, "face follower " + oFollower);
+			oFollower.getLatency().reset();
+		};
 	};
 
 	
 	/**
-	 * Handle messages from the BluetoothService
+	 * Handle the events of the BluetoothService, the BluetoothServiceHandler already reported them
 	 */
-	private Handler oHandler = new Handler(){
+	private LinkEventListener oLinkEventListener = new LinkEventListener() {
 		
-		public void handleMessage(android.os.Message msg) {
+		@Override
+		public void onEvent(LinkEvent event, boolean endOfBatch) {
 			
-			switch (msg.what) {
+			// Only step the FaceFollower while connected
+			if(event.getType() == LinkEvent.TYPE_STATE){
+				updateFollower();
+			}
+			
+			// Lost or failed connection
+			if((event.getType() == LinkEvent.TYPE_STATE) && (event.getTo() == BluetoothService.STATE_NONE)
+					&& (event.getFrom() != BluetoothService.STATE_NONE)){
+				
+				// Uncheck service switch, this will also stop the BluetoothService
+				CompoundButton serviceSwitch = (CompoundButton)findViewById(R.id.action_service);
+				serviceSwitch.setChecked(false);
+			}
+		}
+	};
 	
-			case BluetoothService.MESSAGE_DATA:
+	private FaceDetectionListener oFaceDetectionListener = new FaceDetectionListener() {
+		
+		@Override
+		public void onFaceDetection(Face[] faces, Camera camera) {
+			
+			int count = Math.min(faces.length, FaceTracker.MAX_DETECTIONS);
 				
-				//byte[] readBuf = (byte[])msg.obj;
-				Log.i("HANDLER", "!data received " + msg.arg1);
+			for(int i=0; i<count; i++){
+				faceLeft[i] = faces[i].rect.left;
+				faceTop[i] = faces[i].rect.top;
+				faceRight[i] = faces[i].rect.right;
+				faceBottom[i] = faces[i].rect.bottom;
+			}
 				
-				break;
+			long now = System.nanoTime();
 			
-			case BluetoothService.MESSAGE_STATE_CHANGED:
-				
-				Bundle bundle = msg.getData();
+			// The camera does not tell when its frame was taken, the software detection does
+			long frameTime = (oFaceProcessor != null) ? oFaceProcessor.getFrameTime() : now;
+			
+			oTracker.update(faceLeft, faceTop, faceRight, faceBottom, count, now);
+			oFollower.onFrame(frameTime);
+			
+			if(oDetectionRecorder != null){
+				try{
+					oDetectionRecorder.record(faceLeft, faceTop, faceRight, faceBottom, count, frameTime, now);
+				}catch(IOException e){
+					Log.e(TAG, "detection recording failed", e);
+					oDetectionRecorder = null;
+				}
+			}
 				
-				String deviceName = bundle.getString(BluetoothService.KEY_DEVICE_NAME);
-				int currentState = bundle.getInt(BluetoothService.KEY_CURRENT_STATE);
-				int nextState = bundle.getInt(BluetoothService.KEY_NEXT_STATE);
+			// The camera stops reporting when the faces are gone, they must leave anyway
+			oHandler.removeCallbacks(oExpireTask);
 				
+			if(oTracker.getTrackCount() > 0){
+				oHandler.postDelayed(oExpireTask, TRACK_EXPIRE_INTERVAL);
 				
-				if((currentState == BluetoothService.STATE_NONE) && (nextState == BluetoothService.STATE_CONNECTING)){
-					
-					Toast.makeText(getApplicationContext(), "Connection with device " + deviceName + ".", Toast.LENGTH_SHORT).show();
-					
-				}else if((currentState == BluetoothService.STATE_CONNECTING) && (nextState == BluetoothService.STATE_NONE)) {
-					
-					Toast.makeText(getApplicationContext(), "Connection with device " + deviceName + " failed.", Toast.LENGTH_LONG).show();
-					
-					// Uncheck service switch, this will also stop the BluetoothService
-					CompoundButton serviceSwitch = (CompoundButton)findViewById(R.id.action_service);
-					serviceSwitch.setChecked(false);
-					
-				}else if((currentState == BluetoothService.STATE_CONNECTING) && (nextState == BluetoothService.STATE_CONNECTED)){
-					
-					Toast.makeText(getApplicationContext(), "Connection established with: " + deviceName, Toast.LENGTH_SHORT).show();
-					
-				}else if((currentState == BluetoothService.STATE_CONNECTED) && (nextState == BluetoothService.STATE_NONE)){
-				
-					Toast.makeText(getApplicationContext(), "Connection with " + deviceName + " closed", Toast.LENGTH_LONG).show();
-					
-					// Uncheck service switch, this will also stop the BluetoothService
-					CompoundButton serviceSwitch = (CompoundButton)findViewById(R.id.action_service);
-					serviceSwitch.setChecked(false);
-						
-				}else if(currentState != nextState){
-					
-					// This state will normally never occure
-					Log.w(TAG, "Invalid transition: " + currentState + "-" + nextState);
+				// A face that stands still has no motion, it keeps the detection running
+				if(oCapture != null){
+					oCapture.keepActive(now);
 				}
-				
-			default:
-				break;
 			}
-		};
+		}
 	};
 	
-	private FaceDetectionListener oFaceDetectionListener = new FaceDetectionListener() {
+	/**
+	 * Reconfigure the camera on the UI thread when the AdaptiveCapture asks
+	 */
+	private final CaptureModeListener oCaptureModeListener = new CaptureModeListener() {
 		
 		@Override
-		public void onFaceDetection(Face[] faces, Camera camera) {
+		public void onModeRequest(AdaptiveCapture capture, final int mode) {
 			
-			if(faces.length > 0){
+			oHandler.post(new Runnable() {
 				
-				// Stop face detection
-				camera.stopFaceDetection();
-				
-				Intent intent = new Intent(getApplicationContext(), MediaActivity.class);
-				
-				if(faces.length == 1){
-					intent.putExtra(MediaActivity.MEDIA, "sdcard/video/romo/Romo_Knipoog_High.mp4");
-				}else{
-					intent.putExtra(MediaActivity.MEDIA, "sdcard/video/romo/Romo_Vrolijk.mp4");
+				@Override
+				public void run() {
+					setCaptureMode(mode);
 				}
-				
-				startActivityForResult(intent, REQUEST_MEDIAPLAYER);
+			});
+		}
+	};
+	
+	/**
+	 * Steps the FaceFollower at a fixed rate, the robot stops during a reaction.
+	 * Ends once the robot stopped and no faces are looked for.
+	 */
+	private final Runnable oControlTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			if(!isFollowing() && oFollower.isStopped()){
+				following = false;
+				return;
+			}
+			
+			oFollower.setEnabled(!reacting);
+			oFollower.step(System.nanoTime());
+			
+			oHandler.postDelayed(oControlTask, FaceFollower.DEFAULT_INTERVAL);
+		}
+	};
+	
+	private final MotorOutput oMotorOutput = new MotorOutput() {
+		
+		@Override
+		public boolean drive(int left, int right) {
+			return oBluetootService.drive(left, right);
+		}
+	};
+	
+	private final Runnable oExpireTask = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			// No frames are processed during a reaction, the tracks wait for it
+			if(reacting){
+				return;
 			}
+			
+			oTracker.expire(System.nanoTime());
+			
+			if(oTracker.getTrackCount() > 0){
+				oHandler.postDelayed(oExpireTask, TRACK_EXPIRE_INTERVAL);
+			}
+		}
+	};
+	
+	/**
+	 * React to every new person in front of the robot, once
+	 */
+	private FaceTrackListener oFaceTrackListener = new FaceTrackListener() {
+		
+		@Override
+		public void onFaceEnter(FaceTracker tracker, int id) {
+			
+			Log.d(TAG, "face " + id + " entered");
+			
+			// One reaction at a time
+			if(reacting){
+				return;
+			}
+			
+			reacting = true;
+			
+			Intent intent = new Intent(getApplicationContext(), MediaActivity.class);
+			
+			if(tracker.getFaceCount() == 1){
+				intent.putExtra(MediaActivity.MEDIA, "sdcard/video/romo/Romo_Knipoog_High.mp4");
+			}else{
+				intent.putExtra(MediaActivity.MEDIA, "sdcard/video/romo/Romo_Vrolijk.mp4");
+			}
+			
+			startActivityForResult(intent, REQUEST_MEDIAPLAYER);
+		}
+		
+		@Override
+		public void onFaceLeave(FaceTracker tracker, int id) {
+			Log.d(TAG, "face " + id + " left");
 		}
 	};
 }
@@ -0,0 +1,172 @@
+package romo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only recording of every chunk received and written on a connection,
+ * in a memory-mapped file. A thread claims the space of its record with one
+ * atomic add and copies into the mapping, it never takes a lock or waits for
+ * the disk. A full file drops records and counts them.
+ * 
+ * File layout, big endian:
+ *   header   : long MAGIC, int VERSION, int 0, long start wall clock (ms), long 0
+ *   record   : int length, int direction, long time since start (ns), length bytes, padded to 8
+ * A record length of 0 marks the end, the length is written last so a record
+ * cut short by a crash is never read.
+ */
+public final class SessionRecorder {
+	
+	public static final long MAGIC = 0x524f4d4f52454331L;			// "ROMOREC1"
+	public static final int VERSION = 1;
+	
+	public static final int HEADER_SIZE = 32;
+	public static final int RECORD_HEADER_SIZE = 16;
+	
+	// Record directions
+	public static final int DIRECTION_RX = 1;
+	public static final int DIRECTION_TX = 2;
+	
+	public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+	
+	private final RandomAccessFile oFile;
+	private final MappedByteBuffer oMap;
+	private final int capacity;
+	private final long startNanos;
+	
+	// Next free byte of the file, claimed by the recording threads
+	private final AtomicLong position;
+	
+	// One view of the mapping per recording thread, positioned independently
+	private final ThreadLocal<ByteBuffer> views;
+	
+	private final AtomicLong records;
+	private final AtomicLong dropped;
+	private volatile boolean closed;
+	
+	/**
+	 * Create a recording of DEFAULT_CAPACITY bytes
+	 * @param file  The file to create, an existing file is overwritten
+	 */
+	public SessionRecorder(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Create a recording
+	 * @param file  The file to create, an existing file is overwritten
+	 * @param capacity  The maximum size of the file in bytes
+	 */
+	public SessionRecorder(File file, int capacity) throws IOException {
+		
+		this.capacity = capacity;
+		
+		oFile = new RandomAccessFile(file, "rw");
+		oFile.setLength(0);
+		oFile.setLength(capacity);
+		
+		oMap = oFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		oMap.order(ByteOrder.BIG_ENDIAN);
+		
+		oMap.putLong(0, MAGIC);
+		oMap.putInt(8, VERSION);
+		oMap.putLong(16, System.currentTimeMillis());
+		
+		startNanos = System.nanoTime();
+		position = new AtomicLong(HEADER_SIZE);
+		records = new AtomicLong();
+		dropped = new AtomicLong();
+		
+		views = new ThreadLocal<ByteBuffer>(){
+			
+			@Override
+			protected ByteBuffer initialValue() {
+				return oMap.duplicate();
+			}
+		};
+	}
+	
+	/**
+	 * Record received bytes
+	 * @param timestamp  The System.nanoTime() of the read
+	 */
+	public void recordRx(byte[] data, int offset, int length, long timestamp){
+		record(DIRECTION_RX, data, offset, length, timestamp);
+	}
+	
+	/**
+	 * Record written bytes
+	 * @param timestamp  The System.nanoTime() of the write
+	 */
+	public void recordTx(byte[] data, int offset, int length, long timestamp){
+		record(DIRECTION_TX, data, offset, length, timestamp);
+	}
+	
+	private void record(int direction, byte[] data, int offset, int length, long timestamp){
+		
+		if(closed || (length <= 0)){
+			return;
+		}
+		
+		int size = (RECORD_HEADER_SIZE + length + 7) & ~7;
+		long start = position.getAndAdd(size);
+		
+		// Keep room for the end marker
+		if(start + size + 4 > capacity){
+			dropped.incrementAndGet();
+			return;
+		}
+		
+		int pos = (int)start;
+		ByteBuffer view = views.get();
+		
+		view.putInt(pos + 4, direction);
+		view.putLong(pos + 8, timestamp - startNanos);
+		view.position(pos + RECORD_HEADER_SIZE);
+		view.put(data, offset, length);
+		
+		// Publish the record
+		view.putInt(pos, length);
+		
+		records.incrementAndGet();
+	}
+	
+	/**
+	 * Return the amount of records written
+	 */
+	public long getRecordCount(){
+		return records.get();
+	}
+	
+	/**
+	 * Return the amount of records dropped because the file was full
+	 */
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+	
+	/**
+	 * Return the amount of bytes in use
+	 */
+	public long getSize(){
+		return Math.min(position.get(), capacity);
+	}
+	
+	/**
+	 * Stop recording and flush the mapping to disk. The file keeps its full
+	 * length, a late record of a thread still writing cannot fault on it.
+	 */
+	public void close() throws IOException {
+		
+		closed = true;
+		
+		oMap.force();
+		oFile.close();
+	}
+}
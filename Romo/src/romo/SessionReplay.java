@@ -0,0 +1,208 @@
+package romo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Feeds the received chunks of a SessionRecorder file back to a
+ * ConnectedListener, as a ConnectedThread would, keeping the recorded
+ * timing scaled by a speed factor or as fast as possible. Written chunks
+ * are skipped. onDisconnect() is called at the end of the recording.
+ */
+public class SessionReplay extends Thread {
+	
+	// Debugging
+	private static final String TAG = "SessionReplay";
+	
+	// Speed factor that ignores the recorded timing
+	public static final double SPEED_MAX = 0;
+	
+	private final File oFile;
+	private final ConnectedListener oListener;
+	private final int generation;
+	private final BufferPool oPool;
+	private volatile double speed;
+	private volatile boolean running;
+	
+	// Statistics
+	private volatile long rxRecords;
+	private volatile long txRecords;
+	private volatile long rxBytes;
+	private volatile long maxLag;
+	private volatile long elapsed;
+	
+	/**
+	 * Initialize SessionReplay at the recorded speed
+	 * @param file  The recording
+	 * @param listener  The ConnectedListener receiving the chunks
+	 * @param generation  The connection generation passed to the listener
+	 */
+	public SessionReplay(File file, ConnectedListener listener, int generation){
+		
+		super("SessionReplay");
+		
+		oFile = file;
+		oListener = listener;
+		this.generation = generation;
+		oPool = new BufferPool();
+		speed = 1.0;
+		running = true;
+	}
+	
+	/**
+	 * @param factor  1.0 for the recorded timing, higher to go faster, SPEED_MAX for no waiting
+	 */
+	public void setSpeed(double factor){
+		speed = factor;
+	}
+	
+	@Override
+	public void run() {
+		
+		RandomAccessFile file = null;
+		
+		try{
+			
+			file = new RandomAccessFile(oFile, "r");
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			map.order(ByteOrder.BIG_ENDIAN);
+			
+			if((map.limit() < SessionRecorder.HEADER_SIZE) || (map.getLong(0) != SessionRecorder.MAGIC)){
+				throw new IOException("not a session recording: " + oFile);
+			}
+			
+			replay(map);
+			
+		}catch(IOException e){
+			Log.e(TAG, "replay of " + oFile + " failed", e);
+		}catch(InterruptedException e){
+			Log.d(TAG, "replay cancelled");
+		}finally{
+			
+			if(file != null){
+				try{
+					file.close();
+				}catch(IOException e){
+					Log.e(TAG, "unable to close " + oFile, e);
+				}
+			}
+		}
+		
+		oListener.onDisconnect(generation);
+	}
+	
+	private void replay(MappedByteBuffer map) throws InterruptedException {
+		
+		long start = System.nanoTime();
+		long first = -1;
+		int pos = SessionRecorder.HEADER_SIZE;
+		
+		while(running && (pos + SessionRecorder.RECORD_HEADER_SIZE <= map.limit())){
+			
+			int length = map.getInt(pos);
+			int payload = pos + SessionRecorder.RECORD_HEADER_SIZE;
+			
+			// End of the recording
+			if(length <= 0){
+				break;
+			}
+			
+			// A record cut short or corrupt ends the recording as well
+			if(length > map.limit() - payload){
+				Log.w(TAG, "record at " + pos + " runs past the end of " + oFile);
+				break;
+			}
+			
+			int direction = map.getInt(pos + 4);
+			long time = map.getLong(pos + 8);
+			
+			pos += (SessionRecorder.RECORD_HEADER_SIZE + length + 7) & ~7;
+			
+			if(direction != SessionRecorder.DIRECTION_RX){
+				txRecords++;
+				continue;
+			}
+			
+			if(first < 0){
+				first = time;
+			}
+			
+			// Wait for the recorded moment of this chunk
+			double factor = speed;
+			
+			if(factor > SPEED_MAX){
+				
+				long due = start + (long)((time - first) / factor);
+				long now = System.nanoTime();
+				
+				if(due > now){
+					Thread.sleep((due - now) / 1000000L, (int)((due - now) % 1000000L));
+				}else{
+					maxLag = Math.max(maxLag, now - due);
+				}
+			}
+			
+			// A recorded chunk can be larger than a pooled buffer
+			for(int offset=0; offset<length; ){
+				
+				ReceiveBuffer buffer = oPool.acquire();
+				int count = Math.min(buffer.getCapacity(), length - offset);
+				
+				map.position(payload + offset);
+				map.get(buffer.getData(), 0, count);
+				buffer.fill(count, System.nanoTime());
+				
+				oListener.onReceive(generation, buffer);
+				offset += count;
+			}
+			
+			rxRecords++;
+			rxBytes += length;
+		}
+		
+		elapsed = System.nanoTime() - start;
+	}
+	
+	/**
+	 * Stop the replay, the listener still gets onDisconnect()
+	 */
+	public void cancel(){
+		running = false;
+		interrupt();
+	}
+	
+	public long getRxRecordCount(){
+		return rxRecords;
+	}
+	
+	/**
+	 * Return the amount of written chunks skipped
+	 */
+	public long getTxRecordCount(){
+		return txRecords;
+	}
+	
+	public long getRxBytes(){
+		return rxBytes;
+	}
+	
+	/**
+	 * Return how far the replay fell behind the recorded timing at worst, in nanoseconds
+	 */
+	public long getMaxLag(){
+		return maxLag;
+	}
+	
+	/**
+	 * Return the duration of the whole replay in nanoseconds
+	 */
+	public long getElapsed(){
+		return elapsed;
+	}
+}
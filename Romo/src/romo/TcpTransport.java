@@ -0,0 +1,95 @@
+package romo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport over a TCP socket, used with a loopback address to run the link
+ * stack against a simulated robot on a development machine
+ */
+public class TcpTransport implements Transport {
+	
+	private final Socket oSocket;
+	private final String host;
+	private final int port;
+	private final int timeout;
+	
+	/**
+	 * Initialize an outgoing TcpTransport
+	 * @param host  The host name or address to connect
+	 * @param port  The TCP port to connect
+	 * @param timeout  The connect timeout in milliseconds, 0 waits forever
+	 */
+	public TcpTransport(String host, int port, int timeout){
+		
+		oSocket = new Socket();
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Initialize a TcpTransport on an already connected socket
+	 * @param socket  The connected socket
+	 */
+	private TcpTransport(Socket socket){
+		
+		oSocket = socket;
+		host = socket.getInetAddress().getHostAddress();
+		port = socket.getPort();
+		timeout = 0;
+	}
+	
+	/**
+	 * Wait for an incoming connection, this is the remote end of a loopback link
+	 * @param server The listening ServerSocket
+	 */
+	public static TcpTransport accept(ServerSocket server) throws IOException {
+		
+		Socket socket = server.accept();
+		socket.setTcpNoDelay(true);
+		
+		return new TcpTransport(socket);
+	}
+	
+	@Override
+	public void connect() throws IOException {
+		
+		// A socket stays connected after close(), it cannot be used again
+		if(oSocket.isClosed()){
+			throw new IOException("socket closed");
+		}
+		
+		if(oSocket.isConnected()){
+			return;
+		}
+		
+		// Small command frames must not wait for Nagle's algorithm
+		oSocket.setTcpNoDelay(true);
+		oSocket.connect(new InetSocketAddress(host, port), timeout);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return oSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return oSocket.getOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException {
+		oSocket.close();
+	}
+
+	@Override
+	public String getName() {
+		return host + ":" + port;
+	}
+}
@@ -0,0 +1,127 @@
+package romo;
+
+/**
+ * Decodes the FrameCodec.TYPE_TELEMETRY_DELTA frames of a TelemetryEncoder
+ * back to absolute samples. After a missed frame, seen in the sequence, the
+ * delta frames are dropped until the next keyframe.
+ */
+public final class TelemetryDecoder {
+	
+	private final int[] channels;
+	private final int[] values;
+	private int count;
+	private int expected;
+	
+	// Statistics, written by the reader only
+	private volatile long keyframes;
+	private volatile long deltas;
+	private volatile long dropped;
+	
+	public TelemetryDecoder(){
+		
+		channels = new int[TelemetryEncoder.MAX_SAMPLES];
+		values = new int[TelemetryEncoder.MAX_SAMPLES];
+		reset();
+	}
+	
+	/**
+	 * Wait for a keyframe, the stream of a new connection starts with one
+	 */
+	public void reset(){
+		count = -1;
+	}
+	
+	/**
+	 * Decode the payload of a TYPE_TELEMETRY_DELTA frame
+	 * @param outChannels  Receives the channel of every sample
+	 * @param outValues  Receives the value of every sample
+	 * @return The amount of samples or -1 if the frame can not be decoded
+	 */
+	public int decode(byte[] payload, int offset, int length, int[] outChannels, int[] outValues){
+		
+		if(length < TelemetryEncoder.HEADER_SIZE){
+			dropped++;
+			return -1;
+		}
+		
+		int sequence = payload[offset] & 0xff;
+		boolean keyframe = (payload[offset + 1] & TelemetryEncoder.DELTA_KEYFRAME) != 0;
+		int samples = payload[offset + 2] & 0xff;
+		
+		int p = offset + TelemetryEncoder.HEADER_SIZE;
+		int end = offset + length;
+		
+		if(keyframe){
+			
+			if((samples > TelemetryEncoder.MAX_SAMPLES) || (p + samples > end)){
+				count = -1;
+				dropped++;
+				return -1;
+			}
+			
+			for(int i=0; i<samples; i++){
+				channels[i] = payload[p++] & 0xff;
+			}
+		
+		}else if((count < 0) || (sequence != expected) || (samples != count)){
+			
+			// A frame was missed, the differences do not apply
+			count = -1;
+			dropped++;
+			return -1;
+		}
+		
+		for(int i=0; i<samples; i++){
+			
+			// Read a varint
+			int value = 0;
+			int shift = 0;
+			int b;
+			
+			do{
+				if((p == end) || (shift > 28)){
+					count = -1;
+					dropped++;
+					return -1;
+				}
+				
+				b = payload[p++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			
+			}while((b & 0x80) != 0);
+			
+			value = FrameCodec.unZigZag(value);
+			values[i] = keyframe ? (short)value : (short)(values[i] + value);
+		}
+		
+		if(keyframe){
+			keyframes++;
+		}else{
+			deltas++;
+		}
+		
+		count = samples;
+		expected = (sequence + 1) & 0xff;
+		
+		System.arraycopy(channels, 0, outChannels, 0, samples);
+		System.arraycopy(values, 0, outValues, 0, samples);
+		
+		return samples;
+	}
+	
+	public long getKeyframeCount(){
+		return keyframes;
+	}
+	
+	public long getDeltaCount(){
+		return deltas;
+	}
+	
+	/**
+	 * Return the amount of frames dropped while waiting for a keyframe
+	 */
+	public long getDroppedCount(){
+		return dropped;
+	}
+}
@@ -0,0 +1,115 @@
+package romo;
+
+/**
+ * Encodes telemetry as FrameCodec.TYPE_TELEMETRY_DELTA frames. Sensor values
+ * change little from one frame to the next, so most frames only carry the
+ * difference with the previous value of every channel as a zig-zag varint,
+ * one byte for a difference between -64 and 63 instead of three bytes per
+ * raw sample. The payload is
+ * 
+ * <pre>
+ * +----------+-------+-------+-----------------------+----------------------+
+ * | sequence | flags | count | channel[count] if key | varint value[count]  |
+ * +----------+-------+-------+-----------------------+----------------------+
+ * </pre>
+ * 
+ * A keyframe (flags DELTA_KEYFRAME) lists the channels and carries the
+ * values themselves, the delta frames after it carry the differences for
+ * the same channels. A keyframe is sent every keyframe interval and when the
+ * channels change, so a receiver that missed a frame, which it sees in the
+ * 8 bit sequence, waits at most one interval. A frame that would not fit is
+ * sent raw and the next frame is a keyframe.
+ * This encoder runs on the robot, the simulator and the benchmarks use it.
+ */
+public final class TelemetryEncoder {
+	
+	public static final int HEADER_SIZE = 3;						// sequence, flags, count
+	public static final int DELTA_KEYFRAME = 0x01;
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 16;
+	
+	// Raw telemetry limit, a decoded frame must fit in a TYPE_TELEMETRY frame
+	public static final int MAX_SAMPLES = FrameCodec.MAX_PAYLOAD / FrameCodec.TELEMETRY_SAMPLE_SIZE;
+	
+	private final int[] channels;
+	private final int[] previous;
+	private int count;
+	private int sequence;
+	private int sinceKeyframe;
+	private int keyframeInterval;
+	
+	public TelemetryEncoder(){
+		
+		channels = new int[MAX_SAMPLES];
+		previous = new int[MAX_SAMPLES];
+		keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+		reset();
+	}
+	
+	/**
+	 * @param frames  The amount of frames from one keyframe to the next
+	 */
+	public void setKeyframeInterval(int frames){
+		keyframeInterval = frames;
+	}
+	
+	/**
+	 * Start with a keyframe
+	 */
+	public void reset(){
+		count = -1;
+		sinceKeyframe = 0;
+	}
+	
+	/**
+	 * Encode count channel samples
+	 * @return The total length of the frame in bytes
+	 */
+	public int encode(byte[] out, int offset, int[] channels, int[] values, int count){
+		
+		boolean keyframe = (count != this.count) || (sinceKeyframe >= keyframeInterval);
+		
+		for(int i=0; !keyframe && (i<count); i++){
+			keyframe = channels[i] != this.channels[i];
+		}
+		
+		int start = FrameCodec.begin(out, offset, FrameCodec.TYPE_TELEMETRY_DELTA);
+		int p = start + HEADER_SIZE;
+		int end = start + FrameCodec.MAX_PAYLOAD;
+		
+		if(keyframe){
+			
+			for(int i=0; i<count; i++){
+				out[p++] = (byte)channels[i];
+			}
+		}
+		
+		for(int i=0; i<count; i++){
+			
+			// Worst case of a 16 bit value is 3 bytes
+			if(p + 3 > end){
+				
+				// Too many samples that changed too much, a raw frame always fits
+				this.count = -1;
+				return FrameCodec.encodeTelemetry(out, offset, channels, values, count);
+			}
+			
+			int value = (short)values[i];
+			p += FrameCodec.putVarint(out, p, FrameCodec.zigZag(keyframe ? value : value - previous[i]));
+		}
+		
+		out[start] = (byte)sequence;
+		out[start + 1] = (byte)(keyframe ? DELTA_KEYFRAME : 0);
+		out[start + 2] = (byte)count;
+		
+		for(int i=0; i<count; i++){
+			this.channels[i] = channels[i];
+			previous[i] = (short)values[i];
+		}
+		
+		this.count = count;
+		sequence = (sequence + 1) & 0xff;
+		sinceKeyframe = keyframe ? 1 : sinceKeyframe + 1;
+		
+		return FrameCodec.finish(out, offset, p - start);
+	}
+}
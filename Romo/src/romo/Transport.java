@@ -0,0 +1,41 @@
+package romo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a remote device. ConnectThread opens it,
+ * ConnectedThread reads from and writes to it. The RFCOMM socket is the
+ * production implementation, the in-memory pipe and the TCP socket let the
+ * same link stack run without a phone or a robot.
+ */
+public interface Transport {
+	
+	/**
+	 * Open the connection, this is a blocking call and will only return
+	 * on a succesful connection or an exception
+	 */
+	public void connect() throws IOException;
+	
+	/**
+	 * Return the stream of bytes received from the remote device
+	 */
+	public InputStream getInputStream() throws IOException;
+	
+	/**
+	 * Return the stream of bytes send to the remote device
+	 */
+	public OutputStream getOutputStream() throws IOException;
+	
+	/**
+	 * Close the connection, this will also abort an in-progress connect()
+	 * and unblock a pending read
+	 */
+	public void close() throws IOException;
+	
+	/**
+	 * Return a human readable name of the remote end
+	 */
+	public String getName();
+}
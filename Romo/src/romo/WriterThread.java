@@ -0,0 +1,104 @@
+package romo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.util.Log;
+
+/**
+ * This thread runs during a connection with a remote device and is the only
+ * thread that writes to the OutputStream. Callers only enqueue frames on the
+ * OutputQueue, so a congested link never blocks the UI-Activity.
+ */
+class WriterThread extends Thread {
+	
+	// Debugging
+	private static final String TAG = "WriterThread";
+	
+	// One RFCOMM packet
+	public static final int BATCH_SIZE = 1024;
+	
+	private final Transport oTransport;
+	private final OutputStream oOutStream;
+	private final OutputQueue oQueue;
+	private final byte[] batch;
+	private volatile boolean running;
+	private volatile SessionRecorder oRecorder;
+	
+	/**
+	 * Initialize WriterThread
+	 * @param transport  The Transport to close when a write fails
+	 * @param out  The OutputStream to write
+	 * @param queue  The OutputQueue to drain
+	 */
+	WriterThread(Transport transport, OutputStream out, OutputQueue queue){
+		
+		super("WriterThread");
+		
+		oTransport = transport;
+		oOutStream = out;
+		oQueue = queue;
+		batch = new byte[BATCH_SIZE];
+		running = true;
+	}
+	
+	/**
+	 * Write queued frames until cancelled
+	 */
+	@Override
+	public void run() {
+		
+		Log.d(TAG, "begin WriterThread job");
+		
+		try{
+			
+			while(running){
+				
+				int length = oQueue.drain(batch);
+				
+				oOutStream.write(batch, 0, length);
+				oOutStream.flush();
+				
+				long now = System.nanoTime();
+				oQueue.recordWrite(length, now - oQueue.getBatchTimestamp());
+				
+				SessionRecorder recorder = oRecorder;
+				
+				if(recorder != null){
+					recorder.recordTx(batch, 0, length, now);
+				}
+			}
+			
+		}catch(InterruptedException e){
+			
+			Log.d(TAG, "writer cancelled");
+			
+		}catch(IOException e){
+			
+			Log.e(TAG, "exception during write", e);
+			
+			// Let the reader notice the broken link and report the disconnect
+			try{
+				oTransport.close();
+			}catch(IOException e2){
+				Log.e(TAG, "unable to close transport", e2);
+			}
+		}
+	}
+	
+	/**
+	 * Record every written batch
+	 * @param recorder  The SessionRecorder or null to stop recording
+	 */
+	void setSessionRecorder(SessionRecorder recorder){
+		oRecorder = recorder;
+	}
+	
+	/**
+	 * Stop the writer, frames still queued stay in the OutputQueue
+	 */
+	void cancel(){
+		running = false;
+		interrupt();
+	}
+}
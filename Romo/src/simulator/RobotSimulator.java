@@ -0,0 +1,765 @@
+package simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import romo.FrameCodec;
+import romo.FrameDecoder;
+import romo.FrameListener;
+import romo.TelemetryEncoder;
+import romo.Transport;
+
+/**
+ * Simulated Romo on the remote end of a Transport. It streams telemetry at a
+ * fixed rate, acknowledges every command after a delay and every ping at once,
+ * and injects faults: lost and corrupted frames, stalls during which it
+ * neither reads nor writes, and disconnects. It grants receive credits for a
+ * receive window of a few hundred bytes, so a stall stops the writer of the
+ * phone instead of filling the pipe with commands. Channel CHANNEL_SEQUENCE of
+ * every telemetry frame counts the frames sent, so a receiver can count the
+ * lost ones. Frames of the reliable channel are acknowledged every time and
+ * executed once, also when a copy arrives after a reconnect.
+ * The simulator allocates nothing per frame, it can share a process with the
+ * code it measures.
+ * @author SteveVdb
+ */
+public class RobotSimulator {
+	
+	// Telemetry channel carrying the frame counter
+	public static final int CHANNEL_SEQUENCE = 0;
+	
+	// Acknowledgements waiting for their delay, a power of two
+	private static final int ACK_SLOTS = 64;
+	
+	// Credits are repeated this often, a lost credit frame must not stop the phone for long
+	private static final long CREDIT_REFRESH = 100000000L;			// 100 ms
+	
+	// Configuration
+	private volatile int telemetryRate = 50;						// frames per second, 0 for none
+	private volatile int telemetryChannels = 8;
+	private volatile long ackDelay = 5;							// ms
+	private volatile double lossRate = 0;							// per frame sent
+	private volatile double corruptionRate = 0;					// per frame sent
+	private volatile long stallInterval = 0;						// mean ms between stalls, 0 for none
+	private volatile long stallDuration = 500;						// ms
+	private volatile long disconnectInterval = 0;					// mean ms between disconnects, 0 for none
+	private volatile double connectFailureRate = 0;				// per connect attempt
+	private volatile double commandLossRate = 0;					// per frame received
+	private volatile int receiveWindow = 512;						// bytes, 0 for no flow control
+	private volatile boolean deltaTelemetry = true;				// delta telemetry supported
+	
+	private final Random oRandom;
+	private Session oSession;
+	
+	// Telemetry frame counter, continues over reconnects, only used by the current sender
+	private int sequence;
+	
+	// Highest reliable sequence executed and a bitmap of the 64 before it, guarded by this
+	private int reliableHighest = -1;
+	private long reliableSeen;
+	
+	// Statistics
+	private volatile long telemetrySent;
+	private volatile long acksSent;
+	private volatile long creditsSent;
+	private volatile long bytesSent;
+	private volatile long commandsReceived;
+	private volatile long commandsLost;
+	private volatile long duplicates;
+	private volatile long lost;
+	private volatile long corrupted;
+	private volatile long stalls;
+	private volatile long disconnects;
+	private volatile long refusedConnects;
+	private volatile long ackOverflows;
+	
+	public RobotSimulator(){
+		this(System.nanoTime());
+	}
+	
+	/**
+	 * Initialize RobotSimulator
+	 * @param seed  The seed of the fault injection, equal seeds inject equal faults
+	 */
+	public RobotSimulator(long seed){
+		oRandom = new Random(seed);
+	}
+	
+	/**
+	 * @param framesPerSecond  The telemetry rate, the phone may request a
+	 * 	lower one but not a higher one, 0 to send no telemetry
+	 * @param channels  The samples per telemetry frame, sequence counter included
+	 */
+	public void setTelemetry(int framesPerSecond, int channels){
+		telemetryRate = framesPerSecond;
+		telemetryChannels = Math.max(1, Math.min(channels, FrameCodec.MAX_PAYLOAD / FrameCodec.TELEMETRY_SAMPLE_SIZE));
+	}
+	
+	/**
+	 * @param millis  The time between receiving a command and sending its acknowledgement
+	 */
+	public void setAckDelay(long millis){
+		ackDelay = millis;
+	}
+	
+	/**
+	 * @param loss  The probability a frame sent by the robot is lost
+	 * @param corruption  The probability a frame sent by the robot has a flipped bit
+	 */
+	public void setFrameFaults(double loss, double corruption){
+		lossRate = loss;
+		corruptionRate = corruption;
+	}
+	
+	/**
+	 * @param loss  The probability a frame received by the robot is lost
+	 */
+	public void setCommandLoss(double loss){
+		commandLossRate = loss;
+	}
+	
+	/**
+	 * @param supported  False to act like a robot that only sends raw telemetry
+	 * 	and does not answer telemetry encoding requests
+	 */
+	public void setDeltaTelemetry(boolean supported){
+		deltaTelemetry = supported;
+	}
+	
+	/**
+	 * @param interval  The mean time between stalls in milliseconds, 0 for none
+	 * @param duration  How long a stall lasts in milliseconds
+	 */
+	public void setStalls(long interval, long duration){
+		stallInterval = interval;
+		stallDuration = duration;
+	}
+	
+	/**
+	 * @param interval  The mean time between disconnects in milliseconds, 0 for none
+	 */
+	public void setDisconnects(long interval){
+		disconnectInterval = interval;
+	}
+	
+	/**
+	 * @param rate  The probability a connect attempt is refused
+	 */
+	public void setConnectFailureRate(double rate){
+		connectFailureRate = rate;
+	}
+	
+	/**
+	 * @param bytes  The receive window granted as credits, 0 to behave like a
+	 * 	robot without flow control
+	 */
+	public void setReceiveWindow(int bytes){
+		receiveWindow = bytes;
+	}
+	
+	/**
+	 * Decide if a connect attempt succeeds
+	 */
+	boolean acceptConnection(){
+		
+		if(chance(connectFailureRate)){
+			refusedConnects++;
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Serve the remote end of a new connection, the previous one is closed
+	 * @param transport  The robot side of the connection
+	 */
+	public synchronized void attach(Transport transport){
+		
+		if(oSession != null){
+			oSession.close();
+		}
+		
+		oSession = new Session(transport);
+		oSession.start();
+	}
+	
+	/**
+	 * Close the current connection
+	 */
+	public synchronized void close(){
+		
+		if(oSession != null){
+			oSession.close();
+			oSession = null;
+		}
+	}
+	
+	private boolean chance(double probability){
+		
+		if(probability <= 0){
+			return false;
+		}
+		
+		synchronized(oRandom){
+			return oRandom.nextDouble() < probability;
+		}
+	}
+	
+	/**
+	 * Return an exponentially distributed delay in nanoseconds
+	 * @param mean  The mean in milliseconds, 0 for never
+	 */
+	private long nextInterval(long mean){
+		
+		if(mean <= 0){
+			return Long.MAX_VALUE;
+		}
+		
+		synchronized(oRandom){
+			return (long)(-Math.log(1.0 - oRandom.nextDouble()) * mean * 1000000L);
+		}
+	}
+	
+	private int nextInt(int bound){
+		
+		synchronized(oRandom){
+			return oRandom.nextInt(bound);
+		}
+	}
+	
+	public long getTelemetrySent(){
+		return telemetrySent;
+	}
+	
+	public long getAcksSent(){
+		return acksSent;
+	}
+	
+	public long getCreditsSent(){
+		return creditsSent;
+	}
+	
+	public long getBytesSent(){
+		return bytesSent;
+	}
+	
+	public long getCommandsReceived(){
+		return commandsReceived;
+	}
+	
+	/**
+	 * Return the amount of received frames dropped by the fault injection
+	 */
+	public long getCommandsLostCount(){
+		return commandsLost;
+	}
+	
+	/**
+	 * Return the amount of reliable frames received again after they were executed
+	 */
+	public long getDuplicateCount(){
+		return duplicates;
+	}
+	
+	/**
+	 * Decide if a reliable sequence is new and remember it
+	 * @return False for a copy of an executed frame
+	 */
+	private synchronized boolean acceptReliable(int sequence){
+		
+		if(reliableHighest < 0){
+			reliableHighest = sequence;
+			reliableSeen = 1;
+			return true;
+		}
+		
+		int distance = (short)(sequence - reliableHighest);
+		
+		if(distance > 0){
+			
+			reliableSeen = (distance < 64) ? ((reliableSeen << distance) | 1) : 1;
+			reliableHighest = sequence;
+			return true;
+		}
+		
+		// Too old to tell, the phone gave up on it long ago
+		if(-distance >= 64){
+			return false;
+		}
+		
+		long bit = 1L << -distance;
+		
+		if((reliableSeen & bit) != 0){
+			return false;
+		}
+		
+		reliableSeen |= bit;
+		return true;
+	}
+	
+	/**
+	 * Return the amount of frames dropped by the fault injection
+	 */
+	public long getLostCount(){
+		return lost;
+	}
+	
+	/**
+	 * Return the amount of frames corrupted by the fault injection
+	 */
+	public long getCorruptedCount(){
+		return corrupted;
+	}
+	
+	public long getStallCount(){
+		return stalls;
+	}
+	
+	public long getDisconnectCount(){
+		return disconnects;
+	}
+	
+	public long getRefusedConnectCount(){
+		return refusedConnects;
+	}
+	
+	/**
+	 * Return the amount of commands not acknowledged because too many acknowledgements were pending
+	 */
+	public long getAckOverflowCount(){
+		return ackOverflows;
+	}
+	
+	/**
+	 * One connection: a reader thread decoding commands and a sender thread
+	 * writing telemetry, acknowledgements and faults
+	 */
+	private class Session implements FrameListener {
+		
+		private final Transport oTransport;
+		private final Thread oReader;
+		private final Thread oSender;
+		private volatile boolean running;
+		
+		// Stalled until this System.nanoTime(), both threads wait
+		private volatile long stalledUntil;
+		
+		// Bytes taken from the transport, modulo 2^32, only written by the reader
+		private volatile int consumed;
+		
+		// Pending acknowledgements, guarded by this
+		private final byte[][] acks;
+		private final int[] ackLengths;
+		private final long[] ackDue;
+		private int ackHead;
+		private int ackCount;
+		
+		// Telemetry rate requested by the phone and capped by telemetryRate, -1 until requested
+		private volatile int appliedRate = -1;
+		private final byte[] rateAck;
+		
+		// Telemetry encoding requested by the phone, the sender switches to it
+		private volatile int encoding = FrameCodec.ENCODING_RAW;
+		private int sentEncoding = FrameCodec.ENCODING_RAW;
+		private final byte[] encodingAck;
+		private final TelemetryEncoder oEncoder;
+		
+		// Sequence of the ping to answer or -1, guarded by this
+		private int pong = -1;
+		private final byte[] pongFrame;
+		private final byte[] pongPayload;
+		
+		// Sender buffers
+		private final byte[] frame;
+		private final int[] channels;
+		private final int[] values;
+		
+		Session(Transport transport){
+			
+			oTransport = transport;
+			running = true;
+			
+			acks = new byte[ACK_SLOTS][FrameCodec.MAX_FRAME];
+			ackLengths = new int[ACK_SLOTS];
+			ackDue = new long[ACK_SLOTS];
+			pongFrame = new byte[FrameCodec.MAX_FRAME];
+			pongPayload = new byte[FrameCodec.PING_SIZE];
+			rateAck = new byte[2 * FrameCodec.TELEMETRY_RATE_SIZE];
+			encodingAck = new byte[2 * FrameCodec.TELEMETRY_ENCODING_SIZE];
+			oEncoder = new TelemetryEncoder();
+			
+			frame = new byte[FrameCodec.MAX_FRAME];
+			channels = new int[FrameCodec.MAX_PAYLOAD / FrameCodec.TELEMETRY_SAMPLE_SIZE];
+			values = new int[channels.length];
+			
+			oReader = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					read();
+				}
+			}, "SimulatorReader");
+			
+			oSender = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					send();
+				}
+			}, "SimulatorSender");
+			
+			oReader.setDaemon(true);
+			oSender.setDaemon(true);
+		}
+		
+		void start(){
+			oReader.start();
+			oSender.start();
+		}
+		
+		void close(){
+			
+			running = false;
+			oSender.interrupt();
+			
+			try{
+				oTransport.close();
+			}catch(IOException e){
+				// Closing anyway
+			}
+		}
+		
+		private void read(){
+			
+			FrameDecoder decoder = new FrameDecoder(this);
+			byte[] buffer = new byte[1024];
+			
+			try{
+				
+				InputStream in = oTransport.getInputStream();
+				
+				while(running){
+					
+					stall();
+					
+					int length = in.read(buffer, 0, buffer.length);
+					
+					if(length < 0){
+						break;
+					}
+					
+					decoder.feed(buffer, 0, length);
+					
+					// The room is free again, let the sender grant it
+					consumed += length;
+					
+					if(receiveWindow > 0){
+						
+						synchronized(this){
+							notifyAll();
+						}
+					}
+				}
+			
+			}catch(IOException e){
+				// Connection closed
+			}catch(InterruptedException e){
+				// Closed during a stall
+			}
+			
+			close();
+		}
+		
+		@Override
+		public void onFrame(int type, byte[] payload, int offset, int length) {
+			
+			if(chance(commandLossRate)){
+				commandsLost++;
+				return;
+			}
+			
+			// Acknowledge every copy, execute only the first
+			if((type == FrameCodec.TYPE_RELIABLE) && (length >= FrameCodec.RELIABLE_HEADER_SIZE)){
+				
+				int reliable = FrameCodec.getShort(payload, offset) & 0xffff;
+				
+				if(acceptReliable(reliable)){
+					commandsReceived++;
+				}else{
+					duplicates++;
+				}
+				
+				synchronized(this){
+					
+					int slot = claimAck();
+					
+					if(slot >= 0){
+						ackLengths[slot] = FrameCodec.encodeReliableAck(acks[slot], 0, reliable);
+					}
+				}
+				return;
+			}
+			
+			// Pings skip the acknowledgement delay, only the newest is answered
+			if((type == FrameCodec.TYPE_PING) && (length == FrameCodec.PING_SIZE)){
+				
+				synchronized(this){
+					pong = FrameCodec.getShort(payload, offset) & 0xffff;
+					notifyAll();
+				}
+				return;
+			}
+			
+			commandsReceived++;
+			
+			// Answer a telemetry rate request with the requested and the applied rate
+			if((type == FrameCodec.TYPE_TELEMETRY_RATE) && (length == FrameCodec.TELEMETRY_RATE_SIZE)){
+				
+				int requested = FrameCodec.getShort(payload, offset) & 0xffff;
+				appliedRate = Math.min(requested, telemetryRate);
+				
+				FrameCodec.putShort(rateAck, 0, requested);
+				FrameCodec.putShort(rateAck, 2, appliedRate);
+				
+				payload = rateAck;
+				offset = 0;
+				length = rateAck.length;
+			}
+			
+			// Answer a telemetry encoding request with the requested and the applied encoding
+			if(type == FrameCodec.TYPE_TELEMETRY_ENCODING){
+				
+				if(!deltaTelemetry || (length != FrameCodec.TELEMETRY_ENCODING_SIZE)){
+					return;
+				}
+				
+				int requested = payload[offset] & 0xff;
+				encoding = (requested == FrameCodec.ENCODING_DELTA) ? FrameCodec.ENCODING_DELTA : FrameCodec.ENCODING_RAW;
+				
+				encodingAck[0] = (byte)requested;
+				encodingAck[1] = (byte)encoding;
+				
+				payload = encodingAck;
+				offset = 0;
+				length = encodingAck.length;
+			}
+			
+			if(length + 1 > FrameCodec.MAX_PAYLOAD){
+				ackOverflows++;
+				return;
+			}
+			
+			synchronized(this){
+				
+				int slot = claimAck();
+				
+				if(slot >= 0){
+					ackLengths[slot] = FrameCodec.encodeAck(acks[slot], 0, type, payload, offset, length);
+				}
+			}
+		}
+		
+		/**
+		 * Claim the slot of an acknowledgement that is sent after the
+		 * acknowledgement delay, the caller holds the lock and encodes it
+		 * @return The slot or -1 if too many acknowledgements are pending
+		 */
+		private int claimAck(){
+			
+			if(ackCount == ACK_SLOTS){
+				ackOverflows++;
+				return -1;
+			}
+			
+			int slot = (ackHead + ackCount) & (ACK_SLOTS - 1);
+			
+			ackDue[slot] = System.nanoTime() + ackDelay * 1000000L;
+			ackCount++;
+			
+			notifyAll();
+			return slot;
+		}
+		
+		private void send(){
+			
+			long now = System.nanoTime();
+			long nextTelemetry = now;
+			long nextStall = saturatedAdd(now, nextInterval(stallInterval));
+			long nextDisconnect = saturatedAdd(now, nextInterval(disconnectInterval));
+			long nextCredit = now;
+			int granted = 0;
+			
+			try{
+				
+				OutputStream out = oTransport.getOutputStream();
+				
+				while(running){
+					
+					stall();
+					now = System.nanoTime();
+					
+					if(now >= nextDisconnect){
+						disconnects++;
+						break;
+					}
+					
+					if(now >= nextStall){
+						stalls++;
+						stalledUntil = now + stallDuration * 1000000L;
+						nextStall = saturatedAdd(now, nextInterval(stallInterval));
+						continue;
+					}
+					
+					int rate = (appliedRate < 0) ? telemetryRate : Math.min(appliedRate, telemetryRate);
+					
+					if((rate > 0) && (now >= nextTelemetry)){
+						
+						write(out, frame, encodeTelemetry());
+						telemetrySent++;
+						
+						// Do not burst to catch up after a stall
+						nextTelemetry = Math.max(nextTelemetry + 1000000000L / rate, now);
+					
+					}else if(rate <= 0){
+						nextTelemetry = Long.MAX_VALUE;
+					}
+					
+					long wakeup = Math.min(Math.min(nextTelemetry, nextStall), nextDisconnect);
+					int window = receiveWindow;
+					
+					if(window > 0){
+						
+						int limit = consumed + window;
+						
+						// Grant in steps of a quarter window, or repeat the last grant
+						if((limit - granted >= window / 4) || (now >= nextCredit)){
+							
+							write(out, frame, FrameCodec.encodeCredit(frame, 0, limit));
+							creditsSent++;
+							
+							granted = limit;
+							nextCredit = now + CREDIT_REFRESH;
+						}
+						
+						wakeup = Math.min(wakeup, nextCredit);
+					}
+					
+					synchronized(this){
+						
+						if(pong >= 0){
+							
+							FrameCodec.putShort(pongPayload, 0, pong);
+							write(out, pongFrame, FrameCodec.encodeAck(pongFrame, 0, FrameCodec.TYPE_PING, pongPayload, 0, FrameCodec.PING_SIZE));
+							pong = -1;
+						}
+						
+						while((ackCount > 0) && (ackDue[ackHead] <= now)){
+							
+							write(out, acks[ackHead], ackLengths[ackHead]);
+							acksSent++;
+							
+							ackHead = (ackHead + 1) & (ACK_SLOTS - 1);
+							ackCount--;
+						}
+						
+						if(ackCount > 0){
+							wakeup = Math.min(wakeup, ackDue[ackHead]);
+						}
+						
+						long wait = (wakeup - System.nanoTime()) / 1000000L;
+						
+						// The reader may have freed room since the grant
+						if(((window > 0) && (consumed + window - granted >= window / 4)) || (pong >= 0)){
+							wait = 0;
+						}
+						
+						if(wait > 0){
+							wait(Math.min(wait, 1000));
+						}
+					}
+				}
+			
+			}catch(IOException e){
+				// Connection closed
+			}catch(InterruptedException e){
+				// Closed
+			}
+			
+			close();
+		}
+		
+		private int encodeTelemetry(){
+			
+			int count = telemetryChannels;
+			
+			channels[0] = CHANNEL_SEQUENCE;
+			values[0] = sequence++;
+			
+			for(int i=1; i<count; i++){
+				
+				channels[i] = i;
+				
+				// A triangle wave per channel
+				int phase = (sequence * i) & 0x3ff;
+				values[i] = (phase < 0x200) ? phase : (0x3ff - phase);
+			}
+			
+			int current = encoding;
+			
+			// Delta frames start over with a keyframe
+			if(current != sentEncoding){
+				oEncoder.reset();
+				sentEncoding = current;
+			}
+			
+			if(current == FrameCodec.ENCODING_DELTA){
+				return oEncoder.encode(frame, 0, channels, values, count);
+			}
+			
+			return FrameCodec.encodeTelemetry(frame, 0, channels, values, count);
+		}
+		
+		/**
+		 * Write a frame unless the fault injection loses it
+		 */
+		private void write(OutputStream out, byte[] buffer, int length) throws IOException {
+			
+			if(chance(lossRate)){
+				lost++;
+				return;
+			}
+			
+			if(chance(corruptionRate)){
+				
+				// Flip one bit after the sync pattern, the CRC check must catch it
+				int index = 2 + nextInt(length - 2);
+				buffer[index] ^= (byte)(1 << nextInt(8));
+				corrupted++;
+			}
+			
+			out.write(buffer, 0, length);
+			out.flush();
+			
+			bytesSent += length;
+		}
+		
+		private void stall() throws InterruptedException {
+			
+			long remaining;
+			
+			while(running && ((remaining = stalledUntil - System.nanoTime()) > 0)){
+				Thread.sleep(Math.max(1, remaining / 1000000L));
+			}
+		}
+	}
+	
+	private static long saturatedAdd(long a, long b){
+		
+		long sum = a + b;
+		
+		return (sum < a) ? Long.MAX_VALUE : sum;
+	}
+}
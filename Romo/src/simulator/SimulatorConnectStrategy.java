@@ -0,0 +1,57 @@
+package simulator;
+
+import romo.ConnectListener;
+import romo.ConnectStrategy;
+import romo.PipeTransport;
+import romo.Transport;
+
+/**
+ * Connects to a RobotSimulator over a fresh pair of PipeTransports on every
+ * attempt, so the BluetoothService can reconnect after a simulated disconnect
+ */
+public class SimulatorConnectStrategy extends ConnectStrategy {
+	
+	private final RobotSimulator oSimulator;
+	
+	/**
+	 * Initialize SimulatorConnectStrategy
+	 * @param simulator  The RobotSimulator serving every connection
+	 */
+	public SimulatorConnectStrategy(RobotSimulator simulator){
+		oSimulator = simulator;
+	}
+	
+	@Override
+	public String getName() {
+		return "Romo simulator";
+	}
+	
+	@Override
+	public int getPhaseCount() {
+		return 1;
+	}
+	
+	@Override
+	public int getPhase(int index) {
+		return ConnectListener.PHASE_TRANSPORT;
+	}
+	
+	@Override
+	public long getPhaseTimeout(int index) {
+		return getDeadline();
+	}
+	
+	@Override
+	public Transport createTransport(int index) {
+		
+		// A refused connection skips the only phase, the attempt fails
+		if(!oSimulator.acceptConnection()){
+			return null;
+		}
+		
+		PipeTransport[] pair = PipeTransport.createPair();
+		oSimulator.attach(pair[1]);
+		
+		return pair[0];
+	}
+}
@@ -0,0 +1,257 @@
+package simulator;
+
+import romo.BluetoothService;
+import romo.FrameCodec;
+import romo.FrameListener;
+import romo.LatencyHistogram;
+import romo.OutputQueue;
+import romo.TelemetryDecoder;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Load driver running the real BluetoothService against a RobotSimulator for
+ * a long time. It sends drive, tilt and expression commands at a fixed rate,
+ * measures the time until the simulator acknowledges a drive command, counts
+ * lost telemetry and logs throughput, latency and memory growth on every
+ * report interval.
+ * @author SteveVdb
+ */
+public class SoakTest implements FrameListener, Runnable {
+	
+	// Debugging
+	private static final String TAG = "SoakTest";
+	
+	// Send times of drive commands, indexed by the left speed, a power of two
+	private static final int PENDING = 1024;
+	
+	private final BluetoothService oService;
+	private final RobotSimulator oSimulator;
+	private Thread oThread;
+	private volatile boolean running;
+	
+	// Configuration
+	private long duration = 60 * 60 * 1000L;						// ms
+	private int commandRate = 50;									// commands per second
+	private long reportInterval = 60 * 1000L;						// ms
+	
+	// Written by the driver thread, read by the ConnectedThread
+	private final long[] sendTimes;
+	
+	// Updated on the ConnectedThread
+	private final LatencyHistogram oAckLatency;
+	private volatile long telemetryFrames;
+	private volatile long missedTelemetry;
+	private volatile long acks;
+	private int lastSequence = -1;
+	
+	// Updated on the driver thread
+	private long commands;
+	private long rejected;
+	
+	/**
+	 * Initialize SoakTest
+	 * @param service  The BluetoothService under test, its FrameListener is replaced
+	 * @param simulator  The RobotSimulator to connect to
+	 */
+	public SoakTest(BluetoothService service, RobotSimulator simulator){
+		
+		oService = service;
+		oSimulator = simulator;
+		sendTimes = new long[PENDING];
+		oAckLatency = new LatencyHistogram("ack");
+	}
+	
+	public void setDuration(long millis){
+		duration = millis;
+	}
+	
+	public void setCommandRate(int commandsPerSecond){
+		commandRate = commandsPerSecond;
+	}
+	
+	public void setReportInterval(long millis){
+		reportInterval = millis;
+	}
+	
+	public synchronized void start(){
+		
+		running = true;
+		oThread = new Thread(this, TAG);
+		oThread.start();
+	}
+	
+	/**
+	 * Stop the test early, a last report is logged
+	 */
+	public synchronized void stop(){
+		
+		running = false;
+		
+		if(oThread != null){
+			oThread.interrupt();
+			oThread = null;
+		}
+	}
+	
+	@Override
+	public void run() {
+		
+		Log.i(TAG, "soak test for " + (duration / 1000) + " s at " + commandRate + " commands/s");
+		
+		oService.setFrameListener(this);
+		oService.setAutoReconnect(true);
+		oService.setReliableCommands(true);
+		oService.connect(new SimulatorConnectStrategy(oSimulator));
+		
+		long start = System.nanoTime();
+		long end = start + duration * 1000000L;
+		long period = 1000000000L / Math.max(1, commandRate);
+		long nextCommand = start;
+		long nextReport = start + reportInterval * 1000000L;
+		long baseline = -1;
+		
+		try{
+			
+			while(running && (System.nanoTime() < end)){
+				
+				long now = System.nanoTime();
+				
+				if(now < nextCommand){
+					Thread.sleep((nextCommand - now) / 1000000L, (int)((nextCommand - now) % 1000000L));
+					continue;
+				}
+				
+				command();
+				nextCommand += period;
+				
+				if(now >= nextReport){
+					
+					long used = usedMemory();
+					
+					// The first report is the baseline, after everything was allocated once
+					if(baseline < 0){
+						baseline = used;
+					}
+					
+					report(now - start, used, baseline);
+					nextReport += reportInterval * 1000000L;
+				}
+			}
+		
+		}catch(InterruptedException e){
+			// Stopped early
+		}
+		
+		oService.stop();
+		oService.setFrameListener(null);
+		oSimulator.close();
+		
+		report(System.nanoTime() - start, usedMemory(), baseline);
+		Log.i(TAG, "soak test done");
+	}
+	
+	/**
+	 * Send the next command, a drive on most ticks
+	 */
+	private void command(){
+		
+		boolean queued;
+		
+		if(commands % 100 == 99){
+			queued = oService.expression((int)(commands / 100) & 0x07);
+		}else if(commands % 10 == 9){
+			queued = oService.tilt((int)(commands % 90));
+		}else{
+			
+			// The left speed identifies the command in its acknowledgement
+			int id = (int)(commands & 0x7fff);
+			sendTimes[id & (PENDING - 1)] = System.nanoTime();
+			queued = oService.drive(id, -id);
+		}
+		
+		commands++;
+		
+		if(!queued){
+			rejected++;
+		}
+	}
+	
+	@Override
+	public void onFrame(int type, byte[] payload, int offset, int length) {
+		
+		if(type == FrameCodec.TYPE_TELEMETRY){
+			
+			telemetryFrames++;
+			
+			if(FrameCodec.telemetryChannel(payload, offset, 0) == RobotSimulator.CHANNEL_SEQUENCE){
+				
+				int sequence = FrameCodec.telemetryValue(payload, offset, 0) & 0xffff;
+				
+				if(lastSequence >= 0){
+					missedTelemetry += (sequence - lastSequence - 1) & 0xffff;
+				}
+				
+				lastSequence = sequence;
+			}
+		
+		}else if((type == FrameCodec.TYPE_ACK) && (length > 1)){
+			
+			acks++;
+			
+			if((payload[offset] & 0xff) == FrameCodec.TYPE_DRIVE){
+				
+				int id = FrameCodec.getShort(payload, offset + 1) & 0x7fff;
+				oAckLatency.recordSince(sendTimes[id & (PENDING - 1)]);
+			}
+		}
+	}
+	
+	/**
+	 * Return the used heap after a collection, so growth shows leaks and not garbage
+	 */
+	private static long usedMemory(){
+		
+		Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+		
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	private void report(long elapsed, long used, long baseline){
+		
+		double seconds = Math.max(1, elapsed / 1000000) / 1000.0;
+		OutputQueue queue = oService.getOutputQueue();
+		
+		Log.i(TAG, String.format("%.0f s: sent %d commands (%.1f/s, %d rejected), %d acks, ack latency %s",
+				seconds, commands, commands / seconds, rejected, acks, oAckLatency));
+		
+		Log.i(TAG, String.format("%.0f s: telemetry %d frames (%.1f/s), %d missed, simulator lost %d corrupted %d stalls %d disconnects %d",
+				seconds, telemetryFrames, telemetryFrames / seconds, missedTelemetry,
+				oSimulator.getLostCount(), oSimulator.getCorruptedCount(), oSimulator.getStallCount(), oSimulator.getDisconnectCount()));
+		
+		Log.i(TAG, String.format("%.0f s: %d reconnects (avg %d ms, max %d ms), queue dropped %d coalesced %d, %d bytes written",
+				seconds, oService.getReconnectCount(), oService.getAverageReconnectTime(), oService.getMaxReconnectTime(),
+				queue.getDroppedCount(), queue.getCoalescedCount(), queue.getWrittenBytes()));
+		
+		Log.i(TAG, String.format("%.0f s: %d credit stalls (avg %d us, max %d us), %d credits granted",
+				seconds, queue.getCreditStallCount(), queue.getAverageCreditStall() / 1000, queue.getMaxCreditStall() / 1000,
+				oSimulator.getCreditsSent()));
+		
+		Log.i(TAG, String.format("%.0f s: heap %d KB (%+d KB since baseline), native heap %d KB",
+				seconds, used / 1024, (baseline < 0) ? 0 : (used - baseline) / 1024, Debug.getNativeHeapAllocatedSize() / 1024));
+		
+		Log.i(TAG, String.format("%.0f s: link %s", seconds, oService.getLinkQuality()));
+		
+		Log.i(TAG, String.format("%.0f s: rates %s", seconds, oService.getRateController()));
+		
+		Log.i(TAG, String.format("%.0f s: reliable %s, simulator dropped %d duplicates",
+				seconds, oService.getReliableChannel(), oSimulator.getDuplicateCount()));
+		
+		TelemetryDecoder telemetry = oService.getTelemetryDecoder();
+		Log.i(TAG, String.format("%.0f s: telemetry encoding %d, %d keyframes, %d deltas, %d dropped",
+				seconds, oService.getTelemetryEncoding(), telemetry.getKeyframeCount(), telemetry.getDeltaCount(), telemetry.getDroppedCount()));
+		
+		Log.i(TAG, "link latency\n" + oService.getLatencyStats());
+	}
+}
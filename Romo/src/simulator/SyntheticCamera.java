@@ -0,0 +1,326 @@
+package simulator;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import vision.BufferRecycler;
+import vision.PreviewFrame;
+import vision.PreviewPipeline;
+
+/**
+ * Simulated camera feeding a PreviewPipeline with NV21 frames at a fixed
+ * rate from its own thread, like the preview callback of a Camera with
+ * callback buffers: a frame is only delivered when a buffer was given back,
+ * otherwise it is skipped. The scene is a gradient with sensor noise and up
+ * to MAX_FACES drawn faces, each moving at its own speed and bouncing off
+ * the edges. A drawn face has the dark eyes, bright bridge and dark mouth
+ * the FaceDetector looks for. Nothing is allocated per frame.
+ * @author SteveVdb
+ */
+public class SyntheticCamera implements BufferRecycler {
+	
+	public static final int MAX_FACES = 4;
+	
+	private static final int NOISE = 8;								// luma levels
+	
+	// Luma of the parts of a face
+	private static final int SKIN = 170;
+	private static final int EYE = 40;
+	private static final int MOUTH = 70;
+	
+	private final int width;
+	private final int height;
+	private final Random oRandom;
+	
+	// Buffers given back by the pipeline, guarded by this
+	private final ArrayDeque<byte[]> oFree;
+	
+	// Faces in pixels and pixels per frame, size 0 for none, guarded by this
+	private final int[] faceX;
+	private final int[] faceY;
+	private final int[] faceSize;
+	private final int[] faceDx;
+	private final int[] faceDy;
+	
+	// Copy of the faces drawn by the camera thread
+	private final int[] drawX;
+	private final int[] drawY;
+	private final int[] drawSize;
+	
+	private volatile int frameRate = 30;								// frames per second
+	private volatile boolean running;
+	private Thread oThread;
+	
+	// Statistics
+	private volatile long delivered;
+	private volatile long skipped;
+	
+	/**
+	 * Initialize SyntheticCamera
+	 * @param width  The preview width in pixels
+	 * @param height  The preview height in pixels
+	 */
+	public SyntheticCamera(int width, int height){
+		
+		this.width = width;
+		this.height = height;
+		oRandom = new Random(1);
+		oFree = new ArrayDeque<byte[]>();
+		
+		faceX = new int[MAX_FACES];
+		faceY = new int[MAX_FACES];
+		faceSize = new int[MAX_FACES];
+		faceDx = new int[MAX_FACES];
+		faceDy = new int[MAX_FACES];
+		drawX = new int[MAX_FACES];
+		drawY = new int[MAX_FACES];
+		drawSize = new int[MAX_FACES];
+	}
+	
+	/**
+	 * Show a face, it replaces the face with the same index
+	 * @param index  0 to MAX_FACES - 1
+	 * @param x  The left edge in pixels
+	 * @param y  The top edge in pixels
+	 * @param size  The width and height in pixels
+	 * @param dx  The horizontal speed in pixels per frame
+	 * @param dy  The vertical speed in pixels per frame
+	 */
+	public synchronized void setFace(int index, int x, int y, int size, int dx, int dy){
+		faceX[index] = x;
+		faceY[index] = y;
+		faceSize[index] = Math.min(size, Math.min(width, height));
+		faceDx[index] = dx;
+		faceDy[index] = dy;
+	}
+	
+	public synchronized void removeFace(int index){
+		faceSize[index] = 0;
+	}
+	
+	/**
+	 * Return the left edge of a face in pixels as drawn in the last frame
+	 */
+	public synchronized int getFaceX(int index){
+		return faceX[index];
+	}
+	
+	public synchronized int getFaceY(int index){
+		return faceY[index];
+	}
+	
+	/**
+	 * @param framesPerSecond  The rate frames are delivered at
+	 */
+	public void setFrameRate(int framesPerSecond){
+		frameRate = framesPerSecond;
+	}
+	
+	public int getWidth(){
+		return width;
+	}
+	
+	public int getHeight(){
+		return height;
+	}
+	
+	/**
+	 * Start the pipeline and deliver frames to it until stop()
+	 */
+	public void start(final PreviewPipeline pipeline){
+		
+		stop();
+		
+		synchronized(this){
+			oFree.clear();
+		}
+		
+		pipeline.start(width, height);
+		
+		Thread thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				deliver(pipeline);
+			}
+		}, "SyntheticCamera");
+		
+		synchronized(this){
+			running = true;
+			oThread = thread;
+		}
+		
+		thread.start();
+	}
+	
+	/**
+	 * Stop delivering frames, the pipeline keeps running
+	 */
+	public void stop(){
+		
+		Thread thread;
+		
+		synchronized(this){
+			running = false;
+			thread = oThread;
+			oThread = null;
+		}
+		
+		if(thread != null){
+			
+			thread.interrupt();
+			
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void recycle(byte[] buffer){
+		oFree.add(buffer);
+	}
+	
+	private void deliver(PreviewPipeline pipeline){
+		
+		long next = System.nanoTime();
+		
+		while(running){
+			
+			next += 1000000000L / frameRate;
+			long delay = next - System.nanoTime();
+			
+			if(delay > 0){
+				
+				try{
+					Thread.sleep(delay / 1000000L, (int)(delay % 1000000L));
+				}catch(InterruptedException e){
+					return;
+				}
+			}
+			
+			byte[] buffer;
+			
+			synchronized(this){
+				buffer = oFree.poll();
+				move();
+			}
+			
+			// The camera has no buffer to fill
+			if(buffer == null){
+				skipped++;
+				continue;
+			}
+			
+			render(buffer);
+			delivered++;
+			
+			pipeline.submit(buffer);
+		}
+	}
+	
+	/**
+	 * Move the faces one frame and copy them for render(), the caller holds the lock
+	 */
+	private void move(){
+		
+		for(int i=0; i<MAX_FACES; i++){
+			
+			int size = faceSize[i];
+			
+			if(size > 0){
+				
+				faceX[i] += faceDx[i];
+				faceY[i] += faceDy[i];
+				
+				if((faceX[i] < 0) || (faceX[i] + size > width)){
+					faceDx[i] = -faceDx[i];
+					faceX[i] = Math.max(0, Math.min(width - size, faceX[i]));
+				}
+				
+				if((faceY[i] < 0) || (faceY[i] + size > height)){
+					faceDy[i] = -faceDy[i];
+					faceY[i] = Math.max(0, Math.min(height - size, faceY[i]));
+				}
+			}
+			
+			drawX[i] = faceX[i];
+			drawY[i] = faceY[i];
+			drawSize[i] = size;
+		}
+	}
+	
+	/**
+	 * Draw the scene of a frame
+	 */
+	private void render(byte[] data){
+		
+		for(int y=0; y<height; y++){
+			
+			int row = y * width;
+			
+			for(int x=0; x<width; x++){
+				data[row + x] = (byte)(32 + (x * 128) / width + oRandom.nextInt(NOISE));
+			}
+		}
+				
+		for(int i=0; i<MAX_FACES; i++){
+				
+			if(drawSize[i] > 0){
+				drawFace(data, drawX[i], drawY[i], drawSize[i]);
+			}
+		}
+		
+		// Gray chroma
+		for(int i=width * height; i<PreviewFrame.size(width, height); i++){
+			data[i] = (byte)128;
+		}
+	}
+	
+	/**
+	 * Draw an oval face on a grid of 24 by 24 cells, the FaceDetector window
+	 */
+	private void drawFace(byte[] data, int left, int top, int size){
+		
+		for(int y=top; y<top + size; y++){
+			
+			int v = (y - top) * 24 / size;
+			
+			for(int x=left; x<left + size; x++){
+				
+				int u = (x - left) * 24 / size;
+				
+				// Inside the oval of the head
+				int du = 2 * u - 23;
+				int dv = 2 * v - 23;
+				
+				if(du * du + dv * dv * 3 / 4 > 23 * 23){
+					continue;
+				}
+				
+				int luma = SKIN;
+				
+				if((v >= 7) && (v < 11) && (((u >= 4) && (u < 9)) || ((u >= 15) && (u < 20)))){
+					luma = EYE;
+				}else if((v >= 18) && (v < 20) && (u >= 8) && (u < 16)){
+					luma = MOUTH;
+				}
+				
+				data[y * width + x] = (byte)(luma + oRandom.nextInt(NOISE));
+			}
+		}
+	}
+	
+	public long getDeliveredCount(){
+		return delivered;
+	}
+	
+	/**
+	 * Return the amount of frames skipped because no buffer was given back
+	 */
+	public long getSkippedCount(){
+		return skipped;
+	}
+}
@@ -0,0 +1,271 @@
+package vision;
+
+import romo.LatencyHistogram;
+
+/**
+ * Runs the face detection only while something happens in front of the
+ * camera. While idle the camera delivers small frames at a low rate and
+ * only a MotionDetector looks at them. Motion requests the active mode, in
+ * which the frames have full size and rate and go to the detection
+ * processor as well. Without motion and without keepActive() for the idle
+ * delay, the idle mode is requested again.
+ * 
+ * The owner reconfigures the camera on a request and then calls setMode().
+ * The transition latency is measured from the frame that caused a request
+ * until the first frame taken in the new mode. The time spent, the frames,
+ * the time processing them and the CPU time passed by the owner are counted
+ * per mode.
+ */
+public class AdaptiveCapture implements FrameProcessor {
+	
+	// Modes
+	public static final int MODE_IDLE = 0;
+	public static final int MODE_ACTIVE = 1;
+	public static final int MODE_COUNT = 2;
+	
+	public static final long DEFAULT_IDLE_DELAY = 5000;				// ms without motion or faces
+	
+	private static final String[] NAMES = {"idle", "active"};
+	
+	private final FrameProcessor oProcessor;
+	private final MotionDetector oMotion;
+	private final LatencyHistogram[] transitions;
+	private CaptureModeListener oListener;
+	
+	private volatile long idleDelay = DEFAULT_IDLE_DELAY * 1000000L;
+	private volatile int mode = MODE_IDLE;
+	
+	// Last System.nanoTime() with motion or faces
+	private volatile long lastActivity;
+	
+	// Mode requested and not applied yet, -1 for none
+	private volatile int requested = -1;
+	private long requestTime;
+	
+	// Applied mode whose first frame is still awaited, guarded by this
+	private boolean transition;
+	private long transitionStart;
+	private long appliedTime;
+	
+	// Statistics per mode, guarded by this
+	private final long[] frames;
+	private final long[] busy;
+	private final long[] elapsed;
+	private final long[] cpu;
+	private final long[] entered;
+	private long modeStart;
+	private long cpuStart;
+	
+	/**
+	 * Initialize AdaptiveCapture in the idle mode
+	 * @param processor  Gets the frames of the active mode, null when the camera detects the faces
+	 */
+	public AdaptiveCapture(FrameProcessor processor){
+		
+		oProcessor = processor;
+		oMotion = new MotionDetector();
+		
+		transitions = new LatencyHistogram[MODE_COUNT];
+		transitions[MODE_IDLE] = new LatencyHistogram("to idle");
+		transitions[MODE_ACTIVE] = new LatencyHistogram("to active");
+		
+		frames = new long[MODE_COUNT];
+		busy = new long[MODE_COUNT];
+		elapsed = new long[MODE_COUNT];
+		cpu = new long[MODE_COUNT];
+		entered = new long[MODE_COUNT];
+		
+		modeStart = System.nanoTime();
+		cpuStart = -1;
+	}
+	
+	public void setListener(CaptureModeListener listener){
+		oListener = listener;
+	}
+	
+	/**
+	 * @param millis  How long the active mode lasts without motion or faces
+	 */
+	public void setIdleDelay(long millis){
+		idleDelay = millis * 1000000L;
+	}
+	
+	public MotionDetector getMotionDetector(){
+		return oMotion;
+	}
+	
+	public int getMode(){
+		return mode;
+	}
+	
+	/**
+	 * Keep the active mode, called while faces are tracked
+	 * @param now  The current System.nanoTime()
+	 */
+	public void keepActive(long now){
+		lastActivity = now;
+	}
+	
+	/**
+	 * Called by the owner when the camera runs in a mode, after a request or
+	 * on its own
+	 * @param mode  MODE_IDLE or MODE_ACTIVE
+	 * @param cpuTime  The CPU time of the process in nanoseconds, -1 if unknown
+	 */
+	public synchronized void setMode(int mode, long cpuTime){
+		
+		long now = System.nanoTime();
+		close(now, cpuTime);
+		
+		// A mode set without request counts from now
+		transition = true;
+		transitionStart = (requested == mode) ? requestTime : now;
+		appliedTime = now;
+		
+		if(mode == MODE_ACTIVE){
+			lastActivity = now;
+		}
+		
+		if(this.mode != mode){
+			entered[mode]++;
+		}
+		
+		this.mode = mode;
+		requested = -1;
+	}
+	
+	/**
+	 * Add the time and CPU time since the last call to the current mode
+	 * @param cpuTime  The CPU time of the process in nanoseconds, -1 if unknown
+	 */
+	public synchronized void sample(long cpuTime){
+		close(System.nanoTime(), cpuTime);
+	}
+	
+	private void close(long now, long cpuTime){
+		
+		elapsed[mode] += now - modeStart;
+		modeStart = now;
+		
+		if((cpuTime >= 0) && (cpuStart >= 0)){
+			cpu[mode] += cpuTime - cpuStart;
+		}
+		
+		cpuStart = cpuTime;
+	}
+	
+	@Override
+	public void onFrame(PreviewFrame frame) {
+		
+		long start = System.nanoTime();
+		long timestamp = frame.getTimestamp();
+		int current = mode;
+		boolean motion = oMotion.detect(frame.getData(), frame.getWidth(), frame.getHeight());
+		
+		if(motion){
+			lastActivity = timestamp;
+		}
+		
+		if((current == MODE_ACTIVE) && (oProcessor != null)){
+			oProcessor.onFrame(frame);
+		}
+		
+		synchronized(this){
+			
+			// First frame taken after the camera changed its mode
+			if(transition && (timestamp >= appliedTime)){
+				transition = false;
+				transitions[current].record(timestamp - transitionStart);
+			}
+			
+			frames[current]++;
+			busy[current] += System.nanoTime() - start;
+		}
+		
+		if(requested >= 0){
+			return;
+		}
+		
+		if((current == MODE_IDLE) && motion){
+			request(MODE_ACTIVE, timestamp);
+		}else if((current == MODE_ACTIVE) && (timestamp - lastActivity > idleDelay)){
+			request(MODE_IDLE, timestamp);
+		}
+	}
+	
+	private void request(int mode, long timestamp){
+		
+		requestTime = timestamp;
+		requested = mode;
+		
+		if(oListener != null){
+			oListener.onModeRequest(this, mode);
+		}
+	}
+	
+	/**
+	 * Return the histogram of the transitions into a mode
+	 */
+	public LatencyHistogram getTransitions(int mode){
+		return transitions[mode];
+	}
+	
+	public synchronized long getFrameCount(int mode){
+		return frames[mode];
+	}
+	
+	/**
+	 * Return the nanoseconds spent in a mode, up to the last setMode() or sample()
+	 */
+	public synchronized long getElapsed(int mode){
+		return elapsed[mode];
+	}
+	
+	/**
+	 * Return the nanoseconds the worker spent on the frames of a mode
+	 */
+	public synchronized long getBusyTime(int mode){
+		return busy[mode];
+	}
+	
+	/**
+	 * Return the CPU time of the process in a mode, up to the last setMode() or sample()
+	 */
+	public synchronized long getCpuTime(int mode){
+		return cpu[mode];
+	}
+	
+	public synchronized void reset(){
+		
+		for(int i=0; i<MODE_COUNT; i++){
+			transitions[i].reset();
+			frames[i] = 0;
+			busy[i] = 0;
+			elapsed[i] = 0;
+			cpu[i] = 0;
+			entered[i] = 0;
+		}
+	}
+	
+	/**
+	 * Return one line per mode with its share of the time and the CPU load
+	 */
+	@Override
+	public synchronized String toString(){
+		
+		StringBuilder out = new StringBuilder();
+		
+		for(int i=0; i<MODE_COUNT; i++){
+			
+			double seconds = elapsed[i] / 1e9;
+			
+			out.append(String.format("%s: entered %d, %.1f s, %d frames (%.1f fps), busy %.1f ms/s, cpu %.1f ms/s\n",
+					NAMES[i], entered[i], seconds, frames[i], (seconds > 0) ? frames[i] / seconds : 0.0,
+					(seconds > 0) ? busy[i] / 1e6 / seconds : 0.0, (seconds > 0) ? cpu[i] / 1e6 / seconds : 0.0));
+			transitions[i].appendTo(out);
+			out.append('\n');
+		}
+		
+		return out.toString();
+	}
+}
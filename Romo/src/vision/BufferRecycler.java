@@ -0,0 +1,10 @@
+package vision;
+
+public interface BufferRecycler {
+	
+	/**
+	 * Give a preview buffer back to the camera, Camera.addCallbackBuffer()
+	 * @param buffer  A buffer of the PreviewPipeline that may be filled again
+	 */
+	public void recycle(byte[] buffer);
+}
@@ -0,0 +1,13 @@
+package vision;
+
+public interface CaptureModeListener {
+	
+	/**
+	 * Called on the worker thread of the PreviewPipeline when the capture
+	 * should change its mode. The owner configures the camera and then calls
+	 * AdaptiveCapture.setMode(), until then no other change is requested.
+	 * @param capture  The AdaptiveCapture
+	 * @param mode  AdaptiveCapture.MODE_IDLE or MODE_ACTIVE
+	 */
+	public void onModeRequest(AdaptiveCapture capture, int mode);
+}
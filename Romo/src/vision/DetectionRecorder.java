@@ -0,0 +1,73 @@
+package vision;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Recording of the face detections of every frame, replayed by a
+ * DetectionReplay to test a FaceFollower against real detection streams.
+ * Records go through a buffer, nothing is allocated per frame.
+ * 
+ * File layout, big endian:
+ *   header   : long MAGIC, int VERSION, int 0
+ *   record   : long frame time, long delivery time (ns since the first frame), int count,
+ *              count times int left, top, right, bottom
+ */
+public final class DetectionRecorder {
+	
+	public static final long MAGIC = 0x524f4d4f44455431L;			// "ROMODET1"
+	public static final int VERSION = 1;
+	
+	private final DataOutputStream oOut;
+	private long startNanos = -1;
+	private long records;
+	
+	/**
+	 * Create a recording
+	 * @param file  The file to create, an existing file is overwritten
+	 */
+	public DetectionRecorder(File file) throws IOException {
+		
+		oOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		
+		oOut.writeLong(MAGIC);
+		oOut.writeInt(VERSION);
+		oOut.writeInt(0);
+	}
+	
+	/**
+	 * Record the detections of a frame, the same as passed to FaceTracker.update()
+	 * @param frameTime  The System.nanoTime() the frame was taken
+	 * @param delivered  The System.nanoTime() the detections were delivered
+	 */
+	public void record(int[] left, int[] top, int[] right, int[] bottom, int count, long frameTime, long delivered) throws IOException {
+		
+		if(startNanos < 0){
+			startNanos = frameTime;
+		}
+		
+		oOut.writeLong(frameTime - startNanos);
+		oOut.writeLong(delivered - startNanos);
+		oOut.writeInt(count);
+		
+		for(int i=0; i<count; i++){
+			oOut.writeInt(left[i]);
+			oOut.writeInt(top[i]);
+			oOut.writeInt(right[i]);
+			oOut.writeInt(bottom[i]);
+		}
+		
+		records++;
+	}
+	
+	public long getRecordCount(){
+		return records;
+	}
+	
+	public void close() throws IOException {
+		oOut.close();
+	}
+}
@@ -0,0 +1,144 @@
+package vision;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Plays a DetectionRecorder file into a FaceTracker and a FaceFollower in
+ * simulated time, as fast as possible. The follower steps at its interval,
+ * the detections of a frame are given to the tracker at their recorded
+ * delivery time, so the latency of the follower is measured from the
+ * recorded frame times, as on the robot. The same recording gives the same
+ * set points on every run.
+ */
+public class DetectionReplay {
+	
+	// Steps after the last frame, so the follower stops
+	private static final long TAIL = 2000000000L;					// 2 s
+	
+	private final File oFile;
+	private long interval = FaceFollower.DEFAULT_INTERVAL * 1000000L;
+	
+	// Statistics
+	private long frames;
+	private long detections;
+	private long steps;
+	
+	/**
+	 * Initialize DetectionReplay
+	 * @param file  The recording
+	 */
+	public DetectionReplay(File file){
+		oFile = file;
+	}
+	
+	/**
+	 * @param millis  The time between steps of the follower
+	 */
+	public void setInterval(long millis){
+		interval = millis * 1000000L;
+	}
+	
+	/**
+	 * Play the whole recording
+	 * @param tracker  Gets the detections
+	 * @param follower  Follows the faces of the tracker
+	 */
+	public void play(FaceTracker tracker, FaceFollower follower) throws IOException {
+		
+		int[] left = new int[FaceTracker.MAX_DETECTIONS];
+		int[] top = new int[FaceTracker.MAX_DETECTIONS];
+		int[] right = new int[FaceTracker.MAX_DETECTIONS];
+		int[] bottom = new int[FaceTracker.MAX_DETECTIONS];
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(oFile)));
+		
+		try{
+			
+			if((in.readLong() != DetectionRecorder.MAGIC) || (in.readInt() != DetectionRecorder.VERSION)){
+				throw new IOException("not a detection recording: " + oFile);
+			}
+			
+			in.readInt();
+			
+			// Recorded times start at 0, the follower takes 0 for no previous step
+			long base = System.nanoTime();
+			long now = base;
+			
+			while(true){
+				
+				long frameTime;
+				long delivered;
+				int count;
+				
+				try{
+					frameTime = base + in.readLong();
+					delivered = base + in.readLong();
+					count = in.readInt();
+				}catch(EOFException e){
+					break;
+				}
+				
+				for(int i=0; i<count; i++){
+					
+					int l = in.readInt();
+					int t = in.readInt();
+					int r = in.readInt();
+					int b = in.readInt();
+					
+					if(i < FaceTracker.MAX_DETECTIONS){
+						left[i] = l;
+						top[i] = t;
+						right[i] = r;
+						bottom[i] = b;
+					}
+				}
+				
+				// Steps due before the frame was delivered
+				while(now + interval <= delivered){
+					now += interval;
+					tracker.expire(now);
+					follower.step(now);
+					steps++;
+				}
+				
+				tracker.update(left, top, right, bottom, Math.min(count, FaceTracker.MAX_DETECTIONS), delivered);
+				follower.onFrame(frameTime);
+				
+				frames++;
+				detections += count;
+			}
+			
+			for(long end = now + TAIL; now < end; ){
+				now += interval;
+				tracker.expire(now);
+				follower.step(now);
+				steps++;
+			}
+		
+		}finally{
+			in.close();
+		}
+	}
+	
+	public long getFrameCount(){
+		return frames;
+	}
+	
+	public long getDetectionCount(){
+		return detections;
+	}
+	
+	public long getStepCount(){
+		return steps;
+	}
+	
+	@Override
+	public String toString(){
+		return String.format("%d frames, %d detections, %d steps", frames, detections, steps);
+	}
+}
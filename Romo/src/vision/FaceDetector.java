@@ -0,0 +1,804 @@
+package vision;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds upright frontal faces in the luma plane of NV21 frames, for devices
+ * without hardware face detection. The luma is box-averaged so the smallest
+ * face fits the WINDOW, and a pyramid of levels, each SCALE_STEP smaller,
+ * finds the larger faces with the same window. Every level gets an integral
+ * image and an integral of squares, so the mean of any rectangle and the
+ * deviation of a window take four lookups.
+ * 
+ * A window is a face when each eye is darker than the cheek below it, the
+ * eye band is darker than the forehead, both eyes are darker than the bridge
+ * of the nose and the mouth is darker than the skin above it, all relative
+ * to the deviation of the window so lighting does not matter. The window
+ * rows of all levels are cut in tiles that the calling thread and a few
+ * worker threads take in turns.
+ * Similar hits are grouped, a group of at least MIN_NEIGHBORS hits is a
+ * face, so a single lucky window is not, and a group overlapping a stronger
+ * one is the same face at another position or scale.
+ * 
+ * Preview frames come in the orientation of the sensor. With setRotation()
+ * the luma is turned upright while it is averaged into the first level, and
+ * the faces are mapped back into the frame.
+ * 
+ * All buffers are allocated when the frame size changes, detect() allocates
+ * nothing. It is called from one thread at a time.
+ */
+public class FaceDetector {
+	
+	public static final int WINDOW = 24;							// pixels of a level
+	public static final int MAX_FACES = 16;
+	public static final int DEFAULT_MIN_FACE = 48;					// pixels of the frame
+	public static final int DEFAULT_MAX_THREADS = 4;
+	
+	private static final double SCALE_STEP = 1.25;
+	private static final int STEP = 2;								// window step in pixels of a level
+	private static final int TILE_ROWS = 8;						// window rows per tile
+	private static final int MIN_NEIGHBORS = 3;
+	private static final int MAX_CANDIDATES = 1024;				// per thread
+	private static final int MIN_DEVIATION = 8;					// luma levels, flat windows are no face
+	private static final double GROUP_EPS = 0.2;
+	private static final double MAX_OVERLAP = 0.3;					// of the smaller face
+	
+	// Rectangles in the window, left, top, right and bottom exclusive
+	private static final int[] EYES = {4, 7, 20, 11};
+	private static final int[] LEFT_EYE = {4, 7, 9, 11};
+	private static final int[] BRIDGE = {10, 7, 14, 11};
+	private static final int[] RIGHT_EYE = {15, 7, 20, 11};
+	private static final int[] LEFT_CHEEK = {4, 12, 9, 16};
+	private static final int[] RIGHT_CHEEK = {15, 12, 20, 16};
+	private static final int[] FOREHEAD = {5, 2, 19, 6};
+	private static final int[] ABOVE_MOUTH = {8, 15, 16, 17};
+	private static final int[] MOUTH = {8, 18, 16, 20};
+	
+	// Contrasts in deviations of the window
+	private static final double EYES_CONTRAST = 0.4;
+	private static final double BRIDGE_CONTRAST = 0.2;
+	private static final double FOREHEAD_CONTRAST = 0.2;
+	private static final double MOUTH_CONTRAST = 0.1;
+	
+	private volatile int minFace = DEFAULT_MIN_FACE;
+	private volatile int rotation;
+	private final int threadCount;
+	
+	// Buffers of the frame size, rotation and smallest face
+	private int configuredFace;
+	private int configuredRotation;
+	private int width;
+	private int height;
+	private int uprightWidth;
+	private int uprightHeight;
+	private int shrink;
+	private int levels;
+	private double[] scales;
+	private int[] levelWidths;
+	private int[] levelHeights;
+	private byte[][] pixels;
+	private int[][] xMaps;
+	private int[][] yMaps;
+	private int[][] sums;
+	private long[][] squares;
+	private int tileCount;
+	private int[] tileLevels;
+	private int[] tileRows;
+	
+	// Hits per thread in level coordinates
+	private final int[][] hitLevels;
+	private final int[][] hitX;
+	private final int[][] hitY;
+	private final int[] hitCounts;
+	
+	// Groups of hits in frame coordinates
+	private final int[] groupX;
+	private final int[] groupY;
+	private final int[] groupSize;
+	private final int[] groupCounts;
+	private int groupCount;
+	
+	// Faces of the last detect()
+	private final int[] faceLeft;
+	private final int[] faceTop;
+	private final int[] faceRight;
+	private final int[] faceBottom;
+	private final int[] faceScores;
+	private int faceCount;
+	
+	// Tiles handed out to the threads, the lock guards the rest
+	private final AtomicInteger nextTile;
+	private final Object oLock;
+	private Worker[] oWorkers;
+	private int generation;
+	private int busy;
+	private boolean closed;
+	
+	/**
+	 * Initialize FaceDetector
+	 * @param maxThreads  The most threads to use, the caller of detect() included
+	 */
+	public FaceDetector(int maxThreads){
+		
+		threadCount = Math.max(1, Math.min(maxThreads, Runtime.getRuntime().availableProcessors()));
+		
+		hitLevels = new int[threadCount][MAX_CANDIDATES];
+		hitX = new int[threadCount][MAX_CANDIDATES];
+		hitY = new int[threadCount][MAX_CANDIDATES];
+		hitCounts = new int[threadCount];
+		
+		groupX = new int[threadCount * MAX_CANDIDATES];
+		groupY = new int[groupX.length];
+		groupSize = new int[groupX.length];
+		groupCounts = new int[groupX.length];
+		
+		faceLeft = new int[MAX_FACES];
+		faceTop = new int[MAX_FACES];
+		faceRight = new int[MAX_FACES];
+		faceBottom = new int[MAX_FACES];
+		faceScores = new int[MAX_FACES];
+		
+		nextTile = new AtomicInteger();
+		oLock = new Object();
+	}
+	
+	public FaceDetector(){
+		this(DEFAULT_MAX_THREADS);
+	}
+	
+	/**
+	 * @param pixels  The smallest face to find in pixels of the frame, at least
+	 * 	WINDOW and rounded down to a multiple of it, from the next detect() on
+	 */
+	public void setMinFaceSize(int pixels){
+		minFace = Math.max(WINDOW, pixels);
+	}
+	
+	/**
+	 * @param degrees  The clockwise rotation that turns the frame upright, 0,
+	 * 	90, 180 or 270, from the next detect() on
+	 */
+	public void setRotation(int degrees){
+		rotation = ((degrees % 360) + 360) % 360 / 90 * 90;
+	}
+	
+	public int getThreadCount(){
+		return threadCount;
+	}
+	
+	/**
+	 * Find the faces in a frame
+	 * @param nv21  The frame, only the luma plane is read
+	 * @param width  The frame width in pixels
+	 * @param height  The frame height in pixels
+	 * @return The amount of faces found, at most MAX_FACES
+	 */
+	public int detect(byte[] nv21, int width, int height){
+		
+		if((width != this.width) || (height != this.height) || (minFace != configuredFace)
+				|| (rotation != configuredRotation)){
+			configure(width, height);
+		}
+		
+		faceCount = 0;
+		
+		if(levels == 0){
+			return 0;
+		}
+		
+		shrink(nv21);
+		
+		for(int level=0; level<levels; level++){
+			
+			if(level > 0){
+				resample(level);
+			}
+			integrate(level);
+		}
+		
+		// Scan the tiles on every thread
+		nextTile.set(0);
+		
+		if(threadCount > 1){
+			
+			startWorkers();
+			
+			synchronized(oLock){
+				generation++;
+				busy = oWorkers.length;
+				oLock.notifyAll();
+			}
+		}
+		
+		scan(0);
+		
+		if(threadCount > 1){
+			awaitWorkers();
+		}
+		
+		group();
+		
+		return faceCount;
+	}
+	
+	/**
+	 * Allocate the levels and tiles of a frame size
+	 */
+	private void configure(int width, int height){
+		
+		this.width = width;
+		this.height = height;
+		configuredFace = minFace;
+		configuredRotation = rotation;
+		
+		// The levels are upright
+		boolean turned = (configuredRotation == 90) || (configuredRotation == 270);
+		uprightWidth = turned ? height : width;
+		uprightHeight = turned ? width : height;
+		
+		shrink = configuredFace / WINDOW;
+		
+		int baseWidth = uprightWidth / shrink;
+		int baseHeight = uprightHeight / shrink;
+		
+		levels = 0;
+		
+		for(double scale=1; (baseWidth / scale >= WINDOW) && (baseHeight / scale >= WINDOW); scale*=SCALE_STEP){
+			levels++;
+		}
+		
+		scales = new double[levels];
+		levelWidths = new int[levels];
+		levelHeights = new int[levels];
+		pixels = new byte[levels][];
+		xMaps = new int[levels][];
+		yMaps = new int[levels][];
+		sums = new int[levels][];
+		squares = new long[levels][];
+		tileCount = 0;
+		
+		double scale = 1;
+		
+		for(int level=0; level<levels; level++){
+			
+			int w = (int)(baseWidth / scale);
+			int h = (int)(baseHeight / scale);
+			
+			scales[level] = scale;
+			levelWidths[level] = w;
+			levelHeights[level] = h;
+			pixels[level] = new byte[w * h];
+			sums[level] = new int[(w + 1) * (h + 1)];
+			squares[level] = new long[(w + 1) * (h + 1)];
+			
+			// Nearest pixel of the first level
+			xMaps[level] = new int[w];
+			yMaps[level] = new int[h];
+			
+			for(int x=0; x<w; x++){
+				xMaps[level][x] = Math.min(baseWidth - 1, (int)(x * scale));
+			}
+			
+			for(int y=0; y<h; y++){
+				yMaps[level][y] = Math.min(baseHeight - 1, (int)(y * scale));
+			}
+			
+			int rows = (h - WINDOW) / STEP + 1;
+			tileCount += (rows + TILE_ROWS - 1) / TILE_ROWS;
+			scale *= SCALE_STEP;
+		}
+		
+		tileLevels = new int[tileCount];
+		tileRows = new int[tileCount];
+		
+		// Largest levels first, they take longest
+		int tile = 0;
+		
+		for(int level=0; level<levels; level++){
+			
+			int rows = (levelHeights[level] - WINDOW) / STEP + 1;
+			
+			for(int row=0; row<rows; row+=TILE_ROWS){
+				tileLevels[tile] = level;
+				tileRows[tile] = row;
+				tile++;
+			}
+		}
+	}
+	
+	/**
+	 * Box-average the luma into the first level, turned upright
+	 */
+	private void shrink(byte[] nv21){
+		
+		int w = levelWidths[0];
+		int h = levelHeights[0];
+		byte[] out = pixels[0];
+		int area = shrink * shrink;
+		
+		if((shrink == 1) && (configuredRotation == 0)){
+			
+			for(int y=0; y<h; y++){
+				System.arraycopy(nv21, y * width, out, y * w, w);
+			}
+			return;
+		}
+		
+		// Index of the upright pixel (0, 0) in the frame and the index steps
+		// of an upright pixel to the right and down
+		int origin;
+		int stepX;
+		int stepY;
+		
+		switch(configuredRotation){
+		case 90: origin = (height - 1) * width; stepX = -width; stepY = 1; break;
+		case 180: origin = (height - 1) * width + width - 1; stepX = -1; stepY = -width; break;
+		case 270: origin = width - 1; stepX = width; stepY = -1; break;
+		default: origin = 0; stepX = 1; stepY = width; break;
+		}
+		
+		for(int y=0; y<h; y++){
+			
+			for(int x=0; x<w; x++){
+				
+				int sum = 0;
+				int p = origin + y * shrink * stepY + x * shrink * stepX;
+				
+				for(int dy=0; dy<shrink; dy++){
+					
+					for(int dx=0; dx<shrink; dx++){
+						sum += nv21[p + dx * stepX] & 0xff;
+					}
+					p += stepY;
+				}
+				
+				out[y * w + x] = (byte)(sum / area);
+			}
+		}
+	}
+	
+	private void resample(int level){
+		
+		int w = levelWidths[level];
+		int h = levelHeights[level];
+		int baseWidth = levelWidths[0];
+		byte[] base = pixels[0];
+		byte[] out = pixels[level];
+		int[] xMap = xMaps[level];
+		int[] yMap = yMaps[level];
+		
+		for(int y=0; y<h; y++){
+			
+			int row = yMap[y] * baseWidth;
+			
+			for(int x=0; x<w; x++){
+				out[y * w + x] = base[row + xMap[x]];
+			}
+		}
+	}
+	
+	private void integrate(int level){
+		
+		int w = levelWidths[level];
+		int h = levelHeights[level];
+		int stride = w + 1;
+		byte[] in = pixels[level];
+		int[] sum = sums[level];
+		long[] square = squares[level];
+		
+		for(int y=0; y<h; y++){
+			
+			int rowSum = 0;
+			long rowSquare = 0;
+			
+			for(int x=0; x<w; x++){
+				
+				int value = in[y * w + x] & 0xff;
+				rowSum += value;
+				rowSquare += value * value;
+				
+				int i = (y + 1) * stride + x + 1;
+				sum[i] = sum[i - stride] + rowSum;
+				square[i] = square[i - stride] + rowSquare;
+			}
+		}
+	}
+	
+	/**
+	 * Take tiles until none are left
+	 * @param thread  0 for the caller of detect(), 1 and up for the workers
+	 */
+	private void scan(int thread){
+		
+		int count = 0;
+		int[] levelHits = hitLevels[thread];
+		int[] xHits = hitX[thread];
+		int[] yHits = hitY[thread];
+		
+		for(int tile=nextTile.getAndIncrement(); tile<tileCount; tile=nextTile.getAndIncrement()){
+			
+			int level = tileLevels[tile];
+			int w = levelWidths[level];
+			int h = levelHeights[level];
+			int stride = w + 1;
+			int[] sum = sums[level];
+			long[] square = squares[level];
+			
+			int lastRow = Math.min(tileRows[tile] + TILE_ROWS, (h - WINDOW) / STEP + 1);
+			
+			for(int row=tileRows[tile]; row<lastRow; row++){
+				
+				int y = row * STEP;
+				
+				for(int x=0; x+WINDOW<=w; x+=STEP){
+					
+					if(isFace(sum, square, stride, x, y) && (count < MAX_CANDIDATES)){
+						levelHits[count] = level;
+						xHits[count] = x;
+						yHits[count] = y;
+						count++;
+					}
+				}
+			}
+		}
+		
+		hitCounts[thread] = count;
+	}
+	
+	private static boolean isFace(int[] sum, long[] square, int stride, int x, int y){
+		
+		int top = y * stride + x;
+		int bottom = top + WINDOW * stride;
+		int area = WINDOW * WINDOW;
+		
+		long total = sum[bottom + WINDOW] - sum[bottom] - sum[top + WINDOW] + sum[top];
+		long squares = square[bottom + WINDOW] - square[bottom] - square[top + WINDOW] + square[top];
+		long variance = squares * area - total * total;
+		
+		if(variance < (long)MIN_DEVIATION * MIN_DEVIATION * area * area){
+			return false;
+		}
+		
+		double deviation = Math.sqrt((double)variance) / area;
+		
+		// Most selective first
+		double leftEye = mean(sum, stride, x, y, LEFT_EYE);
+		
+		if(mean(sum, stride, x, y, LEFT_CHEEK) - leftEye < EYES_CONTRAST * deviation){
+			return false;
+		}
+		
+		double rightEye = mean(sum, stride, x, y, RIGHT_EYE);
+		
+		if(mean(sum, stride, x, y, RIGHT_CHEEK) - rightEye < EYES_CONTRAST * deviation){
+			return false;
+		}
+		
+		if(mean(sum, stride, x, y, FOREHEAD) - mean(sum, stride, x, y, EYES) < FOREHEAD_CONTRAST * deviation){
+			return false;
+		}
+		
+		if(mean(sum, stride, x, y, BRIDGE) - Math.max(leftEye, rightEye) < BRIDGE_CONTRAST * deviation){
+			return false;
+		}
+		
+		return mean(sum, stride, x, y, ABOVE_MOUTH) - mean(sum, stride, x, y, MOUTH) >= MOUTH_CONTRAST * deviation;
+	}
+	
+	private static double mean(int[] sum, int stride, int x, int y, int[] rect){
+		
+		int top = (y + rect[1]) * stride + x;
+		int bottom = (y + rect[3]) * stride + x;
+		
+		int total = sum[bottom + rect[2]] - sum[bottom + rect[0]] - sum[top + rect[2]] + sum[top + rect[0]];
+		
+		return (double)total / ((rect[2] - rect[0]) * (rect[3] - rect[1]));
+	}
+	
+	/**
+	 * Merge the hits of all threads into faces
+	 */
+	private void group(){
+		
+		groupCount = 0;
+		
+		for(int thread=0; thread<threadCount; thread++){
+			
+			for(int i=0; i<hitCounts[thread]; i++){
+				
+				double scale = shrink * scales[hitLevels[thread][i]];
+				int x = (int)(hitX[thread][i] * scale);
+				int y = (int)(hitY[thread][i] * scale);
+				int size = (int)(WINDOW * scale);
+				
+				int g = 0;
+				
+				while((g < groupCount) && !similar(g, x, y, size)){
+					g++;
+				}
+				
+				if(g == groupCount){
+					groupX[g] = 0;
+					groupY[g] = 0;
+					groupSize[g] = 0;
+					groupCounts[g] = 0;
+					groupCount++;
+				}
+				
+				groupX[g] += x;
+				groupY[g] += y;
+				groupSize[g] += size;
+				groupCounts[g]++;
+			}
+		}
+		
+		// Strongest groups first, a group overlapping a stronger one is part of that face
+		while(faceCount < MAX_FACES){
+			
+			int best = -1;
+			
+			for(int g=0; g<groupCount; g++){
+				
+				if((groupCounts[g] >= MIN_NEIGHBORS) && ((best < 0) || (groupCounts[g] > groupCounts[best]))){
+					best = g;
+				}
+			}
+			
+			if(best < 0){
+				break;
+			}
+			
+			int count = groupCounts[best];
+			int size = groupSize[best] / count;
+			int left = groupX[best] / count;
+			int top = groupY[best] / count;
+			
+			groupCounts[best] = 0;
+			
+			if(!overlaps(left, top, size)){
+				faceLeft[faceCount] = Math.max(0, left);
+				faceTop[faceCount] = Math.max(0, top);
+				faceRight[faceCount] = Math.min(uprightWidth, left + size);
+				faceBottom[faceCount] = Math.min(uprightHeight, top + size);
+				faceScores[faceCount] = Math.min(100, 10 * count);
+				faceCount++;
+			}
+		}
+		
+		for(int i=0; i<faceCount; i++){
+			toFrame(i);
+		}
+	}
+	
+	/**
+	 * Map an upright face back into the frame
+	 */
+	private void toFrame(int face){
+		
+		int left = faceLeft[face];
+		int top = faceTop[face];
+		int right = faceRight[face];
+		int bottom = faceBottom[face];
+		
+		switch(configuredRotation){
+		case 90:
+			faceLeft[face] = top;
+			faceTop[face] = height - right;
+			faceRight[face] = bottom;
+			faceBottom[face] = height - left;
+			break;
+		case 180:
+			faceLeft[face] = width - right;
+			faceTop[face] = height - bottom;
+			faceRight[face] = width - left;
+			faceBottom[face] = height - top;
+			break;
+		case 270:
+			faceLeft[face] = width - bottom;
+			faceTop[face] = left;
+			faceRight[face] = width - top;
+			faceBottom[face] = right;
+			break;
+		}
+	}
+	
+	private boolean similar(int g, int x, int y, int size){
+		
+		int count = groupCounts[g];
+		int gx = groupX[g] / count;
+		int gy = groupY[g] / count;
+		int gSize = groupSize[g] / count;
+		
+		double delta = GROUP_EPS * Math.min(size, gSize);
+		
+		return (Math.abs(gx - x) <= delta) && (Math.abs(gy - y) <= delta)
+				&& (Math.abs(gx + gSize - x - size) <= delta) && (Math.abs(gy + gSize - y - size) <= delta);
+	}
+	
+	private boolean overlaps(int left, int top, int size){
+		
+		for(int i=0; i<faceCount; i++){
+			
+			int w = Math.min(left + size, faceRight[i]) - Math.max(left, faceLeft[i]);
+			int h = Math.min(top + size, faceBottom[i]) - Math.max(top, faceTop[i]);
+			
+			if((w <= 0) || (h <= 0)){
+				continue;
+			}
+			
+			long smaller = Math.min((long)size * size, (long)(faceRight[i] - faceLeft[i]) * (faceBottom[i] - faceTop[i]));
+			
+			if(w * h > MAX_OVERLAP * smaller){
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Return the amount of faces found by the last detect()
+	 */
+	public int getFaceCount(){
+		return faceCount;
+	}
+	
+	/**
+	 * Return the left edge of a face in pixels of the frame
+	 */
+	public int getLeft(int face){
+		return faceLeft[face];
+	}
+	
+	public int getTop(int face){
+		return faceTop[face];
+	}
+	
+	/**
+	 * Return the right edge of a face in pixels of the frame, exclusive
+	 */
+	public int getRight(int face){
+		return faceRight[face];
+	}
+	
+	public int getBottom(int face){
+		return faceBottom[face];
+	}
+	
+	/**
+	 * Return the confidence of a face from 1 to 100, grows with the hits of its group
+	 */
+	public int getScore(int face){
+		return faceScores[face];
+	}
+	
+	private void startWorkers(){
+		
+		if(oWorkers != null){
+			return;
+		}
+		
+		oWorkers = new Worker[threadCount - 1];
+		
+		for(int i=0; i<oWorkers.length; i++){
+			oWorkers[i] = new Worker(i + 1, generation);
+			oWorkers[i].start();
+		}
+	}
+	
+	private void awaitWorkers(){
+		
+		boolean interrupted = false;
+		
+		synchronized(oLock){
+			
+			while(busy > 0){
+				
+				try{
+					oLock.wait();
+				}catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+		}
+		
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Stop the worker threads, the next detect() starts them again
+	 */
+	public void close(){
+		
+		Worker[] workers = oWorkers;
+		
+		if(workers == null){
+			return;
+		}
+		
+		synchronized(oLock){
+			closed = true;
+			oLock.notifyAll();
+		}
+		
+		boolean interrupted = false;
+		
+		for(int i=0; i<workers.length; i++){
+			
+			while(workers[i].isAlive()){
+				
+				try{
+					workers[i].join();
+				}catch(InterruptedException e){
+					interrupted = true;
+				}
+			}
+		}
+		
+		synchronized(oLock){
+			closed = false;
+		}
+		
+		oWorkers = null;
+		
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Scans tiles whenever detect() starts a new generation
+	 */
+	private class Worker extends Thread {
+		
+		private final int index;
+		private int seen;
+		
+		/**
+		 * @param generation  The last generation scanned without this worker
+		 */
+		Worker(int index, int generation){
+			
+			super("FaceDetector-" + index);
+			this.index = index;
+			seen = generation;
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			
+			while(true){
+				
+				synchronized(oLock){
+					
+					while(!closed && (generation == seen)){
+						
+						try{
+							oLock.wait();
+						}catch(InterruptedException e){
+							// Only close() ends the worker
+						}
+					}
+					
+					if(closed){
+						return;
+					}
+					
+					seen = generation;
+				}
+				
+				scan(index);
+				
+				synchronized(oLock){
+					
+					if(--busy == 0){
+						oLock.notifyAll();
+					}
+				}
+			}
+		}
+	}
+}
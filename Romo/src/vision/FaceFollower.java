@@ -0,0 +1,365 @@
+package vision;
+
+import romo.LatencyHistogram;
+
+/**
+ * Turns the robot towards a tracked face and keeps it at a distance. The
+ * owner calls step() at a fixed rate and onFrame() after every update of the
+ * FaceTracker. On a step after a new frame, one PID turns the horizontal
+ * offset of the face into a turn speed and another turns the difference of
+ * its width with the target size into a drive speed. Every step moves the
+ * sent speeds towards those outputs by at most the acceleration limit and
+ * sends them as track speeds to the MotorOutput.
+ * 
+ * The face followed is the largest confirmed track, kept until its track is
+ * gone. A face not seen for LOST_TIMEOUT is lost and the robot slows down to
+ * a stop, one stop is sent and nothing after it until a face is followed.
+ * A stop that fails is sent again on at most STOP_RETRIES steps.
+ * 
+ * The boxes of the tracker are in Camera.Face coordinates, (-1000, -1000) to
+ * (1000, 1000), as the sensor sees them. setRotation() turns them upright,
+ * they are not mirrored so right in the frame is right of the robot. The
+ * time from the frame to the first set point sent for it is recorded, its
+ * budget is LATENCY_BUDGET. It is used from one thread.
+ */
+public class FaceFollower {
+	
+	public static final long DEFAULT_INTERVAL = 33;					// ms between steps
+	public static final long LATENCY_BUDGET = 100000000L;			// 100 ms frame to set point
+	public static final int DEFAULT_MAX_SPEED = 100;
+	public static final double DEFAULT_TARGET_SIZE = 0.3;			// face width over frame width
+	public static final double DEFAULT_ACCELERATION = 250;			// speed per second
+	
+	private static final double HALF_FRAME = 1000;					// Camera.Face coordinates
+	private static final long LOST_TIMEOUT = 500000000L;			// 500 ms
+	private static final int STOP_RETRIES = 3;
+	
+	// Offset from -1 to 1 into turn speed
+	private static final double TURN_KP = 60;
+	private static final double TURN_KI = 10;
+	private static final double TURN_KD = 4;
+	private static final double TURN_DEADBAND = 0.08;
+	
+	// Width error over frame width into drive speed
+	private static final double DRIVE_KP = 250;
+	private static final double DRIVE_KI = 0;
+	private static final double DRIVE_KD = 0;
+	private static final double DRIVE_DEADBAND = 0.05;
+	
+	private final FaceTracker oTracker;
+	private final MotorOutput oOutput;
+	private final PidController oTurn;
+	private final PidController oDrive;
+	private final LatencyHistogram oLatency;
+	
+	// Configuration
+	private boolean enabled = true;
+	private int maxSpeed = DEFAULT_MAX_SPEED;
+	private double targetSize = DEFAULT_TARGET_SIZE;
+	private double acceleration = DEFAULT_ACCELERATION;
+	private int rotation;
+	
+	// Face followed, 0 for none
+	private int targetId;
+	
+	// Frame not handled by a step yet
+	private boolean measured;
+	private long frameTime;
+	private long previousFrameTime;
+	
+	// PID outputs and the speeds sent
+	private double turnOutput;
+	private double driveOutput;
+	private double turn;
+	private double drive;
+	private boolean stopped = true;
+	private int retries;
+	private long previousStep;
+	
+	// Statistics
+	private long steps;
+	private long commands;
+	private long failed;
+	private long overBudget;
+	private long targets;
+	
+	/**
+	 * Initialize FaceFollower
+	 * @param tracker  The tracker updated by the owner
+	 * @param output  Takes the track speeds
+	 */
+	public FaceFollower(FaceTracker tracker, MotorOutput output){
+		
+		oTracker = tracker;
+		oOutput = output;
+		oLatency = new LatencyHistogram("frame to set point");
+		
+		oTurn = new PidController(TURN_KP, TURN_KI, TURN_KD);
+		oTurn.setDeadband(TURN_DEADBAND);
+		
+		oDrive = new PidController(DRIVE_KP, DRIVE_KI, DRIVE_KD);
+		oDrive.setDeadband(DRIVE_DEADBAND);
+		
+		setMaxSpeed(DEFAULT_MAX_SPEED);
+	}
+	
+	/**
+	 * The PID of the turn speed, its error is the horizontal offset of the
+	 * face from -1 (left edge) to 1 (right edge)
+	 */
+	public PidController getTurnController(){
+		return oTurn;
+	}
+	
+	/**
+	 * The PID of the drive speed, its error is the target size minus the
+	 * face width, both over the frame width
+	 */
+	public PidController getDriveController(){
+		return oDrive;
+	}
+	
+	/**
+	 * @param speed  The largest track speed sent
+	 */
+	public void setMaxSpeed(int speed){
+		maxSpeed = speed;
+		oTurn.setOutputLimit(speed);
+		oTurn.setIntegralLimit(speed / 2);
+		oDrive.setOutputLimit(speed);
+		oDrive.setIntegralLimit(speed / 2);
+	}
+	
+	/**
+	 * @param size  The face width over the frame width to keep
+	 */
+	public void setTargetSize(double size){
+		targetSize = size;
+	}
+	
+	/**
+	 * @param speedPerSecond  How fast the turn and drive speeds may change
+	 */
+	public void setAcceleration(double speedPerSecond){
+		acceleration = speedPerSecond;
+	}
+	
+	/**
+	 * @param degrees  The clockwise rotation that turns the camera frames
+	 * 	upright, 0, 90, 180 or 270
+	 */
+	public void setRotation(int degrees){
+		rotation = ((degrees % 360) + 360) % 360 / 90 * 90;
+	}
+	
+	/**
+	 * Follow faces or slow down to a stop and stay there
+	 */
+	public void setEnabled(boolean enabled){
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Called after the tracker was updated with the faces of a frame
+	 * @param time  The System.nanoTime() the frame was taken
+	 */
+	public void onFrame(long time){
+		measured = true;
+		frameTime = time;
+	}
+	
+	/**
+	 * Called before step() runs again after a pause, so the speeds do not
+	 * jump by the acceleration of the whole pause
+	 */
+	public void resume(){
+		previousStep = 0;
+		measured = false;
+	}
+	
+	/**
+	 * Run the controller once, called every DEFAULT_INTERVAL
+	 * @param now  The current System.nanoTime()
+	 */
+	public void step(long now){
+		
+		double dt = (previousStep == 0) ? DEFAULT_INTERVAL / 1000.0 : (now - previousStep) / 1e9;
+		previousStep = now;
+		steps++;
+		
+		int slot = enabled ? select() : -1;
+		
+		if(slot < 0){
+			targetId = 0;
+		}else if(now - oTracker.getLastSeen(slot) > LOST_TIMEOUT){
+			slot = -1;
+		}
+		
+		if(slot < 0){
+			
+			turnOutput = 0;
+			driveOutput = 0;
+			previousFrameTime = 0;
+			oTurn.reset();
+			oDrive.reset();
+		
+		}else if(measured){
+			
+			double interval = (previousFrameTime == 0) ? 0 : (frameTime - previousFrameTime) / 1e9;
+			previousFrameTime = frameTime;
+			
+			turnOutput = oTurn.update(getOffset(slot) / HALF_FRAME, interval);
+			driveOutput = oDrive.update(targetSize - getWidth(slot) / (2 * HALF_FRAME), interval);
+		}
+		
+		double change = acceleration * dt;
+		turn = approach(turn, turnOutput, change);
+		drive = approach(drive, driveOutput, change);
+		
+		int left = clamp(drive + turn);
+		int right = clamp(drive - turn);
+		
+		boolean frame = measured;
+		measured = false;
+		
+		// One stop after the robot slowed down, then nothing
+		if((left == 0) && (right == 0)){
+			
+			if(stopped){
+				return;
+			}
+			
+			stopped = true;
+		}else{
+			stopped = false;
+		}
+		
+		commands++;
+		
+		if(!oOutput.drive(left, right)){
+			
+			// Send the stop again on the next step, a few times only
+			if(stopped && (retries < STOP_RETRIES)){
+				stopped = false;
+				retries++;
+			}
+			
+			failed++;
+			return;
+		}
+		
+		retries = 0;
+		
+		if(frame && (slot >= 0)){
+			
+			long latency = now - frameTime;
+			oLatency.record(latency);
+			
+			if(latency > LATENCY_BUDGET){
+				overBudget++;
+			}
+		}
+	}
+	
+	/**
+	 * Return the slot of the face to follow or -1 if there is none
+	 */
+	private int select(){
+		
+		int slot = (targetId != 0) ? oTracker.findTrack(targetId) : -1;
+		
+		if((slot < 0) || !oTracker.isConfirmed(slot)){
+			
+			slot = -1;
+			double largest = 0;
+			
+			for(int t=0; t<FaceTracker.MAX_TRACKS; t++){
+				
+				if(oTracker.isConfirmed(t) && (getWidth(t) > largest)){
+					largest = getWidth(t);
+					slot = t;
+				}
+			}
+			
+			if(slot < 0){
+				return -1;
+			}
+			
+			targetId = oTracker.getId(slot);
+			targets++;
+		}
+		
+		return slot;
+	}
+	
+	/**
+	 * Return the horizontal center of a track in the upright frame
+	 */
+	private double getOffset(int slot){
+		
+		switch(rotation){
+		case 90: return -oTracker.getCenterY(slot);
+		case 180: return -oTracker.getCenterX(slot);
+		case 270: return oTracker.getCenterY(slot);
+		default: return oTracker.getCenterX(slot);
+		}
+	}
+	
+	/**
+	 * Return the width of a track in the upright frame
+	 */
+	private double getWidth(int slot){
+		return ((rotation == 90) || (rotation == 270)) ? oTracker.getHeight(slot) : oTracker.getWidth(slot);
+	}
+	
+	private static double approach(double value, double target, double change){
+		return (target > value) ? Math.min(target, value + change) : Math.max(target, value - change);
+	}
+	
+	private int clamp(double speed){
+		return (int)Math.round(Math.max(-maxSpeed, Math.min(maxSpeed, speed)));
+	}
+	
+	/**
+	 * Return the id of the track followed or 0 if there is none
+	 */
+	public int getTargetId(){
+		return targetId;
+	}
+	
+	/**
+	 * Return the histogram of the time from a frame to its first set point
+	 */
+	public LatencyHistogram getLatency(){
+		return oLatency;
+	}
+	
+	/**
+	 * Return the amount of frames whose first set point was sent after LATENCY_BUDGET
+	 */
+	public long getOverBudgetCount(){
+		return overBudget;
+	}
+	
+	public long getCommandCount(){
+		return commands;
+	}
+	
+	/**
+	 * Return true if the robot was stopped, nothing is sent until a face is followed
+	 */
+	public boolean isStopped(){
+		return stopped;
+	}
+	
+	@Override
+	public String toString(){
+		
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%d steps, %d set points, %d failed, %d targets, %d over budget\n",
+				steps, commands, failed, targets, overBudget));
+		oLatency.appendTo(out);
+		
+		return out.toString();
+	}
+}
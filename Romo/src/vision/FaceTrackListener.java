@@ -0,0 +1,20 @@
+package vision;
+
+public interface FaceTrackListener {
+	
+	/**
+	 * Called from FaceTracker.update() when a new face was seen long enough
+	 * to be a person in front of the camera
+	 * @param tracker  The tracker, the track is found with findTrack(id)
+	 * @param id  The id of the new track, stable while the face is tracked
+	 */
+	public void onFaceEnter(FaceTracker tracker, int id);
+	
+	/**
+	 * Called from FaceTracker.update() or expire() when a confirmed face was
+	 * not seen for the leave timeout, the track is gone
+	 * @param tracker  The tracker
+	 * @param id  The id of the track
+	 */
+	public void onFaceLeave(FaceTracker tracker, int id);
+}
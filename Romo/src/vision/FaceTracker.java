@@ -0,0 +1,404 @@
+package vision;
+
+/**
+ * Follows faces over frames and gives each face a track with a stable id.
+ * The detections of a frame are matched to the tracks by the overlap (IoU)
+ * of their box with the box a track predicts, the best pair first. A matched
+ * track moves with an alpha-beta filter, so the smoothed box follows a
+ * moving face without the jitter of the detector. A detection without a
+ * track starts a tentative track.
+ * 
+ * A tentative track is confirmed after ENTER_HITS detections, which fires
+ * onFaceEnter(), and dropped when not seen for TENTATIVE_TIMEOUT, so a
+ * single false detection never enters. A confirmed track keeps its id while
+ * the detector misses the face for less than the leave timeout, and is
+ * matched with a lower overlap than a tentative one, then onFaceLeave()
+ * fires. Timeouts are checked on every update() and by expire() when no
+ * frames come.
+ * 
+ * All state lives in arrays of MAX_TRACKS tracks, an update costs the same
+ * for every frame and allocates nothing. It is used from one thread.
+ */
+public class FaceTracker {
+	
+	public static final int MAX_TRACKS = 16;
+	public static final int MAX_DETECTIONS = 16;					// per update, more are ignored
+	public static final long DEFAULT_LEAVE_TIMEOUT = 1000;			// ms
+	
+	private static final int ENTER_HITS = 3;
+	private static final long TENTATIVE_TIMEOUT = 300000000L;		// 300 ms
+	private static final double MATCH_IOU = 0.3;					// tentative tracks
+	private static final double KEEP_IOU = 0.15;					// confirmed tracks
+	private static final double POSITION_GAIN = 0.5;
+	private static final double VELOCITY_GAIN = 0.2;
+	private static final double SIZE_GAIN = 0.3;
+	private static final double MIN_INTERVAL = 0.005;				// s between detections to estimate a speed
+	
+	private FaceTrackListener oListener;
+	private volatile long leaveTimeout = DEFAULT_LEAVE_TIMEOUT * 1000000L;
+	
+	// Tracks by slot, centers and sizes in the coordinates of the detections
+	private final boolean[] active;
+	private final boolean[] confirmed;
+	private final int[] ids;
+	private final int[] hits;
+	private final long[] lastSeen;
+	private final double[] centerX;
+	private final double[] centerY;
+	private final double[] widths;
+	private final double[] heights;
+	private final double[] velocityX;								// per second
+	private final double[] velocityY;
+	private int nextId = 1;
+	
+	// Matching of one update
+	private final double[] overlaps;
+	private final boolean[] trackMatched;
+	private final boolean[] detectionMatched;
+	private final double[] predictedX;
+	private final double[] predictedY;
+	
+	// Statistics
+	private long updates;
+	private long enters;
+	private long leaves;
+	private long tentativeDrops;
+	
+	public FaceTracker(){
+		
+		active = new boolean[MAX_TRACKS];
+		confirmed = new boolean[MAX_TRACKS];
+		ids = new int[MAX_TRACKS];
+		hits = new int[MAX_TRACKS];
+		lastSeen = new long[MAX_TRACKS];
+		centerX = new double[MAX_TRACKS];
+		centerY = new double[MAX_TRACKS];
+		widths = new double[MAX_TRACKS];
+		heights = new double[MAX_TRACKS];
+		velocityX = new double[MAX_TRACKS];
+		velocityY = new double[MAX_TRACKS];
+		
+		overlaps = new double[MAX_TRACKS * MAX_DETECTIONS];
+		trackMatched = new boolean[MAX_TRACKS];
+		detectionMatched = new boolean[MAX_DETECTIONS];
+		predictedX = new double[MAX_TRACKS];
+		predictedY = new double[MAX_TRACKS];
+	}
+	
+	public void setListener(FaceTrackListener listener){
+		oListener = listener;
+	}
+	
+	/**
+	 * @param millis  How long a confirmed face may go unseen before it leaves
+	 */
+	public void setLeaveTimeout(long millis){
+		leaveTimeout = millis * 1000000L;
+	}
+	
+	/**
+	 * Take the detections of a frame, boxes with exclusive right and bottom
+	 * edges in any coordinates the same for every frame
+	 * @param count  The amount of detections
+	 * @param now  The System.nanoTime() of the frame
+	 */
+	public void update(int[] left, int[] top, int[] right, int[] bottom, int count, long now){
+		
+		count = Math.min(count, MAX_DETECTIONS);
+		updates++;
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			trackMatched[t] = false;
+			
+			if(active[t]){
+				
+				double dt = (now - lastSeen[t]) / 1e9;
+				predictedX[t] = centerX[t] + velocityX[t] * dt;
+				predictedY[t] = centerY[t] + velocityY[t] * dt;
+				
+				for(int d=0; d<count; d++){
+					overlaps[t * MAX_DETECTIONS + d] = overlap(t, left[d], top[d], right[d], bottom[d]);
+				}
+			}
+		}
+		
+		for(int d=0; d<count; d++){
+			detectionMatched[d] = false;
+		}
+		
+		// The best remaining pair until no pair overlaps enough
+		while(true){
+			
+			int bestTrack = -1;
+			int bestDetection = -1;
+			double best = 0;
+			
+			for(int t=0; t<MAX_TRACKS; t++){
+				
+				if(!active[t] || trackMatched[t]){
+					continue;
+				}
+				
+				double threshold = confirmed[t] ? KEEP_IOU : MATCH_IOU;
+				
+				for(int d=0; d<count; d++){
+					
+					double iou = overlaps[t * MAX_DETECTIONS + d];
+					
+					if(!detectionMatched[d] && (iou >= threshold) && (iou > best)){
+						best = iou;
+						bestTrack = t;
+						bestDetection = d;
+					}
+				}
+			}
+			
+			if(bestTrack < 0){
+				break;
+			}
+			
+			trackMatched[bestTrack] = true;
+			detectionMatched[bestDetection] = true;
+			
+			correct(bestTrack, left[bestDetection], top[bestDetection], right[bestDetection], bottom[bestDetection], now);
+		}
+		
+		// New faces
+		for(int d=0; d<count; d++){
+			
+			if(!detectionMatched[d]){
+				start(left[d], top[d], right[d], bottom[d], now);
+			}
+		}
+		
+		expire(now);
+	}
+	
+	/**
+	 * Overlap of the predicted box of a track with a detection, intersection over union
+	 */
+	private double overlap(int t, int left, int top, int right, int bottom){
+		
+		double halfWidth = widths[t] / 2;
+		double halfHeight = heights[t] / 2;
+		
+		double w = Math.min(right, predictedX[t] + halfWidth) - Math.max(left, predictedX[t] - halfWidth);
+		double h = Math.min(bottom, predictedY[t] + halfHeight) - Math.max(top, predictedY[t] - halfHeight);
+		
+		if((w <= 0) || (h <= 0)){
+			return 0;
+		}
+		
+		double intersection = w * h;
+		double union = widths[t] * heights[t] + (double)(right - left) * (bottom - top) - intersection;
+		
+		return intersection / union;
+	}
+	
+	/**
+	 * Move a track to a matched detection
+	 */
+	private void correct(int t, int left, int top, int right, int bottom, long now){
+		
+		double dt = (now - lastSeen[t]) / 1e9;
+		double errorX = (left + right) / 2.0 - predictedX[t];
+		double errorY = (top + bottom) / 2.0 - predictedY[t];
+		
+		centerX[t] = predictedX[t] + POSITION_GAIN * errorX;
+		centerY[t] = predictedY[t] + POSITION_GAIN * errorY;
+		
+		if(dt >= MIN_INTERVAL){
+			velocityX[t] += VELOCITY_GAIN * errorX / dt;
+			velocityY[t] += VELOCITY_GAIN * errorY / dt;
+		}
+		
+		widths[t] += SIZE_GAIN * ((right - left) - widths[t]);
+		heights[t] += SIZE_GAIN * ((bottom - top) - heights[t]);
+		
+		lastSeen[t] = now;
+		hits[t]++;
+		
+		if(!confirmed[t] && (hits[t] >= ENTER_HITS)){
+			
+			confirmed[t] = true;
+			enters++;
+			
+			if(oListener != null){
+				oListener.onFaceEnter(this, ids[t]);
+			}
+		}
+	}
+	
+	/**
+	 * Start a tentative track in a free slot, none when all are taken
+	 */
+	private void start(int left, int top, int right, int bottom, long now){
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			if(!active[t]){
+				
+				active[t] = true;
+				confirmed[t] = false;
+				ids[t] = nextId++;
+				hits[t] = 1;
+				lastSeen[t] = now;
+				centerX[t] = (left + right) / 2.0;
+				centerY[t] = (top + bottom) / 2.0;
+				widths[t] = right - left;
+				heights[t] = bottom - top;
+				velocityX[t] = 0;
+				velocityY[t] = 0;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * End the tracks that were not seen for their timeout, also called
+	 * without frames so a face that is gone leaves in time
+	 * @param now  The current System.nanoTime()
+	 */
+	public void expire(long now){
+		
+		long timeout = leaveTimeout;
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			if(!active[t] || (now - lastSeen[t] <= (confirmed[t] ? timeout : TENTATIVE_TIMEOUT))){
+				continue;
+			}
+			
+			active[t] = false;
+			
+			if(!confirmed[t]){
+				tentativeDrops++;
+				continue;
+			}
+			
+			leaves++;
+			
+			if(oListener != null){
+				oListener.onFaceLeave(this, ids[t]);
+			}
+		}
+	}
+	
+	/**
+	 * Count every track as seen now, after a pause in which no frames were
+	 * processed, so the faces still there keep their tracks
+	 * @param now  The current System.nanoTime()
+	 */
+	public void refresh(long now){
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			if(active[t]){
+				lastSeen[t] = now;
+				velocityX[t] = 0;
+				velocityY[t] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Return the slot of a track or -1 if it is gone
+	 */
+	public int findTrack(int id){
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			if(active[t] && (ids[t] == id)){
+				return t;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Return the amount of confirmed tracks
+	 */
+	public int getFaceCount(){
+		
+		int count = 0;
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			if(active[t] && confirmed[t]){
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Return the amount of tracks, tentative ones included
+	 */
+	public int getTrackCount(){
+		
+		int count = 0;
+		
+		for(int t=0; t<MAX_TRACKS; t++){
+			
+			if(active[t]){
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Return true if a slot holds a confirmed track
+	 */
+	public boolean isConfirmed(int slot){
+		return active[slot] && confirmed[slot];
+	}
+	
+	public int getId(int slot){
+		return ids[slot];
+	}
+	
+	/**
+	 * Return the smoothed horizontal center of a track
+	 */
+	public double getCenterX(int slot){
+		return centerX[slot];
+	}
+	
+	public double getCenterY(int slot){
+		return centerY[slot];
+	}
+	
+	public double getWidth(int slot){
+		return widths[slot];
+	}
+	
+	public double getHeight(int slot){
+		return heights[slot];
+	}
+	
+	/**
+	 * Return the System.nanoTime() of the last detection matched to a track
+	 */
+	public long getLastSeen(int slot){
+		return lastSeen[slot];
+	}
+	
+	public long getEnterCount(){
+		return enters;
+	}
+	
+	public long getLeaveCount(){
+		return leaves;
+	}
+	
+	@Override
+	public String toString(){
+		return String.format("%d updates, %d faces, %d tracks, %d entered, %d left, %d tentative tracks dropped",
+				updates, getFaceCount(), getTrackCount(), enters, leaves, tentativeDrops);
+	}
+}
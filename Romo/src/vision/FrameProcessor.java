@@ -0,0 +1,11 @@
+package vision;
+
+public interface FrameProcessor {
+	
+	/**
+	 * Called on the worker thread of a PreviewPipeline for every frame it
+	 * takes. The buffer goes back to the camera when this returns.
+	 * @param frame  The frame, only valid during this call
+	 */
+	public void onFrame(PreviewFrame frame);
+}
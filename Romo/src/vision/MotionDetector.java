@@ -0,0 +1,138 @@
+package vision;
+
+/**
+ * Cheap motion detection by frame difference. The luma of a frame is cut in
+ * a grid of COLUMNS by ROWS cells and the average of every cell, taken from
+ * at most SAMPLES by SAMPLES pixels, is compared with the previous frame.
+ * The average change over all cells is taken off first, so the camera
+ * adjusting its exposure is no motion. A frame has motion when enough cells
+ * changed more than the threshold. The work per frame is the same for every
+ * preview size and nothing is allocated.
+ */
+public class MotionDetector {
+	
+	public static final int COLUMNS = 40;
+	public static final int ROWS = 30;
+	public static final int DEFAULT_THRESHOLD = 12;					// luma levels of a cell average
+	public static final double DEFAULT_MIN_CHANGE = 0.02;			// cells changed over all cells
+	
+	private static final int CELLS = COLUMNS * ROWS;
+	private static final int SAMPLES = 4;							// per cell side
+	
+	private volatile int threshold = DEFAULT_THRESHOLD;
+	private volatile int minCells = (int)Math.ceil(DEFAULT_MIN_CHANGE * CELLS);
+	
+	// Cell averages of this and the previous frame
+	private int[] current;
+	private int[] previous;
+	private int width;
+	private int height;
+	private boolean primed;
+	
+	// Result of the last frame
+	private int changed;
+	
+	public MotionDetector(){
+		current = new int[CELLS];
+		previous = new int[CELLS];
+	}
+	
+	/**
+	 * @param levels  The change of a cell average that counts as motion
+	 */
+	public void setThreshold(int levels){
+		threshold = levels;
+	}
+	
+	/**
+	 * @param fraction  The part of the cells that must change for motion
+	 */
+	public void setMinChange(double fraction){
+		minCells = Math.max(1, (int)Math.ceil(fraction * CELLS));
+	}
+	
+	/**
+	 * Compare a frame with the previous one, the first frame of a size has no motion
+	 * @param nv21  The frame, only the luma plane is read
+	 * @return True if the frame has motion
+	 */
+	public boolean detect(byte[] nv21, int width, int height){
+		
+		if((width != this.width) || (height != this.height)){
+			this.width = width;
+			this.height = height;
+			primed = false;
+		}
+		
+		int cellWidth = width / COLUMNS;
+		int cellHeight = height / ROWS;
+		int stepX = Math.max(1, cellWidth / SAMPLES);
+		int stepY = Math.max(1, cellHeight / SAMPLES);
+		
+		long total = 0;
+		
+		for(int row=0; row<ROWS; row++){
+			
+			int top = row * cellHeight;
+			
+			for(int column=0; column<COLUMNS; column++){
+				
+				int left = column * cellWidth;
+				int sum = 0;
+				int count = 0;
+				
+				for(int y=top; y<top + cellHeight; y+=stepY){
+					
+					int line = y * width;
+					
+					for(int x=left; x<left + cellWidth; x+=stepX){
+						sum += nv21[line + x] & 0xff;
+						count++;
+					}
+				}
+				
+				int cell = row * COLUMNS + column;
+				current[cell] = (count == 0) ? 0 : sum / count;
+				total += current[cell] - previous[cell];
+			}
+		}
+		
+		// Keep this frame as the reference of the next one
+		int[] swap = previous;
+		previous = current;
+		current = swap;
+		
+		if(!primed){
+			primed = true;
+			changed = 0;
+			return false;
+		}
+		
+		int offset = (int)(total / CELLS);
+		int levels = threshold;
+		changed = 0;
+		
+		for(int cell=0; cell<CELLS; cell++){
+			
+			if(Math.abs(previous[cell] - current[cell] - offset) > levels){
+				changed++;
+			}
+		}
+		
+		return changed >= minCells;
+	}
+	
+	/**
+	 * Return the amount of cells that changed in the last frame
+	 */
+	public int getChangedCount(){
+		return changed;
+	}
+	
+	/**
+	 * Forget the previous frame, the next frame has no motion
+	 */
+	public void reset(){
+		primed = false;
+	}
+}
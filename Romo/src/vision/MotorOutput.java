@@ -0,0 +1,11 @@
+package vision;
+
+public interface MotorOutput {
+	
+	/**
+	 * Called by a controller with the track speeds it wants, the robot takes
+	 * them with BluetoothService.drive()
+	 * @return False if the set point could not be sent
+	 */
+	public boolean drive(int left, int right);
+}
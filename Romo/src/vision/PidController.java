@@ -0,0 +1,101 @@
+package vision;
+
+/**
+ * PID controller with a deadband and limits on the integral and the output.
+ * Errors inside the deadband count as 0, outside it the deadband is taken
+ * off, so the output does not jump at its edge. The integral stops growing
+ * at its limit (anti-windup) and the derivative is taken of the error change
+ * since the previous update, so the first update after reset() has none.
+ */
+public class PidController {
+	
+	private double kp;
+	private double ki;
+	private double kd;
+	private double deadband;
+	private double integralLimit = Double.MAX_VALUE;
+	private double outputLimit = Double.MAX_VALUE;
+	
+	private double integral;
+	private double previousError;
+	private boolean started;
+	
+	/**
+	 * Initialize PidController
+	 * @param kp  The proportional gain
+	 * @param ki  The integral gain, per second
+	 * @param kd  The derivative gain, in seconds
+	 */
+	public PidController(double kp, double ki, double kd){
+		setGains(kp, ki, kd);
+	}
+	
+	public void setGains(double kp, double ki, double kd){
+		this.kp = kp;
+		this.ki = ki;
+		this.kd = kd;
+	}
+	
+	/**
+	 * @param deadband  The largest error that is ignored
+	 */
+	public void setDeadband(double deadband){
+		this.deadband = deadband;
+	}
+	
+	/**
+	 * @param limit  The largest contribution of the integral term to the output
+	 */
+	public void setIntegralLimit(double limit){
+		integralLimit = limit;
+	}
+	
+	/**
+	 * @param limit  The largest output, in both directions
+	 */
+	public void setOutputLimit(double limit){
+		outputLimit = limit;
+	}
+	
+	/**
+	 * Take a new error and return the output
+	 * @param error  The set point minus the measurement
+	 * @param dt  The seconds since the previous update
+	 */
+	public double update(double error, double dt){
+		
+		if(Math.abs(error) <= deadband){
+			error = 0;
+		}else{
+			error -= Math.signum(error) * deadband;
+		}
+		
+		double derivative = 0;
+		
+		if(started && (dt > 0)){
+			
+			derivative = (error - previousError) / dt;
+			
+			if(ki != 0){
+				double limit = integralLimit / Math.abs(ki);
+				integral = Math.max(-limit, Math.min(limit, integral + error * dt));
+			}
+		}
+		
+		previousError = error;
+		started = true;
+		
+		double output = kp * error + ki * integral + kd * derivative;
+		
+		return Math.max(-outputLimit, Math.min(outputLimit, output));
+	}
+	
+	/**
+	 * Forget the integral and the previous error
+	 */
+	public void reset(){
+		integral = 0;
+		previousError = 0;
+		started = false;
+	}
+}
@@ -0,0 +1,62 @@
+package vision;
+
+/**
+ * One preview buffer of a PreviewPipeline with the frame it holds. The data
+ * is NV21: width * height luma bytes followed by the interleaved chroma at
+ * half resolution.
+ */
+public final class PreviewFrame {
+	
+	private final byte[] data;
+	private final int width;
+	private final int height;
+	private long sequence;
+	private long timestamp;
+	
+	PreviewFrame(int width, int height){
+		this.width = width;
+		this.height = height;
+		data = new byte[size(width, height)];
+	}
+	
+	/**
+	 * Return the size in bytes of an NV21 frame
+	 */
+	public static int size(int width, int height){
+		return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+	}
+	
+	/**
+	 * Return the backing array, the luma plane comes first
+	 */
+	public byte[] getData(){
+		return data;
+	}
+	
+	public int getWidth(){
+		return width;
+	}
+	
+	public int getHeight(){
+		return height;
+	}
+	
+	/**
+	 * Return the number of the frame, counting the dropped frames too
+	 */
+	public long getSequence(){
+		return sequence;
+	}
+	
+	/**
+	 * Return the System.nanoTime() at which the camera delivered the frame
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+	
+	void fill(long sequence, long timestamp){
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+	}
+}
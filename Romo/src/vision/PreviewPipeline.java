@@ -0,0 +1,286 @@
+package vision;
+
+/**
+ * Moves camera preview frames off the thread the camera delivers them on.
+ * The camera fills a fixed set of buffers (Camera.setPreviewCallbackWithBuffer()),
+ * submit() hands a filled buffer to the worker thread and returns at once.
+ * At most one frame waits for the worker: while it is busy a newer frame
+ * replaces the waiting one, whose buffer goes straight back to the camera,
+ * so frames are dropped rather than queued and the worker always takes the
+ * newest. Buffers are allocated by start() and recycled for as long as the
+ * preview size stays the same, nothing is allocated per frame.
+ * 
+ * The pipeline does not depend on android, it runs on a JVM with frames
+ * from simulator.SyntheticCamera.
+ */
+public class PreviewPipeline {
+	
+	// One being processed, one waiting and at least one the camera fills
+	public static final int DEFAULT_BUFFERS = 3;
+	
+	private final FrameProcessor oProcessor;
+	private final BufferRecycler oRecycler;
+	private final PreviewStats oStats;
+	private final int bufferCount;
+	
+	// Guarded by this
+	private PreviewFrame[] frames;
+	private PreviewFrame pending;
+	private Worker oWorker;
+	private long sequence;
+	
+	// Statistics, guarded by this
+	private long submitted;
+	private long processed;
+	private long dropped;
+	private long foreign;
+	
+	/**
+	 * Initialize PreviewPipeline
+	 * @param processor  The FrameProcessor called on the worker thread
+	 * @param recycler  Gives the buffers back to the camera
+	 * @param stats  The PreviewStats the stages are recorded in, shared with the processor
+	 * @param buffers  The amount of preview buffers, at least 3
+	 */
+	public PreviewPipeline(FrameProcessor processor, BufferRecycler recycler, PreviewStats stats, int buffers){
+		
+		if(buffers < DEFAULT_BUFFERS){
+			throw new IllegalArgumentException("buffers " + buffers);
+		}
+		
+		oProcessor = processor;
+		oRecycler = recycler;
+		oStats = stats;
+		bufferCount = buffers;
+		frames = new PreviewFrame[0];
+	}
+	
+	public PreviewPipeline(FrameProcessor processor, BufferRecycler recycler, PreviewStats stats){
+		this(processor, recycler, stats, DEFAULT_BUFFERS);
+	}
+	
+	public PreviewPipeline(FrameProcessor processor, BufferRecycler recycler){
+		this(processor, recycler, new PreviewStats(), DEFAULT_BUFFERS);
+	}
+	
+	/**
+	 * Start the worker and give every buffer to the camera, called after the
+	 * preview callback is set and before the preview starts
+	 * @param width  The preview width in pixels
+	 * @param height  The preview height in pixels
+	 */
+	public void start(int width, int height){
+		
+		stop();
+		
+		PreviewFrame[] buffers;
+		
+		synchronized(this){
+			
+			// Keep the buffers of the same preview size
+			if((frames.length == 0) || (frames[0].getWidth() != width) || (frames[0].getHeight() != height)){
+				
+				frames = new PreviewFrame[bufferCount];
+				
+				for(int i=0; i<bufferCount; i++){
+					frames[i] = new PreviewFrame(width, height);
+				}
+			}
+			
+			pending = null;
+			buffers = frames;
+			
+			oWorker = new Worker();
+			oWorker.start();
+		}
+		
+		for(int i=0; i<buffers.length; i++){
+			oRecycler.recycle(buffers[i].getData());
+		}
+	}
+	
+	/**
+	 * Stop the worker and wait until it finished the frame it holds, the
+	 * buffers are not recycled, the camera forgets them when stopped
+	 */
+	public void stop(){
+		
+		Worker worker;
+		
+		synchronized(this){
+			
+			worker = oWorker;
+			oWorker = null;
+			pending = null;
+			notifyAll();
+		}
+		
+		if((worker == null) || (worker == Thread.currentThread())){
+			return;
+		}
+		
+		boolean interrupted = false;
+		
+		while(worker.isAlive()){
+			
+			try{
+				worker.join();
+			}catch(InterruptedException e){
+				interrupted = true;
+			}
+		}
+		
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Hand a filled buffer to the worker, called from the preview callback.
+	 * Never blocks: a frame still waiting for the worker is dropped.
+	 * @param data  A buffer that was given to the camera
+	 * @return False if the buffer is not one of the current buffers, it is not recycled
+	 */
+	public boolean submit(byte[] data){
+		
+		long now = System.nanoTime();
+		byte[] drop = null;
+		
+		synchronized(this){
+			
+			PreviewFrame frame = find(data);
+			
+			// A buffer of an earlier preview size or a stopped pipeline
+			if((frame == null) || (oWorker == null)){
+				foreign++;
+				return false;
+			}
+			
+			frame.fill(sequence++, now);
+			submitted++;
+			
+			if(pending != null){
+				drop = pending.getData();
+				dropped++;
+			}
+			
+			pending = frame;
+			notifyAll();
+		}
+		
+		if(drop != null){
+			oRecycler.recycle(drop);
+		}
+		
+		return true;
+	}
+	
+	private PreviewFrame find(byte[] data){
+		
+		for(int i=0; i<frames.length; i++){
+			
+			if(frames[i].getData() == data){
+				return frames[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Return the histograms of the stages
+	 */
+	public PreviewStats getStats(){
+		return oStats;
+	}
+	
+	public synchronized long getSubmittedCount(){
+		return submitted;
+	}
+	
+	public synchronized long getProcessedCount(){
+		return processed;
+	}
+	
+	/**
+	 * Return the amount of frames replaced by a newer one before the worker took them
+	 */
+	public synchronized long getDroppedCount(){
+		return dropped;
+	}
+	
+	/**
+	 * Return the amount of submitted buffers that were not current buffers
+	 */
+	public synchronized long getForeignCount(){
+		return foreign;
+	}
+	
+	@Override
+	public synchronized String toString(){
+		return String.format("%d frames submitted, %d processed, %d dropped, %d foreign buffers",
+				submitted, processed, dropped, foreign);
+	}
+	
+	/**
+	 * Takes the waiting frame, processes it and recycles its buffer
+	 */
+	private class Worker extends Thread {
+		
+		Worker(){
+			super("PreviewWorker");
+		}
+		
+		@Override
+		public void run() {
+			
+			while(true){
+				
+				PreviewFrame frame;
+				
+				synchronized(PreviewPipeline.this){
+					
+					while((oWorker == this) && (pending == null)){
+						
+						try{
+							PreviewPipeline.this.wait();
+						}catch(InterruptedException e){
+							// stop() ends the worker
+						}
+					}
+					
+					if(oWorker != this){
+						return;
+					}
+					
+					frame = pending;
+					pending = null;
+				}
+				
+				long start = System.nanoTime();
+				oStats.record(PreviewStats.STAGE_WAIT, start - frame.getTimestamp());
+				
+				try{
+					oProcessor.onFrame(frame);
+				}finally{
+					
+					long end = System.nanoTime();
+					oStats.record(PreviewStats.STAGE_PROCESS, end - start);
+					oStats.record(PreviewStats.STAGE_TOTAL, end - frame.getTimestamp());
+					
+					boolean current;
+					
+					synchronized(PreviewPipeline.this){
+						processed++;
+						current = oWorker == this;
+					}
+					
+					// A restarted pipeline gave every buffer to the camera again
+					if(current){
+						oRecycler.recycle(frame.getData());
+					}
+				}
+			}
+		}
+	}
+}
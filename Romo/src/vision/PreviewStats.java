@@ -0,0 +1,68 @@
+package vision;
+
+import romo.LatencyHistogram;
+
+/**
+ * One LatencyHistogram per stage of the preview pipeline. A frame waits for
+ * the worker, is processed and its buffer goes back to the camera. The
+ * FrameProcessor records the steps of its processing.
+ */
+public final class PreviewStats {
+	
+	// Stages
+	public static final int STAGE_WAIT = 0;						// delivered by the camera until the worker takes it
+	public static final int STAGE_PROCESS = 1;						// FrameProcessor.onFrame()
+	public static final int STAGE_TOTAL = 2;						// delivered until the buffer is recycled
+	public static final int STAGE_DETECT = 3;						// FaceDetector.detect() of one frame
+	public static final int STAGE_COUNT = 4;
+	
+	private static final String[] NAMES = {"wait", "process", "total", "detect"};
+	
+	private final LatencyHistogram[] histograms;
+	
+	public PreviewStats(){
+		
+		histograms = new LatencyHistogram[STAGE_COUNT];
+		
+		for(int i=0; i<STAGE_COUNT; i++){
+			histograms[i] = new LatencyHistogram(NAMES[i]);
+		}
+	}
+	
+	/**
+	 * @param stage  One of the STAGE_ constants
+	 */
+	public LatencyHistogram get(int stage){
+		return histograms[stage];
+	}
+	
+	/**
+	 * Record a duration of a stage in nanoseconds
+	 */
+	public void record(int stage, long nanos){
+		histograms[stage].record(nanos);
+	}
+	
+	public void reset(){
+		
+		for(int i=0; i<STAGE_COUNT; i++){
+			histograms[i].reset();
+		}
+	}
+	
+	/**
+	 * Return one line per stage with its percentiles
+	 */
+	@Override
+	public String toString(){
+		
+		StringBuilder out = new StringBuilder();
+		
+		for(int i=0; i<STAGE_COUNT; i++){
+			histograms[i].appendTo(out);
+			out.append('\n');
+		}
+		
+		return out.toString();
+	}
+}
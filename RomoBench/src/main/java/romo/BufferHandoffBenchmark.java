@@ -0,0 +1,139 @@
+package romo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Hand-off of received buffers from the reader thread to the UI thread: the
+ * BufferPool cycle, the LinkEventRing and the FrameBatcher
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class BufferHandoffBenchmark {
+	
+	private BufferPool pool;
+	private LinkEventRing ring;
+	private FrameBatcher batcher;
+	private LinkEventListener consumer;
+	private FrameBatchListener batchConsumer;
+	private byte[] telemetry;
+	private int telemetryOffset;
+	private int telemetryLength;
+	private Blackhole blackhole;
+	
+	@Setup
+	public void setup(Blackhole blackhole){
+		
+		this.blackhole = blackhole;
+		
+		// More buffers than ring slots, a full ring is reported before the pool blocks
+		pool = new BufferPool(2 * LinkEventRing.DEFAULT_SIZE, 64);
+		ring = new LinkEventRing();
+		batcher = new FrameBatcher();
+		batcher.setMode(FrameBatcher.MODE_LATEST);
+		
+		consumer = new LinkEventListener() {
+			
+			@Override
+			public void onEvent(LinkEvent event, boolean endOfBatch) {
+				BufferHandoffBenchmark.this.blackhole.consume(event.getBuffer().getLength());
+			}
+		};
+		
+		batchConsumer = new FrameBatchListener() {
+			
+			@Override
+			public void onFrameBatch(FrameBatch batch) {
+				BufferHandoffBenchmark.this.blackhole.consume(batch.nextChanged(0));
+			}
+		};
+		
+		int[] channels = {0, 1, 2, 3};
+		int[] values = {10, -20, 30, -40};
+		
+		telemetry = new byte[FrameCodec.MAX_FRAME];
+		telemetryLength = FrameCodec.encodeTelemetry(telemetry, 0, channels, values, channels.length) - FrameCodec.OVERHEAD;
+		telemetryOffset = FrameCodec.HEADER_SIZE;
+	}
+	
+	/**
+	 * Acquire, fill and release one buffer on one thread
+	 */
+	@Benchmark
+	@Group("pool")
+	public int poolCycle() throws InterruptedException {
+		
+		ReceiveBuffer buffer = pool.acquire();
+		buffer.fill(64, System.nanoTime());
+		
+		int length = buffer.getLength();
+		buffer.release();
+		
+		return length;
+	}
+	
+	/**
+	 * Reader side of the ring: acquire a buffer and publish it
+	 * @return False if the ring was full, never waits so the iteration can end
+	 */
+	@Benchmark
+	@Group("ring")
+	@GroupThreads(1)
+	public boolean ringPublish() throws InterruptedException {
+		
+		LinkEvent event = ring.claim(false);
+		
+		if(event == null){
+			return false;
+		}
+		
+		ReceiveBuffer buffer = pool.acquire();
+		buffer.fill(64, System.nanoTime());
+		
+		event.setData(0, buffer);
+		ring.publish(event);
+		
+		return true;
+	}
+	
+	/**
+	 * UI side of the ring: drain a batch and release the buffers
+	 */
+	@Benchmark
+	@Group("ring")
+	@GroupThreads(1)
+	public int ringDrain(){
+		return ring.drain(consumer, 512);
+	}
+	
+	/**
+	 * Fold one telemetry frame into the FrameBatcher and deliver it
+	 */
+	@Benchmark
+	@Group("batcher")
+	public boolean batcherCycle(){
+		
+		long now = System.nanoTime();
+		
+		batcher.add(FrameCodec.TYPE_TELEMETRY, telemetry, telemetryOffset, telemetryLength, now);
+		
+		return batcher.deliver(batchConsumer, now);
+	}
+}
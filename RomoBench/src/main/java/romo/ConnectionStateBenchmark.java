@@ -0,0 +1,76 @@
+package romo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * State transitions of the BluetoothService, uncontended and with stale
+ * callbacks racing a stop()
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionStateBenchmark {
+	
+	private static final int STATE_NONE = 0;
+	private static final int STATE_CONNECTING = 1;
+	private static final int STATE_CONNECTED = 2;
+	private static final int STATE_RECONNECTING = 3;
+	
+	private ConnectionState state;
+	
+	@Setup
+	public void setup(){
+		state = new ConnectionState(STATE_NONE);
+	}
+	
+	/**
+	 * One connect cycle: new generation, connecting, connected, lost, stopped
+	 */
+	@Benchmark
+	public boolean connectCycle(){
+		
+		state.advance(STATE_NONE);
+		
+		int generation = state.getGeneration();
+		
+		return state.transition(generation, STATE_NONE, STATE_CONNECTING)
+				& state.transition(generation, STATE_CONNECTING, STATE_CONNECTED)
+				& state.transition(generation, STATE_CONNECTED, STATE_RECONNECTING)
+				& state.transition(generation, STATE_RECONNECTING, STATE_NONE);
+	}
+	
+	/**
+	 * A callback of an older generation, rejected by the compare
+	 */
+	@Benchmark
+	public boolean staleCallback(){
+		return state.transition(state.getGeneration() - 1, STATE_CONNECTED, STATE_NONE);
+	}
+	
+	/**
+	 * Four threads starting generations and checking them, as callbacks racing stop()
+	 */
+	@Benchmark
+	@Threads(4)
+	public boolean contended(){
+		
+		long previous = state.advance(STATE_CONNECTING);
+		
+		return state.is(ConnectionState.generation(previous) + 1, STATE_CONNECTING);
+	}
+}
@@ -0,0 +1,110 @@
+package romo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding, CRC and incremental decoding of frames, the per byte work of the link
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+	
+	// Telemetry frames in the decoded stream
+	private static final int STREAM_FRAMES = 64;
+	
+	// Samples per telemetry frame
+	private static final int SAMPLES = 16;
+	
+	// Size of the reads the stream is fed in
+	@Param({"16", "256", "1024"})
+	public int chunk;
+	
+	private byte[] out;
+	private byte[] payload;
+	private int[] channels;
+	private int[] values;
+	private byte[] stream;
+	private FrameDecoder decoder;
+	private Blackhole blackhole;
+	
+	@Setup
+	public void setup(Blackhole blackhole){
+		
+		this.blackhole = blackhole;
+		
+		out = new byte[FrameCodec.MAX_FRAME];
+		payload = new byte[FrameCodec.MAX_PAYLOAD];
+		
+		for(int i=0; i<payload.length; i++){
+			payload[i] = (byte)(i * 31);
+		}
+		
+		channels = new int[SAMPLES];
+		values = new int[SAMPLES];
+		
+		for(int i=0; i<SAMPLES; i++){
+			channels[i] = i;
+			values[i] = i * 1000 - 8000;
+		}
+		
+		int frameLength = FrameCodec.OVERHEAD + SAMPLES * FrameCodec.TELEMETRY_SAMPLE_SIZE;
+		stream = new byte[STREAM_FRAMES * frameLength];
+		
+		for(int i=0; i<STREAM_FRAMES; i++){
+			FrameCodec.encodeTelemetry(stream, i * frameLength, channels, values, SAMPLES);
+		}
+		
+		decoder = new FrameDecoder(new FrameListener() {
+			
+			@Override
+			public void onFrame(int type, byte[] payload, int offset, int length) {
+				FramingBenchmark.this.blackhole.consume(length);
+			}
+		});
+	}
+	
+	@Benchmark
+	public int crc16MaxPayload(){
+		return FrameCodec.crc16(payload, 0, payload.length);
+	}
+	
+	@Benchmark
+	public int encodeDrive(){
+		return FrameCodec.encodeDrive(out, 0, 1200, -1200);
+	}
+	
+	@Benchmark
+	public int encodeTelemetry(){
+		return FrameCodec.encodeTelemetry(out, 0, channels, values, SAMPLES);
+	}
+	
+	/**
+	 * Decode STREAM_FRAMES telemetry frames fed in reads of chunk bytes
+	 */
+	@Benchmark
+	public long decodeStream(){
+		
+		for(int offset=0; offset<stream.length; offset+=chunk){
+			decoder.feed(stream, offset, Math.min(chunk, stream.length - offset));
+		}
+		
+		return decoder.getFrameCount();
+	}
+}
@@ -0,0 +1,84 @@
+package romo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Command path from a UI call to the batch the WriterThread writes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputQueueBenchmark {
+	
+	// Frames queued per drained batch
+	private static final int FRAMES = 16;
+	
+	private OutputQueue queue;
+	private LatencyStats stats;
+	private byte[] frame;
+	private int frameLength;
+	private byte[] batch;
+	
+	@Setup
+	public void setup(){
+		
+		stats = new LatencyStats();
+		
+		queue = new OutputQueue();
+		queue.setBatchWindow(0);
+		queue.setLatencyStats(stats);
+		
+		frame = new byte[FrameCodec.MAX_FRAME];
+		frameLength = FrameCodec.encodeDrive(frame, 0, 500, 500);
+		batch = new byte[1024];
+	}
+	
+	/**
+	 * Queue FRAMES discrete frames and drain them as one batch
+	 */
+	@Benchmark
+	public int offerAndDrain() throws InterruptedException {
+		
+		for(int i=0; i<FRAMES; i++){
+			queue.offer(frame, 0, frameLength);
+		}
+		
+		int length = queue.drain(batch);
+		queue.recordWrite(length, 1000);
+		
+		return length;
+	}
+	
+	/**
+	 * Coalesce FRAMES drive set points into one and drain it
+	 */
+	@Benchmark
+	public int setpointAndDrain() throws InterruptedException {
+		
+		for(int i=0; i<FRAMES; i++){
+			FrameCodec.encodeDrive(frame, 0, i, -i);
+			queue.offerSetpoint(0, frame, 0, frameLength);
+		}
+		
+		return queue.drain(batch);
+	}
+	
+	@Benchmark
+	public void recordLatency(){
+		stats.record(LatencyStats.STAGE_ENQUEUE, 12345);
+	}
+}
@@ -0,0 +1,163 @@
+package romo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw against delta telemetry: the time to encode and decode a recorded
+ * stream of slowly changing sensor values, and the bytes per frame on the
+ * link reported as the bytesPerFrame counter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TelemetryEncodingBenchmark {
+	
+	// Telemetry frames in the recorded stream
+	private static final int STREAM_FRAMES = 256;
+	
+	// Largest change of a sensor value from one frame to the next
+	private static final int STEP = 40;
+	
+	@Param({"4", "16", "32"})
+	public int channels;
+	
+	@Param({"raw", "delta"})
+	public String encoding;
+	
+	private int[] channelIds;
+	private int[][] samples;
+	private byte[] out;
+	private byte[] stream;
+	private int[] offsets;
+	private int[] decodedChannels;
+	private int[] decodedValues;
+	private TelemetryEncoder encoder;
+	private TelemetryDecoder decoder;
+	private boolean delta;
+	private int streamLength;
+	
+	/**
+	 * The size of the recorded stream, constant for a trial
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Size {
+		
+		public double bytesPerFrame;
+	}
+	
+	@Setup(Level.Trial)
+	public void setup(){
+		
+		delta = "delta".equals(encoding);
+		
+		Random random = new Random(20);
+		
+		channelIds = new int[channels];
+		samples = new int[STREAM_FRAMES][channels];
+		
+		// A random walk per channel around its own level
+		for(int c=0; c<channels; c++){
+			
+			channelIds[c] = c;
+			int value = random.nextInt(4000) - 2000;
+			
+			for(int f=0; f<STREAM_FRAMES; f++){
+				value += random.nextInt(2 * STEP + 1) - STEP;
+				samples[f][c] = value;
+			}
+		}
+		
+		out = new byte[FrameCodec.MAX_FRAME];
+		stream = new byte[STREAM_FRAMES * FrameCodec.MAX_FRAME];
+		offsets = new int[STREAM_FRAMES + 1];
+		decodedChannels = new int[TelemetryEncoder.MAX_SAMPLES];
+		decodedValues = new int[TelemetryEncoder.MAX_SAMPLES];
+		encoder = new TelemetryEncoder();
+		decoder = new TelemetryDecoder();
+		
+		for(int f=0; f<STREAM_FRAMES; f++){
+			offsets[f + 1] = offsets[f] + encode(stream, offsets[f], f);
+		}
+		
+		streamLength = offsets[STREAM_FRAMES];
+	}
+	
+	private int encode(byte[] buffer, int offset, int frame){
+		
+		if(delta){
+			return encoder.encode(buffer, offset, channelIds, samples[frame], channels);
+		}
+		
+		return FrameCodec.encodeTelemetry(buffer, offset, channelIds, samples[frame], channels);
+	}
+	
+	/**
+	 * Encode STREAM_FRAMES frames, starting with a keyframe
+	 */
+	@Benchmark
+	public int encodeStream(Size size){
+		
+		size.bytesPerFrame = (double)streamLength / STREAM_FRAMES;
+		encoder.reset();
+		
+		int length = 0;
+		
+		for(int f=0; f<STREAM_FRAMES; f++){
+			length += encode(out, 0, f);
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Decode the payloads of STREAM_FRAMES frames back to samples
+	 */
+	@Benchmark
+	public long decodeStream(Size size){
+		
+		size.bytesPerFrame = (double)streamLength / STREAM_FRAMES;
+		decoder.reset();
+		
+		long sum = 0;
+		
+		for(int f=0; f<STREAM_FRAMES; f++){
+			
+			int offset = offsets[f] + FrameCodec.HEADER_SIZE;
+			int length = offsets[f + 1] - offsets[f] - FrameCodec.OVERHEAD;
+			
+			if(delta){
+				sum += decoder.decode(stream, offset, length, decodedChannels, decodedValues);
+			}else{
+				
+				int count = FrameCodec.telemetryCount(length);
+				
+				for(int i=0; i<count; i++){
+					decodedChannels[i] = FrameCodec.telemetryChannel(stream, offset, i);
+					decodedValues[i] = FrameCodec.telemetryValue(stream, offset, i);
+				}
+				sum += count;
+			}
+		}
+		
+		return sum;
+	}
+}
@@ -0,0 +1,121 @@
+package vision;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import simulator.SyntheticCamera;
+
+/**
+ * The software face detection path on a JVM: a SyntheticCamera delivers
+ * frames as fast as buffers come back, the PreviewPipeline hands them to its
+ * worker and a FaceDetector scans them. One operation is one processed frame,
+ * so the time per operation is the frame rate the path sustains.
+ * 
+ * The drawn faces have exactly the pattern the FaceDetector looks for, so
+ * the faces found per frame, printed at the end of a trial, only show that
+ * the path works and that an empty scene stays empty (faces=0). They prove
+ * nothing about the detection of real faces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FaceDetectionBenchmark {
+	
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	
+	@Param({"0", "2"})
+	public int faces;
+	
+	@Param({"1", "4"})
+	public int threads;
+	
+	private SyntheticCamera camera;
+	private PreviewPipeline pipeline;
+	private FaceDetector detector;
+	
+	// Frames processed and faces found by the pipeline worker, guarded by lock
+	private final Object lock = new Object();
+	private long processed;
+	private long found;
+	
+	@Setup
+	public void setup(){
+		
+		detector = new FaceDetector(threads);
+		camera = new SyntheticCamera(WIDTH, HEIGHT);
+		camera.setFrameRate(1000);
+		
+		for(int i=0; i<faces; i++){
+			camera.setFace(i, 80 + 280 * i, 120 + 40 * i, 96 + 32 * i, 3 - 2 * i, 2);
+		}
+		
+		FrameProcessor processor = new FrameProcessor() {
+			
+			@Override
+			public void onFrame(PreviewFrame frame) {
+				
+				int count = detector.detect(frame.getData(), frame.getWidth(), frame.getHeight());
+				
+				synchronized(lock){
+					processed++;
+					found += count;
+					lock.notifyAll();
+				}
+			}
+		};
+		
+		pipeline = new PreviewPipeline(processor, camera);
+		pipeline.start(WIDTH, HEIGHT);
+		camera.start(pipeline);
+	}
+	
+	@TearDown
+	public void tearDown(){
+		
+		camera.stop();
+		pipeline.stop();
+		detector.close();
+		
+		synchronized(lock){
+			System.out.println();
+			System.out.println(String.format("%d frames, %.2f faces per frame (%d drawn), %d camera frames skipped",
+					processed, (processed > 0) ? (double)found / processed : 0.0, faces, camera.getSkippedCount()));
+		}
+		
+		System.out.println(pipeline.getStats());
+	}
+	
+	/**
+	 * Wait for the worker to finish the next frame
+	 */
+	@Benchmark
+	public long processFrame() throws InterruptedException {
+		
+		synchronized(lock){
+			
+			long target = processed + 1;
+			
+			while(processed < target){
+				lock.wait();
+			}
+			
+			return found;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A DetectionReplay of a whole recording into a FaceTracker and a
+ * FaceFollower, one operation is one replay. The recording is the file
+ * recorded by the app with the detection_file extra, given with
+ * -p recording=<file>, or by default a synthetic one of a face moving across
+ * the frame, lost for two seconds in the middle, delivered 20 to 100 ms
+ * after its frame.
+ * 
+ * The frames whose first set point missed FaceFollower.LATENCY_BUDGET and
+ * the latency histogram of the last replay are printed at the end of a
+ * trial, the same recording gives the same counts on every replay.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FaceFollowerBenchmark {
+	
+	private static final String SYNTHETIC = "synthetic";
+	
+	// Synthetic recording, 30 fps for 60 s
+	private static final int FRAMES = 1800;
+	private static final long FRAME_INTERVAL = 33333333L;			// ns
+	private static final int LOST_FIRST = 900;
+	private static final int LOST_LAST = 960;
+	
+	@Param({SYNTHETIC})
+	public String recording;
+	
+	private File file;
+	private DetectionReplay replay;
+	private FaceFollower follower;
+	
+	// Set points of the last replay
+	private long commands;
+	
+	@Setup
+	public void setup() throws IOException {
+		
+		if(SYNTHETIC.equals(recording)){
+			file = File.createTempFile("detections", ".bin");
+			file.deleteOnExit();
+			writeSynthetic(file);
+		}else{
+			file = new File(recording);
+		}
+	}
+	
+	@TearDown
+	public void tearDown(){
+		
+		if(follower != null){
+			System.out.println();
+			System.out.println(replay);
+			System.out.println(String.format("%d of %d frames over the %d ms budget, %d set points",
+					follower.getOverBudgetCount(), replay.getFrameCount(),
+					FaceFollower.LATENCY_BUDGET / 1000000L, commands));
+			System.out.print(follower);
+		}
+		
+		if(SYNTHETIC.equals(recording)){
+			file.delete();
+		}
+	}
+	
+	@Benchmark
+	public long play() throws IOException {
+		
+		FaceTracker tracker = new FaceTracker();
+		
+		commands = 0;
+		
+		follower = new FaceFollower(tracker, new MotorOutput() {
+			
+			@Override
+			public boolean drive(int left, int right) {
+				commands++;
+				return true;
+			}
+		});
+		
+		replay = new DetectionReplay(file);
+		replay.play(tracker, follower);
+		
+		return follower.getOverBudgetCount();
+	}
+	
+	private static void writeSynthetic(File file) throws IOException {
+		
+		int[] left = new int[1];
+		int[] top = new int[1];
+		int[] right = new int[1];
+		int[] bottom = new int[1];
+		
+		DetectionRecorder recorder = new DetectionRecorder(file);
+		
+		try{
+			
+			for(int i=0; i<FRAMES; i++){
+				
+				long frameTime = i * FRAME_INTERVAL;
+				
+				// Slow enough that the delivery times keep their order
+				long delivered = frameTime + (long)((60 + 40 * Math.sin(i / 20.0)) * 1000000L);
+				
+				int count = ((i >= LOST_FIRST) && (i < LOST_LAST)) ? 0 : 1;
+				
+				int x = (int)(600 * Math.sin(i / 45.0));
+				int half = (int)(150 + 50 * Math.sin(i / 70.0));
+				
+				left[0] = x - half;
+				top[0] = -half;
+				right[0] = x + half;
+				bottom[0] = half;
+				
+				recorder.record(left, top, right, bottom, count, frameTime, delivered);
+			}
+		
+		}finally{
+			recorder.close();
+		}
+	}
+}